@@ -131,10 +131,32 @@ public class Client {
                             if (userInput.equals("help")) { // Help commands - list all commands
                                 String helpMessage = "[INFO] List of commands:\n" +
                                                     "[INFO] - help: List all commands.\n" +
-                                                    "[INFO] - put <key> <value>: Adds or updates a single key-value pair in the server.\n" +
+                                                    "[INFO] - put <key> <value> [ttl <ms>]: Adds or updates a single key-value pair in the server, removed after ttl ms if given.\n" +
                                                     "[INFO] - get <key>: Retrieves the value associated with the given key, or returns null if the key does not exist.\n" +
-                                                    "[INFO] - multiput <n> <key> <value>...: Adds or updates n key-value pairs in the server.\n" +
+                                                    "[INFO] - get <key> version: Retrieves the value preceded by its version (0 if the key does not exist).\n" +
+                                                    "[INFO] - get <key> ifmodified <version>: Retrieves the version and value only if the key is no longer at that version.\n" +
+                                                    "[INFO] - get <key> deflate: Retrieves the value compressed (zlib), as the server stores it when it is large.\n" +
+                                                    "[INFO] - cas <key> <version> <value>: Updates the key only if it is still at that version (0 = create), otherwise returns its version.\n" +
+                                                    "[INFO] - multicas <n> <key> <version> <value>...: Updates n keys only if all of them are still at their versions.\n" +
+                                                    "[INFO] - multiput <n> <key> <value>... [ttl <ms>]: Adds or updates n key-value pairs in the server.\n" +
+                                                    "[INFO] - bulkload <file> [expected keys]: Loads the '<key> <value>' lines of a file, streamed in large batches.\n" +
                                                     "[INFO] - multiget <n> <key>...: Retrieves n values for the specified keys and returns them as a map.\n" +
+                                                    "[INFO] - multiget <n> <key>... ifmodified <version>...: Same, but only the versions of the keys still at the given ones.\n" +
+                                                    "[INFO] - incr <key> [delta] / decr <key> [delta]: Atomically adds to (subtracts from) a counter and returns it.\n" +
+                                                    "[INFO] - append <key> <value>: Atomically appends to the value of the key.\n" +
+                                                    "[INFO] - push <key> <item> [max]: Adds an item to the tail of a list, keeping at most max items.\n" +
+                                                    "[INFO] - pop <key>: Removes and returns the item at the head of a list.\n" +
+                                                    "[INFO] - scan <prefix> <limit> / scan <from> <to> <limit>: Lists keys in order, 'after <cursor>' continues a scan.\n" +
+                                                    "[INFO] - txread <n> <key>...: Reads keys with their versions at one snapshot, the read set of a transaction.\n" +
+                                                    "[INFO] - txcommit <r> <key> <version>... <w> <key> <value>...: Writes the w pairs atomically if the r keys read are unchanged.\n" +
+                                                    "[INFO] - findkeys <value> [limit]: Lists the keys currently holding exactly that value, in order.\n" +
+                                                    "[INFO] - aggregate keys <n> <key>... / aggregate prefix <prefix> / aggregate range <from> <to>: Count, sum, min and max of the integer values.\n" +
+                                                    "[INFO] - getwhen <key> <keyCond> <valueCond>: Waits until keyCond holds valueCond and returns the value of key.\n" +
+                                                    "[INFO] - getwhen <key> <condition>: Waits until the condition holds, e.g. 'a = x and ( n >= 100 or s prefix ok )'.\n" +
+                                                    "[INFO]   Operators: = != < <= > >= prefix and 'key absent' (e.g. expired), combined with and/or and spaced parentheses.\n" +
+                                                    "[INFO] - use [namespace]: Runs the following commands in that namespace (the default one if none).\n" +
+                                                    "[INFO] - in <namespace> <command>: Runs a single command in that namespace.\n" +
+                                                    "[INFO] - stats: Shows the hit, miss, eviction, expiration and operation counters of the namespace.\n" +
                                                     "[INFO] - end: End program\n";
 
                                 System.out.println(helpMessage);
@@ -163,7 +185,12 @@ public class Client {
                             else { // Send Commands
                                 Thread commandThread;
                                 this.tag++; 
-                                commandThread = new Thread(new CommandHandler(m, tag, command, rest));
+                                if (command.equals("in") && rest.length >= 2) { // in <namespace> <command>...
+                                    commandThread = new Thread(new CommandHandler(m, tag, rest[0], rest[1].toLowerCase(),
+                                            Arrays.copyOfRange(rest, 2, rest.length)));
+                                } else {
+                                    commandThread = new Thread(new CommandHandler(m, tag, command, rest));
+                                }
                                 // Start the command thread
                                 commandThread.start();
 
@@ -1,12 +1,20 @@
 package client;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 class CommandHandler implements Runnable {
     private final Demultiplexer m;
     private final int tag;
     private final String command;
     private final String[] arguments;
+    private byte[] prefix = null; // "in <namespace> " before the first frame when the command runs in another namespace
+    private static final int BULK_FRAME_BYTES = 256 * 1024; // Lines sent per bulk load frame
 
     public CommandHandler(Demultiplexer m, int tag, String command, String... arguments) {
         this.m = m;
@@ -15,6 +23,24 @@ class CommandHandler implements Runnable {
         this.arguments = arguments;
     }
 
+    // Builder for a command run in the given namespace instead of the session's
+    public CommandHandler(Demultiplexer m, int tag, String namespace, String command, String... arguments) {
+        this(m, tag, command, arguments);
+        this.prefix = ("in " + namespace + " ").getBytes();
+    }
+
+    // Sends a frame of this command on its tag, the first one after the namespace prefix if any
+    private void send(byte[] data) throws IOException {
+        if (this.prefix != null) {
+            byte[] frame = new byte[this.prefix.length + data.length];
+            System.arraycopy(this.prefix, 0, frame, 0, this.prefix.length);
+            System.arraycopy(data, 0, frame, this.prefix.length, data.length);
+            data = frame;
+            this.prefix = null;
+        }
+        m.send(tag, data);
+    }
+
     @Override
     public void run() {
         try {
@@ -28,6 +54,23 @@ class CommandHandler implements Runnable {
                 this.handleMultiPut();
             } else if (this.command.equals("getwhen")) {
                 this.handleGeTWhen();
+            } else if (this.command.equals("incr") || this.command.equals("decr") || this.command.equals("append")
+                    || this.command.equals("push") || this.command.equals("pop") || this.command.equals("aggregate")) {
+                this.handleUpdate();
+            } else if (this.command.equals("scan")) {
+                this.handleScan();
+            } else if (this.command.equals("findkeys")) {
+                this.handleFindKeys();
+            } else if (this.command.equals("bulkload")) {
+                this.handleBulkLoad();
+            } else if (this.command.equals("txread")) {
+                this.handleTxRead();
+            } else if (this.command.equals("cas") || this.command.equals("multicas") || this.command.equals("txcommit")) {
+                this.handleCas();
+            } else if (this.command.equals("stats")) {
+                this.handleStats();
+            } else if (this.command.equals("use")) {
+                this.handleUse();
             }
             else {
                 System.err.println("Unsupported command: " + command);
@@ -38,15 +81,15 @@ class CommandHandler implements Runnable {
     }
 
     private void handlePut() throws IOException, InterruptedException {
-        if (arguments.length != 2) {
+        if (arguments.length != 2 && arguments.length != 4) { // key value [ttl <ms>]
             System.out.println("(" + tag + ") Invalid number of arguments for 'put'.");
             return;
         }
         
 
-        String data = command + " " + arguments[0] + " " + arguments[1];
+        String data = command + " " + String.join(" ", arguments);
         System.out.println("(" + tag + ") Sending '"+ data +"' command.");
-        m.send(tag, data.getBytes());
+        send(data.getBytes());
 
         byte[] response = m.receive(tag);
         String responseString = new String(response);
@@ -54,27 +97,59 @@ class CommandHandler implements Runnable {
     }
 
     private void handleGet() throws IOException, InterruptedException {
-        if (arguments.length != 1) {
+        boolean ifModified = arguments.length == 3 && arguments[1].equals("ifmodified");
+        if (arguments.length != 1 && !ifModified && (arguments.length != 2
+                || !arguments[1].equals("version") && !arguments[1].equals("deflate"))) {
             System.out.println("(" + tag + ") Invalid number of arguments for 'get'.");
             return;
         }
 
-        String data = command + " " + arguments[0];
+        String data = command + " " + String.join(" ", arguments);
         System.out.println("(" + tag + ") Sending '"+ data +"' command.");
-        m.send(tag, data.getBytes());
+        send(data.getBytes());
 
 
         byte[] response = m.receive(tag);
         String responseString = new String(response);
 
 
-        if (responseString.isEmpty()) {
+        if (responseString.isEmpty() || responseString.equals("0") && arguments.length >= 2) {
             System.out.println("(" + tag + ") Key '"+ arguments[0] +"' not found.");
+        } else if (ifModified && responseString.indexOf(' ') < 0) {
+            System.out.println("(" + tag + ") Key " + arguments[0] + " not modified, still at version " + responseString + ".");
+        } else if (ifModified) {
+            System.out.println("(" + tag + ") Version and value of key " + arguments[0] + ": " + responseString);
+        } else if (arguments.length == 2 && arguments[1].equals("deflate")) {
+            byte[] value = inflate(response);
+            System.out.println("(" + tag + ") Value of key " + arguments[0] + " (" + response.length + " bytes deflated): "
+                    + (value == null ? "invalid zlib stream" : new String(value)));
+        } else if (arguments.length == 2) {
+            System.out.println("(" + tag + ") Version and value of key " + arguments[0] + ": " + responseString);
         } else {
             System.out.println("(" + tag + ") Value of key " + arguments[0] + ": " + responseString);
         }
     }
 
+    // Value sent as a zlib stream, null if it is not one
+    private static byte[] inflate(byte[] deflated) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) return null;
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
     private void handleMultiPut() throws IOException, InterruptedException {
         if (arguments.length < 3) {
             System.out.println("(" + tag + ") Invalid number of arguments for 'multiPut'.");
@@ -89,7 +164,7 @@ class CommandHandler implements Runnable {
             return;
         }
     
-        if (arguments.length != 1 + (2 * n)) {  // Check if n matches the number of pair key value
+        if (arguments.length != 1 + (2 * n) && arguments.length != 3 + (2 * n)) {  // n pairs, optionally ttl <ms>
             System.out.println("(" + tag + ") Invalid arguments! Command 'multiPut' requires " + n + " key-value pairs.");
             return;
         }
@@ -103,7 +178,7 @@ class CommandHandler implements Runnable {
         System.out.println("(" + tag + ") Sending '"+ dataBuilder +"' command.");
     
         // Send to server
-        m.send(tag, dataBuilder.toString().getBytes());
+        send(dataBuilder.toString().getBytes());
     
         // Receive response
         byte[] response = m.receive(tag);
@@ -127,7 +202,8 @@ class CommandHandler implements Runnable {
             return;
         }
     
-        if (arguments.length != 1 + n) { // check if n matches
+        boolean ifModified = n > 0 && arguments.length == 2 + 2 * n && arguments[1 + n].equals("ifmodified");
+        if (arguments.length != 1 + n && !ifModified) { // check if n matches
             System.out.println("(" + tag + ") Invalid arguments! Command 'multiGet' requires " + n + " keys.");
             return;
         }
@@ -140,14 +216,21 @@ class CommandHandler implements Runnable {
         System.out.println("(" + tag + ") Sending '"+ dataBuilder +"' command.");
     
         // Send to server
-        m.send(tag, dataBuilder.toString().getBytes());
+        send(dataBuilder.toString().getBytes());
 
         for (int i = 0; i < n; i ++) {
             byte[] response = m.receive(tag);
             String responseString = new String(response);
             String[] pairs = responseString.split(" ");
 
-            if (pairs.length == 1) {
+            if (ifModified && pairs.length == 2) {
+                System.out.println("(" + tag + ") " + (pairs[1].equals("0") ? "Value not found to Key: " + pairs[0]
+                        : "Key: " + pairs[0] + " not modified, Version: " + pairs[1]));
+            }
+            else if (ifModified && pairs.length == 3) {
+                System.out.println("(" + tag + ") Key: " + pairs[0] + ", Version: " + pairs[1] + ", Value: " + pairs[2]);
+            }
+            else if (pairs.length == 1) {
                 System.out.println("(" + tag + ") Value not found to Key: " + pairs[0]);
             }
             else if (pairs.length == 2) {
@@ -160,14 +243,14 @@ class CommandHandler implements Runnable {
     }
 
     private void handleGeTWhen() throws IOException, InterruptedException {
-        if (arguments.length != 3) {
+        if (arguments.length < 3) {
             System.out.println("(" + tag + ") Invalid number of arguments for 'getWhen'.");
             return;
         }
 
-        String data = command + " " + arguments[0] + " " + arguments[1] + " " + arguments[2];
+        String data = command + " " + String.join(" ", arguments);
         System.out.println("(" + tag + ") Sending '"+ data +"' command.");
-        m.send(tag, data.getBytes());
+        send(data.getBytes());
 
 
         byte[] response = m.receive(tag);
@@ -176,9 +259,191 @@ class CommandHandler implements Runnable {
 
         if (responseString.isEmpty()) {
             System.out.println("(" + tag + ") Condition met but Key '"+ arguments[0] +"' not found.");
+        } else if (responseString.startsWith("Invalid condition")) {
+            System.out.println("(" + tag + ") " + responseString);
         } else {
             System.out.println("(" + tag + ") Condition met, value of key " + arguments[0] + ": " + responseString + ".");
         }
     }
-    
+
+    // incr, decr, append, push, pop and aggregate - the server applies them and replies the outcome
+    private void handleUpdate() throws IOException, InterruptedException {
+        if (arguments.length < 1) {
+            System.out.println("(" + tag + ") Invalid number of arguments for '" + command + "'.");
+            return;
+        }
+
+        String data = command + " " + String.join(" ", arguments);
+        System.out.println("(" + tag + ") Sending '"+ data +"' command.");
+        send(data.getBytes());
+
+        String responseString = new String(m.receive(tag));
+        if (command.equals("pop") && responseString.isEmpty()) {
+            System.out.println("(" + tag + ") List '"+ arguments[0] +"' is empty.");
+        } else {
+            System.out.println("(" + tag + ") " + responseString);
+        }
+    }
+
+    // scan <prefix> <limit> or scan <from> <to> <limit>, optionally followed by after <cursor>
+    private void handleScan() throws IOException, InterruptedException {
+        if (arguments.length < 2) {
+            System.out.println("(" + tag + ") Invalid number of arguments for 'scan'.");
+            return;
+        }
+
+        String data = command + " " + String.join(" ", arguments);
+        System.out.println("(" + tag + ") Sending '"+ data +"' command.");
+        send(data.getBytes());
+
+        // One frame per key, the last one has no space: the cursor to continue from, or empty at the end
+        int keys = 0;
+        while (true) {
+            String responseString = new String(m.receive(tag));
+            int space = responseString.indexOf(' ');
+            if (space < 0) {
+                if (responseString.isEmpty()) {
+                    System.out.println("(" + tag + ") End of scan, " + keys + " keys.");
+                } else {
+                    System.out.println("(" + tag + ") " + keys + " keys, more after '" + responseString + "': repeat with 'after " + responseString + "'.");
+                }
+                return;
+            } else if (responseString.startsWith("Invalid ")) {
+                System.out.println("(" + tag + ") " + responseString);
+                return;
+            }
+            System.out.println("(" + tag + ") Key: " + responseString.substring(0, space) + ", Value: " + responseString.substring(space + 1));
+            keys++;
+        }
+    }
+
+    // findkeys <value> [limit] - one frame per key, then an empty one
+    private void handleFindKeys() throws IOException, InterruptedException {
+        if (arguments.length != 1 && arguments.length != 2) {
+            System.out.println("(" + tag + ") Invalid number of arguments for 'findkeys'.");
+            return;
+        }
+
+        String data = command + " " + String.join(" ", arguments);
+        System.out.println("(" + tag + ") Sending '"+ data +"' command.");
+        send(data.getBytes());
+
+        int keys = 0;
+        while (true) {
+            String responseString = new String(m.receive(tag));
+            if (responseString.isEmpty()) {
+                System.out.println("(" + tag + ") " + keys + " keys hold '" + arguments[0] + "'.");
+                return;
+            } else if (responseString.startsWith("Invalid ")) {
+                System.out.println("(" + tag + ") " + responseString);
+                return;
+            }
+            System.out.println("(" + tag + ") Key: " + responseString);
+            keys++;
+        }
+    }
+
+    // bulkload <file> [expected keys] - streams the "<key> <value>" lines of the file in frames of whole lines on
+    // this tag, then an empty frame, and waits for the single acknowledgement
+    private void handleBulkLoad() throws IOException, InterruptedException {
+        if (arguments.length != 1 && (arguments.length != 2 || !arguments[1].matches("[0-9]+"))) {
+            System.out.println("(" + tag + ") Invalid number of arguments for 'bulkload'.");
+            return;
+        }
+
+        String data = command + (arguments.length == 2 ? " " + arguments[1] : "");
+        System.out.println("(" + tag + ") Sending '"+ data +"' command with the lines of " + arguments[0] + ".");
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(arguments[0]))) {
+            send(data.getBytes());
+            sendLines(reader);
+        }
+
+        System.out.println("(" + tag + ") " + new String(m.receive(tag)));
+    }
+
+    private void sendLines(BufferedReader reader) throws IOException {
+        try {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(BULK_FRAME_BYTES + 1024);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                byte[] bytes = line.getBytes();
+                frame.write(bytes, 0, bytes.length);
+                frame.write('\n');
+                if (frame.size() >= BULK_FRAME_BYTES) {
+                    send(frame.toByteArray());
+                    frame.reset();
+                }
+            }
+            if (frame.size() > 0) send(frame.toByteArray());
+        } finally {
+            send(new byte[0]); // Ends the load, even a partial one
+        }
+    }
+
+    // txread <n> <key>... - one "<key> <version> [value]" frame per key, the versions to give txcommit
+    private void handleTxRead() throws IOException, InterruptedException {
+        int n;
+        try {
+            n = Integer.parseInt(arguments.length == 0 ? "" : arguments[0]);
+        } catch (NumberFormatException ex) {
+            n = -1;
+        }
+        if (n < 1 || arguments.length != 1 + n) {
+            System.out.println("(" + tag + ") Invalid number of arguments for 'txread'.");
+            return;
+        }
+
+        String data = command + " " + String.join(" ", arguments);
+        System.out.println("(" + tag + ") Sending '"+ data +"' command.");
+        send(data.getBytes());
+
+        for (int i = 0; i < n; i++) {
+            String[] parts = new String(m.receive(tag)).split(" ", 3);
+            if (parts.length == 2) {
+                System.out.println("(" + tag + ") Key: " + parts[0] + " absent, version 0");
+            } else if (parts.length == 3) {
+                System.out.println("(" + tag + ") Key: " + parts[0] + ", Version: " + parts[1] + ", Value: " + parts[2]);
+            } else {
+                System.out.println("(" + tag + ") " + String.join(" ", parts));
+                return;
+            }
+        }
+    }
+
+    // cas <key> <expectedVersion> <value>, multicas <n> <key> <expectedVersion> <value>... and
+    // txcommit <r> <key> <version>... <w> <key> <value>...
+    private void handleCas() throws IOException, InterruptedException {
+        if (arguments.length < 3) {
+            System.out.println("(" + tag + ") Invalid number of arguments for '" + command + "'.");
+            return;
+        }
+
+        String data = command + " " + String.join(" ", arguments);
+        System.out.println("(" + tag + ") Sending '"+ data +"' command.");
+        send(data.getBytes());
+
+        byte[] response = m.receive(tag);
+        System.out.println("(" + tag + ") " + new String(response));
+    }
+
+    // use [namespace] - selects the namespace of the following commands, the default one without a name
+    private void handleUse() throws IOException, InterruptedException {
+        if (arguments.length > 1) {
+            System.out.println("(" + tag + ") Invalid number of arguments for 'use'.");
+            return;
+        }
+
+        String data = command + (arguments.length == 1 ? " " + arguments[0] : "");
+        System.out.println("(" + tag + ") Sending '"+ data +"' command.");
+        send(data.getBytes());
+        System.out.println("(" + tag + ") " + new String(m.receive(tag)));
+    }
+
+    private void handleStats() throws IOException, InterruptedException {
+        System.out.println("(" + tag + ") Sending '"+ command +"' command.");
+        send(command.getBytes());
+
+        byte[] response = m.receive(tag);
+        System.out.println("(" + tag + ") Server stats: " + new String(response));
+    }
 }
@@ -0,0 +1,31 @@
+package server;
+
+// Count, sum, min and max of the decimal 64-bit integer values of a set of keys, computed by the engine.
+// Keys holding anything else are only counted as skipped; min and max are meaningless while count is 0.
+public class Aggregate {
+    public static final Aggregate EMPTY = new Aggregate(0, 0, Long.MAX_VALUE, Long.MIN_VALUE, 0);
+
+    public final long count;
+    public final long sum;
+    public final long min;
+    public final long max;
+    public final long skipped;
+
+    public Aggregate(long count, long sum, long min, long max, long skipped) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.skipped = skipped;
+    }
+
+    // Aggregate of both key sets, throws IllegalArgumentException if the sum overflows
+    public Aggregate combine(Aggregate other) {
+        try {
+            return new Aggregate(this.count + other.count, Math.addExact(this.sum, other.sum),
+                    Math.min(this.min, other.min), Math.max(this.max, other.max), this.skipped + other.skipped);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Sum would overflow");
+        }
+    }
+}
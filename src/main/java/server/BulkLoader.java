@@ -0,0 +1,149 @@
+package server;
+
+import conn.Frame;
+import conn.TaggedConnection;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * BulkLoader - applies a bulk load a client streams over the frames of one tag.
+ *
+ * 'bulkload [expected keys]' opens the load, every following frame of its tag holds whole "<key> <value>" lines,
+ * and an empty frame ends it with a single "Loaded <n> keys." reply. Each frame is parsed in place and written as
+ * one batch with putAll - no String, no split, no map per record.
+ *
+ * The session's reader hands the frames over through a small queue: while the engine is behind, the reader blocks
+ * and stops reading the socket, so the client is slowed down by TCP instead of the server buffering the load.
+ * If the load fails, the client gets a single error reply and the rest of its frames are dropped up to the empty one.
+ */
+class BulkLoader implements Runnable {
+    private static final byte[] COMMAND = "bulkload".getBytes();
+    private static final int QUEUED_FRAMES = 8;
+    private static final Frame ABORTED = new Frame(0, new byte[0]); // The session ended before the load did
+
+    private final int tag;
+    private final long expected; // Keys announced by the client, 0 if unknown
+    private final StorageEngine data;
+    private final TaggedConnection conn;
+    private final BlockingQueue<Frame> frames = new ArrayBlockingQueue<>(QUEUED_FRAMES);
+    private long loaded = 0;
+    private long malformed = 0;
+    private volatile boolean failed = false; // Once set, the frames still to come are dropped
+
+    private BulkLoader(int tag, long expected, StorageEngine data, TaggedConnection conn) {
+        this.tag = tag;
+        this.expected = expected;
+        this.data = data;
+        this.conn = conn;
+    }
+
+    // Whether the frame opens a bulk load: 'bulkload' or 'bulkload <expected keys>'
+    static boolean opens(Frame frame) {
+        return expectedKeys(frame.data) >= 0;
+    }
+
+    // Loader for the frame if it opens a bulk load, null otherwise
+    static BulkLoader open(Frame frame, StorageEngine data, TaggedConnection conn) {
+        long expected = expectedKeys(frame.data);
+        return expected < 0 ? null : new BulkLoader(frame.tag, expected, data, conn);
+    }
+
+    // Loader of a bulk load refused before it started - it only drops the frames of its tag up to the empty one
+    static BulkLoader rejected(Frame frame) {
+        BulkLoader loader = new BulkLoader(frame.tag, 0, null, null);
+        loader.failed = true;
+        return loader;
+    }
+
+    // Keys announced by a bulk load command (0 if none), -1 if it is not one
+    private static long expectedKeys(byte[] command) {
+        if (!Bytes.startsWith(command, COMMAND)) return -1;
+        if (command.length == COMMAND.length) return 0;
+        if (command[COMMAND.length] != ' ') return -1;
+
+        byte[] count = new byte[command.length - COMMAND.length - 1];
+        System.arraycopy(command, COMMAND.length + 1, count, 0, count.length);
+        Long expected = Bytes.parseLong(count);
+        return expected == null || expected < 0 ? -1 : expected;
+    }
+
+    // Hands over the next frame of the load, blocking while the queue is full. Returns whether it was the last.
+    boolean offer(Frame frame) throws InterruptedException {
+        if (!this.failed) this.frames.put(frame);
+        return frame.data.length == 0;
+    }
+
+    // Ends the load when its session ends, the frames still queued are dropped
+    void abort() {
+        this.frames.clear();
+        this.frames.offer(ABORTED);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (this.expected > 0) this.data.reserve(this.expected);
+            while (true) {
+                Frame frame = this.frames.take();
+                if (frame == ABORTED) return;
+                if (frame.data.length == 0) break;
+                apply(frame.data);
+            }
+            String reply = "Loaded " + this.loaded + " keys."
+                    + (this.malformed > 0 ? " Skipped " + this.malformed + " malformed lines." : "");
+            this.conn.send(this.tag, reply.getBytes());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) { // e.g. UncheckedIOException when a write could not be logged
+            System.err.println("Error handling bulk load (" + this.tag + "): " + e.getMessage());
+            this.failed = true;
+            this.frames.clear(); // Unblocks the reader, which drops the next frames
+            try {
+                this.conn.send(this.tag, ("Error handling command (" + this.tag + ")").getBytes());
+            } catch (IOException ex) {
+                System.err.println("Failed to notify client of error: " + ex.getMessage());
+            }
+        }
+    }
+
+    // Writes the "<key> <value>" lines of a frame as one batch, a line without a key or a value is skipped
+    private void apply(byte[] frame) {
+        int lines = 1;
+        for (byte b : frame) {
+            if (b == '\n') lines++;
+        }
+        Key[] keys = new Key[lines];
+        int[] offs = new int[lines];
+        int[] lens = new int[lines];
+        int n = 0;
+
+        for (int start = 0; start < frame.length; ) {
+            int end = Bytes.indexOf(frame, (byte) '\n', start);
+            if (end < 0) end = frame.length;
+            int next = end + 1;
+            if (end > start && frame[end - 1] == '\r') end--;
+
+            int space = Bytes.indexOf(frame, (byte) ' ', start);
+            if (end == start) { // Blank line
+                start = next;
+                continue;
+            }
+            if (space <= start || space >= end - 1) {
+                this.malformed++;
+                start = next;
+                continue;
+            }
+            keys[n] = Key.of(frame, start, space - start);
+            offs[n] = space + 1;
+            lens[n] = end - space - 1;
+            n++;
+            start = next;
+        }
+
+        this.data.putAll(keys, frame, offs, lens, n);
+        this.loaded += n;
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.util.Arrays;
+
+// Immutable byte sequence with a cached hash - lets raw values be used as map keys
+public final class Bytes {
+    private final byte[] data;
+    private final int hash;
+
+    public Bytes(byte[] data) {
+        this.data = data;
+        this.hash = Arrays.hashCode(data);
+    }
+
+    public byte[] getData() {
+        return this.data;
+    }
+
+    public int length() {
+        return this.data.length;
+    }
+
+    // Parses a value holding a decimal 64-bit integer, without building a String - null if it is not one
+    public static Long parseLong(byte[] value) {
+        if (value == null || value.length == 0 || value.length > 20) return null;
+
+        int i = 0;
+        boolean negative = value[0] == '-';
+        if (negative || value[0] == '+') {
+            if (value.length == 1) return null;
+            i = 1;
+        }
+
+        long n = 0; // accumulated negatively, so Long.MIN_VALUE fits
+        for (; i < value.length; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) return null;
+            if (n < (Long.MIN_VALUE + digit) / 10) return null; // overflow
+            n = n * 10 - digit;
+        }
+        if (!negative) {
+            if (n == Long.MIN_VALUE) return null;
+            n = -n;
+        }
+        return n;
+    }
+
+    // Position of the first `b` in data from `from` on, -1 if none
+    public static int indexOf(byte[] data, byte b, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    // Digest of buf[off..off+len) to find equal values: a hash of the bytes in the high half, the length in the low half
+    public static long digest(byte[] buf, int off, int len) {
+        int h = 1;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + buf[i];
+        }
+        return ((long) h << 32) | len;
+    }
+
+    // Whether data starts with `prefix`
+    public static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Bytes)) return false;
+        Bytes other = (Bytes) o;
+        return this.hash == other.hash && Arrays.equals(this.data, other.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.data);
+    }
+}
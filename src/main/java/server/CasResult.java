@@ -0,0 +1,19 @@
+package server;
+
+import java.util.Map;
+
+// Outcome of a compare-and-set: if applied, the new version of every key written,
+// otherwise the current version of every key checked (0 = absent) so the caller can retry without a get
+public class CasResult {
+    public final boolean applied;
+    public final Map<String, Long> versions;
+
+    public CasResult(boolean applied, Map<String, Long> versions) {
+        this.applied = applied;
+        this.versions = versions;
+    }
+
+    public long versionOf(String key) {
+        return this.versions.getOrDefault(key, 0L);
+    }
+}
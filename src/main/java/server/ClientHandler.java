@@ -3,6 +3,12 @@ package server;
 import java.io.IOException;
 import java.io.EOFException;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import conn.*;
@@ -11,16 +17,24 @@ import conn.*;
 class ClientHandler implements Runnable {
     private final Socket socket;
     private UserManager users;
-    private DataManager data;
+    private final Namespaces namespaces;
+    private Namespaces.Namespace namespace; // Selected by 'use', the default one until then
     private TaggedConnection conn;
     private String client_username;
     private ThreadPoolExecutor sharedCommandThreadPool;
+    private final Set<CompletableFuture<byte[]>> pendingGetWhens = ConcurrentHashMap.newKeySet(); // getWhens still waiting on this session
+    private final Map<Integer, BulkLoader> bulkLoads = new HashMap<>(); // Bulk loads in progress by tag, used by the reader only
 
 
-    public ClientHandler(Socket socket, UserManager users, DataManager data, TaggedConnection conn, ThreadPoolExecutor commandThreadPool) {
+    private static final byte[] USE = "use".getBytes();
+    private static final byte[] IN = "in ".getBytes();
+
+
+    public ClientHandler(Socket socket, UserManager users, Namespaces namespaces, TaggedConnection conn, ThreadPoolExecutor commandThreadPool) {
         this.socket = socket;
         this.users = users;
-        this.data = data;
+        this.namespaces = namespaces;
+        this.namespace = namespaces.getDefault();
         this.conn = conn;
         this.sharedCommandThreadPool = commandThreadPool;
     }
@@ -33,6 +47,25 @@ class ClientHandler implements Runnable {
         this.client_username = client_username;
     }
 
+    // use [namespace] - selects the namespace of the session's next commands, the default one if none is given
+    private void handleUse(Frame frame) throws IOException {
+        String name = frame.data.length > USE.length ? new String(frame.data, USE.length + 1, frame.data.length - USE.length - 1) : "";
+        Namespaces.Namespace selected = name.isEmpty() ? this.namespaces.getDefault() : resolve(frame.tag, name);
+        if (selected == null) return;
+        this.namespace = selected;
+        this.conn.send(frame.tag, (name.isEmpty() ? "Using the default namespace." : "Using namespace '" + name + "'.").getBytes());
+    }
+
+    // The namespace of that name, or null once the client was told why it cannot be used
+    private Namespaces.Namespace resolve(int tag, String name) throws IOException {
+        try {
+            return this.namespaces.get(name);
+        } catch (IOException | IllegalArgumentException e) {
+            this.conn.send(tag, ("Cannot use namespace '" + name + "': " + e.getMessage()).getBytes());
+            return null;
+        }
+    }
+
     @Override
     public void run() {
         boolean authenticated = false;
@@ -81,8 +114,47 @@ class ClientHandler implements Runnable {
                             Frame commandFrame = this.conn.receive();
                             if (commandFrame == null || commandFrame.tag == 0) break; // tag == 0 implies end command from client
 
+                            // Frames of a bulk load in progress go to its loader, in order
+                            BulkLoader loader = bulkLoads.get(commandFrame.tag);
+                            if (loader != null) {
+                                if (loader.offer(commandFrame)) bulkLoads.remove(commandFrame.tag);
+                                continue;
+                            }
+                            // 'use <namespace>' applies to the commands that follow it, 'in <namespace> <command>' to one
+                            if (Bytes.startsWith(commandFrame.data, USE)
+                                    && (commandFrame.data.length == USE.length || commandFrame.data[USE.length] == ' ')) {
+                                handleUse(commandFrame);
+                                continue;
+                            }
+                            Namespaces.Namespace target = namespace;
+                            String name = null;
+                            if (Bytes.startsWith(commandFrame.data, IN)) {
+                                int end = Bytes.indexOf(commandFrame.data, (byte) ' ', IN.length);
+                                name = new String(commandFrame.data, IN.length, (end < 0 ? commandFrame.data.length : end) - IN.length);
+                                byte[] rest = end < 0 ? new byte[0] : Arrays.copyOfRange(commandFrame.data, end + 1, commandFrame.data.length);
+                                commandFrame = new Frame(commandFrame.tag, rest);
+                            }
+                            // A refused bulk load still takes the frames of its tag, or its data lines would run as commands
+                            boolean bulkLoad = BulkLoader.opens(commandFrame);
+                            if (name != null) target = resolve(commandFrame.tag, name);
+                            if (target != null && !target.tryAcquire()) {
+                                conn.send(commandFrame.tag, ("Namespace '" + target.name + "' is over its operation budget.").getBytes());
+                                target = null;
+                            }
+                            if (target == null) {
+                                if (bulkLoad) bulkLoads.put(commandFrame.tag, BulkLoader.rejected(commandFrame));
+                                continue;
+                            }
+
+                            if (bulkLoad) {
+                                loader = BulkLoader.open(commandFrame, target.engine, conn);
+                                bulkLoads.put(commandFrame.tag, loader);
+                                sharedCommandThreadPool.submit(loader);
+                                continue;
+                            }
+
                             // create CommandExecutor to handle the command - thread per command structure
-                            sharedCommandThreadPool.submit(new CommandExecutor(commandFrame, client_username, data, conn));
+                            sharedCommandThreadPool.submit(new CommandExecutor(commandFrame, client_username, target, conn, pendingGetWhens));
                         }
                         break;
                     } else if (authentication_result == 0) { // Login - Invalid credentials
@@ -102,6 +174,14 @@ class ClientHandler implements Runnable {
         }
          finally {
             try {
+                // Nobody is left to receive the replies, release the waiters of this session
+                for (CompletableFuture<byte[]> pending : pendingGetWhens) {
+                    pending.cancel(false);
+                }
+                for (BulkLoader loader : bulkLoads.values()) {
+                    loader.abort();
+                }
+
                 // Ensures user is logged out only if authenticated
                 if (authenticated) {
 
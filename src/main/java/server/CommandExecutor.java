@@ -5,21 +5,33 @@ import conn.TaggedConnection;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class CommandExecutor implements Runnable {
     private int tag;
     private String command;
-    private final DataManager data;
+    private final Namespaces.Namespace namespace;
+    private final StorageEngine data; // The engine of the namespace
     private final TaggedConnection conn;
     private String[] commandArguments;
     private final Frame commandFrame;
     private final String client_username;
-
-    public CommandExecutor(Frame commandFrame, String client_username, DataManager data, TaggedConnection conn) {
+    private final Set<CompletableFuture<byte[]>> pendingGetWhens;
+    static final int MAX_SCAN_LIMIT = 10_000; // Keys of one scan reply, larger ranges are paged with the cursor
+    private static final byte[] GET = "get ".getBytes();
+    private static final byte[] PUT = "put ".getBytes();
+    private static final byte[] UPDATED_PREFIX = "Key '".getBytes();
+    private static final byte[] UPDATED_SUFFIX = "' updated successfully.".getBytes();
+    private static final byte[] EMPTY = new byte[0];
+
+    public CommandExecutor(Frame commandFrame, String client_username, Namespaces.Namespace namespace, TaggedConnection conn,
+                           Set<CompletableFuture<byte[]>> pendingGetWhens) {
         this.commandFrame = commandFrame;
         this.client_username = client_username;
-        this.data = data;
+        this.namespace = namespace;
+        this.data = namespace.engine;
         this.conn = conn;
+        this.pendingGetWhens = pendingGetWhens;
     }
 
     private void setCommand(String command) {
@@ -38,11 +50,13 @@ public class CommandExecutor implements Runnable {
     public void run() {
         setTag(this.commandFrame.tag);
 
-        String[] commandTokens = new String(this.commandFrame.data).split(" ");
-        setCommand(commandTokens[0]);
-        setCommandArguments(Arrays.copyOfRange(commandTokens, 1, commandTokens.length));
-
         try {
+            if (this.handleFastPath(this.tag)) return;
+
+            String[] commandTokens = new String(this.commandFrame.data).split(" ");
+            setCommand(commandTokens[0]);
+            setCommandArguments(Arrays.copyOfRange(commandTokens, 1, commandTokens.length));
+
             if (this.command.equals("put")) {
                 this.handlePut(this.tag, this.commandArguments);
                 //System.out.println("vou fazer o comando put para o " + this.client_username);
@@ -58,10 +72,36 @@ public class CommandExecutor implements Runnable {
             } else if (this.command.equals("getwhen")) {
                 //System.out.println("vou fazer o comando getWhen para o " + this.client_username);
                 this.handleGetWhen(this.tag, this.commandArguments);
+            } else if (this.command.equals("cas")) {
+                this.handleCas(this.tag, this.commandArguments);
+            } else if (this.command.equals("multicas")) {
+                this.handleMultiCas(this.tag, this.commandArguments);
+            } else if (this.command.equals("txread")) {
+                this.handleTxRead(this.tag, this.commandArguments);
+            } else if (this.command.equals("txcommit")) {
+                this.handleTxCommit(this.tag, this.commandArguments);
+            } else if (this.command.equals("incr") || this.command.equals("decr")) {
+                this.handleIncrement(this.tag, this.commandArguments, this.command.equals("decr"));
+            } else if (this.command.equals("append")) {
+                this.handleAppend(this.tag, this.commandArguments);
+            } else if (this.command.equals("push")) {
+                this.handlePush(this.tag, this.commandArguments);
+            } else if (this.command.equals("pop")) {
+                this.handlePop(this.tag, this.commandArguments);
+            } else if (this.command.equals("scan")) {
+                this.handleScan(this.tag, this.commandArguments);
+            } else if (this.command.equals("findkeys")) {
+                this.handleFindKeys(this.tag, this.commandArguments);
+            } else if (this.command.equals("aggregate")) {
+                this.handleAggregate(this.tag, this.commandArguments);
+            } else if (this.command.equals("bulkload")) { // Only reaches here if malformed, see BulkLoader
+                this.conn.send(tag, "Invalid arguments for 'bulkload'. Requires optionally the number of keys expected.".getBytes());
+            } else if (this.command.equals("stats")) {
+                this.handleStats(this.tag);
             } else {
                 this.conn.send(tag, ("Unsupported command: " + this.command).getBytes());
             }
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) { // e.g. UncheckedIOException when a write could not be logged
             System.err.println("Error handling command (" + this.tag + ") from user "+ this.client_username +": " + e.getMessage());
             try {
                 this.conn.send(tag, ("Error handling command (" + this.tag + ")").getBytes());
@@ -71,16 +111,57 @@ public class CommandExecutor implements Runnable {
         }
     }
 
+    // Plain 'get <key>' and 'put <key> <value>', the bulk of the traffic, parsed straight from the frame: the key is
+    // copied once into a Key and no String is made. Anything else (options, malformed) takes the general path.
+    private boolean handleFastPath(int tag) throws IOException {
+        byte[] frame = this.commandFrame.data;
+        boolean get = Bytes.startsWith(frame, GET);
+        if (!get && !Bytes.startsWith(frame, PUT)) return false;
+
+        int keyStart = GET.length;
+        int keyEnd = Bytes.indexOf(frame, (byte) ' ', keyStart);
+        if (get) {
+            if (keyEnd >= 0 || keyStart == frame.length) return false;
+            byte[] value = this.data.get(Key.of(frame, keyStart, frame.length - keyStart));
+            this.conn.send(tag, value != null ? value : EMPTY);
+            return true;
+        }
+
+        int valueStart = keyEnd + 1;
+        if (keyEnd <= keyStart || valueStart == frame.length || Bytes.indexOf(frame, (byte) ' ', valueStart) >= 0) {
+            return false;
+        }
+        this.data.put(Key.of(frame, keyStart, keyEnd - keyStart), frame, valueStart, frame.length - valueStart, 0);
+
+        byte[] reply = new byte[UPDATED_PREFIX.length + keyEnd - keyStart + UPDATED_SUFFIX.length];
+        System.arraycopy(UPDATED_PREFIX, 0, reply, 0, UPDATED_PREFIX.length);
+        System.arraycopy(frame, keyStart, reply, UPDATED_PREFIX.length, keyEnd - keyStart);
+        System.arraycopy(UPDATED_SUFFIX, 0, reply, reply.length - UPDATED_SUFFIX.length, UPDATED_SUFFIX.length);
+        this.conn.send(tag, reply);
+        return true;
+    }
+
+    // put <key> <value> [ttl <ms>]
     private void handlePut(int tag, String[] commandTokens) throws IOException {
-        if (commandTokens.length != 2) {
+        if (commandTokens.length != 2 && commandTokens.length != 4) {
             this.conn.send(tag, "Invalid number of arguments for 'put'. Requires key and value.".getBytes());
             return;
         }
 
         String key = commandTokens[0];
-        byte[] value = commandTokens[1].getBytes();
+        long ttl = commandTokens.length == 4 ? parseTtl(commandTokens, 2) : 0;
+        if (ttl < 0) {
+            this.conn.send(tag, "Invalid TTL for 'put'. Requires ttl <milliseconds>.".getBytes());
+            return;
+        }
+
+        // Value is copied straight from the frame into the store, it starts after "put <key> "
+        byte[] frame = this.commandFrame.data;
+        int valueStart = Bytes.indexOf(frame, (byte) ' ', Bytes.indexOf(frame, (byte) ' ', 0) + 1) + 1;
+        int valueEnd = Bytes.indexOf(frame, (byte) ' ', valueStart);
+        if (valueEnd < 0) valueEnd = frame.length;
 
-        if (this.data.put(key, value)) {
+        if (this.data.put(key, frame, valueStart, valueEnd - valueStart, ttl)) {
             this.conn.send(tag, ("Key '" + key + "' updated successfully.").getBytes());
         }
         else {
@@ -88,13 +169,51 @@ public class CommandExecutor implements Runnable {
         }
     }
 
+    // TTL of a trailing "ttl <ms>" at tokens[from], -1 if malformed
+    private static long parseTtl(String[] tokens, int from) {
+        if (!tokens[from].equals("ttl")) return -1;
+        try {
+            long ttl = Long.parseLong(tokens[from + 1]);
+            return ttl > 0 ? ttl : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // get <key> [version|deflate] - with 'version' the reply is "<version> <value>", or "0" if absent,
+    // with 'deflate' the value as a zlib stream (as stored, when the engine keeps it deflated)
     private void handleGet(int tag, String[] commandTokens) throws IOException {
-        if (commandTokens.length != 1) {
+        boolean ifModified = commandTokens.length == 3 && commandTokens[1].equals("ifmodified");
+        if (commandTokens.length != 1 && !ifModified && (commandTokens.length != 2
+                || !commandTokens[1].equals("version") && !commandTokens[1].equals("deflate"))) {
             this.conn.send(tag, "Invalid number of arguments for 'get'. Requires key.".getBytes());
             return;
         }
 
         String key = commandTokens[0];
+        if (ifModified) { // get <key> ifmodified <version> - just "<version>" if unchanged, "0" if absent
+            long known = parseVersion(commandTokens[2]);
+            if (known < 0) {
+                this.conn.send(tag, "Invalid version for 'get'.".getBytes());
+                return;
+            }
+            this.conn.send(tag, versionedFrame("", this.data.getIfModified(key, known)));
+            return;
+        }
+        if (commandTokens.length == 2 && commandTokens[1].equals("deflate")) {
+            byte[] deflated = this.data.getDeflated(key);
+            this.conn.send(tag, deflated == null ? new byte[0] : deflated);
+            return;
+        }
+        if (commandTokens.length == 2) {
+            Versioned versioned = this.data.getVersioned(key);
+            if (versioned == null) {
+                this.conn.send(tag, "0".getBytes());
+            } else {
+                this.conn.send(tag, (versioned.version + " " + new String(versioned.value)).getBytes());
+            }
+            return;
+        }
         byte[] value = this.data.get(key);
 
         if (value != null) {
@@ -104,6 +223,19 @@ public class CommandExecutor implements Runnable {
         }
     }
 
+    // Reply to a conditional read: "<prefix><version> <value>", "<prefix><version>" if not modified, "<prefix>0" if absent
+    private static byte[] versionedFrame(String prefix, Versioned v) {
+        if (v == null) return (prefix + "0").getBytes();
+        byte[] head = (prefix + v.version).getBytes();
+        if (v.value == null) return head;
+        byte[] frame = Arrays.copyOf(head, head.length + 1 + v.value.length);
+        frame[head.length] = ' ';
+        System.arraycopy(v.value, 0, frame, head.length + 1, v.value.length);
+        return frame;
+    }
+
+    // multiget <n> <key>... [ifmodified <version>...] - one frame per key: "<key> <value>" or "<key>" if absent,
+    // or with the versions a conditional read frame, "<key> <version>" alone for the keys not modified
     private void handleMultiGet(int tag, String[] commandTokens) throws IOException {
         if (commandTokens.length < 2) {
             this.conn.send(tag, "Invalid arguments! Requires at least one key.".getBytes());
@@ -118,11 +250,29 @@ public class CommandExecutor implements Runnable {
             return;
         }
 
-        if (commandTokens.length != 1 + n) {
+        boolean ifModified = n > 0 && commandTokens.length == 2 + 2 * n && commandTokens[1 + n].equals("ifmodified");
+        if (commandTokens.length != 1 + n && !ifModified) {
             this.conn.send(tag, ("Invalid arguments! Command 'multiGet' requires " + n + " keys.").getBytes());
             return;
         }
 
+        if (ifModified) {
+            Map<String, Long> known = new LinkedHashMap<>();
+            for (int i = 1; i <= n; i++) {
+                long version = parseVersion(commandTokens[1 + n + i]);
+                if (version < 0) {
+                    this.conn.send(tag, ("Invalid version for key '" + commandTokens[i] + "'.").getBytes());
+                    return;
+                }
+                known.put(commandTokens[i], version);
+            }
+            Map<String, Versioned> results = this.data.multiGetIfModified(known);
+            for (String key : known.keySet()) {
+                this.conn.send(tag, versionedFrame(key + " ", results.get(key)));
+            }
+            return;
+        }
+
         Set<String> keys = new HashSet<>(Arrays.asList(commandTokens).subList(1, commandTokens.length));
         Map<String, byte[]> results = this.data.multiGet(keys);
 
@@ -137,6 +287,7 @@ public class CommandExecutor implements Runnable {
     }
 
 
+    // multiput <n> <key> <value>... [ttl <ms>]
     private void handleMultiPut(int tag, String[] commandTokens) throws IOException {
         if (commandTokens.length < 2) {
             conn.send(tag, "Invalid arguments! Requires at least one key-value pair.".getBytes());
@@ -151,50 +302,399 @@ public class CommandExecutor implements Runnable {
             return;
         }
 
-        if (commandTokens.length != 1 + (2 * n)) {
+        if (commandTokens.length != 1 + (2 * n) && commandTokens.length != 3 + (2 * n)) {
             this.conn.send(tag, ("Invalid arguments! Command 'multiPut' requires " + n + " key-value pairs.").getBytes());
             return;
         }
 
+        long ttl = commandTokens.length == 3 + (2 * n) ? parseTtl(commandTokens, 1 + (2 * n)) : 0;
+        if (ttl < 0) {
+            this.conn.send(tag, "Invalid TTL for 'multiPut'. Requires ttl <milliseconds>.".getBytes());
+            return;
+        }
+
         Map<String, byte[]> mapValues = new HashMap<>();
-        for (int i = 1; i < commandTokens.length; i += 2) {
+        for (int i = 1; i < 1 + (2 * n); i += 2) {
             String key = commandTokens[i];
             String value = commandTokens[i + 1];
             mapValues.put(key, value.getBytes());
         }
 
-        this.data.multiPut(mapValues);
+        this.data.multiPut(mapValues, ttl);
         this.conn.send(tag, "All keys updated successfully.".getBytes());
     }
 
+    // cas <key> <expectedVersion> <value> - expectedVersion 0 only creates the key
+    private void handleCas(int tag, String[] commandTokens) throws IOException {
+        if (commandTokens.length != 3) {
+            this.conn.send(tag, "Invalid number of arguments for 'cas'. Requires key, expected version and value.".getBytes());
+            return;
+        }
+
+        long expected = parseVersion(commandTokens[1]);
+        if (expected < 0) {
+            this.conn.send(tag, "Invalid version for 'cas'.".getBytes());
+            return;
+        }
+
+        String key = commandTokens[0];
+        CasResult result = this.data.compareAndSet(key, expected, commandTokens[2].getBytes());
+        if (result.applied) {
+            this.conn.send(tag, ("Key '" + key + "' updated successfully, version " + result.versionOf(key) + ".").getBytes());
+        } else {
+            this.conn.send(tag, ("Version conflict, current version of '" + key + "' is " + result.versionOf(key) + ".").getBytes());
+        }
+    }
+
+    // multicas <n> <key> <expectedVersion> <value>... - all keys are written or none
+    private void handleMultiCas(int tag, String[] commandTokens) throws IOException {
+        int n;
+        try {
+            n = Integer.parseInt(commandTokens.length == 0 ? "" : commandTokens[0]);
+        } catch (NumberFormatException ex) {
+            this.conn.send(tag, "Invalid number of keys specified.".getBytes());
+            return;
+        }
+
+        if (n < 1 || commandTokens.length != 1 + (3 * n)) {
+            this.conn.send(tag, ("Invalid arguments! Command 'multiCas' requires " + n + " key, version and value triples.").getBytes());
+            return;
+        }
+
+        Map<String, Long> expected = new HashMap<>();
+        Map<String, byte[]> mapValues = new HashMap<>();
+        for (int i = 1; i < commandTokens.length; i += 3) {
+            long version = parseVersion(commandTokens[i + 1]);
+            if (version < 0) {
+                this.conn.send(tag, ("Invalid version for key '" + commandTokens[i] + "'.").getBytes());
+                return;
+            }
+            expected.put(commandTokens[i], version);
+            mapValues.put(commandTokens[i], commandTokens[i + 2].getBytes());
+        }
+
+        CasResult result = this.data.compareAndSet(expected, mapValues);
+        StringJoiner versions = new StringJoiner(" ");
+        for (String key : expected.keySet()) {
+            versions.add(key + "=" + result.versionOf(key));
+        }
+        if (result.applied) {
+            this.conn.send(tag, ("All keys updated successfully, versions " + versions + ".").getBytes());
+        } else {
+            this.conn.send(tag, ("Version conflict, current versions " + versions + ".").getBytes());
+        }
+    }
+
+    // Optimistic transactions keep no state in the server: the client reads with txread, remembers the versions and
+    // sends them with its writes in txcommit, which validates and applies them at once.
+
+    // txread <n> <key>... - one "<key> <version> <value>" frame per key, all read at one snapshot ("<key> 0" if absent)
+    private void handleTxRead(int tag, String[] commandTokens) throws IOException {
+        int n = commandTokens.length == 0 ? -1 : parseCount(commandTokens[0]);
+        if (n < 1 || commandTokens.length != 1 + n) {
+            this.conn.send(tag, "Invalid arguments for 'txread'. Requires the number of keys and the keys.".getBytes());
+            return;
+        }
+
+        Set<String> keys = new LinkedHashSet<>(Arrays.asList(commandTokens).subList(1, commandTokens.length));
+        Map<String, Versioned> read = this.data.multiGetVersioned(keys);
+        for (String key : keys) {
+            Versioned v = read.get(key);
+            this.conn.send(tag, (v == null ? key + " 0" : key + " " + v.version + " " + new String(v.value)).getBytes());
+        }
+    }
+
+    // txcommit <r> <key> <version>... <w> <key> <value>... - the r keys read at their versions, then the w writes.
+    // Replies "Committed at version <v>." or "Aborted, conflicting <key>=<version>...".
+    private void handleTxCommit(int tag, String[] commandTokens) throws IOException {
+        int r = commandTokens.length == 0 ? -1 : parseCount(commandTokens[0]);
+        if (r > (commandTokens.length - 2) / 2) r = -1; // More reads than tokens, before any index is computed from it
+        int writesAt = 1 + 2 * Math.max(r, 0);
+        int w = r < 0 || commandTokens.length <= writesAt ? -1 : parseCount(commandTokens[writesAt]);
+        if (w > (commandTokens.length - writesAt - 1) / 2) w = -1;
+        if (w < 0 || r + w == 0 || commandTokens.length != writesAt + 1 + 2 * w) {
+            this.conn.send(tag, "Invalid arguments for 'txcommit'. Requires <r> <key> <version>... <w> <key> <value>...".getBytes());
+            return;
+        }
+
+        Map<String, Long> readVersions = new HashMap<>();
+        for (int i = 1; i < writesAt; i += 2) {
+            long version = parseVersion(commandTokens[i + 1]);
+            if (version < 0) {
+                this.conn.send(tag, ("Invalid version for key '" + commandTokens[i] + "'.").getBytes());
+                return;
+            }
+            readVersions.put(commandTokens[i], version);
+        }
+        Map<String, byte[]> writes = new HashMap<>();
+        for (int i = writesAt + 1; i < commandTokens.length; i += 2) {
+            writes.put(commandTokens[i], commandTokens[i + 1].getBytes());
+        }
+
+        CasResult result = this.data.commit(readVersions, writes);
+        if (result.applied) {
+            long version = result.versions.values().stream().findAny().orElse(0L);
+            this.conn.send(tag, (w == 0 ? "Committed, nothing written." : "Committed at version " + version + ".").getBytes());
+        } else {
+            StringJoiner conflicts = new StringJoiner(" ");
+            for (Map.Entry<String, Long> e : result.versions.entrySet()) {
+                conflicts.add(e.getKey() + "=" + e.getValue());
+            }
+            this.conn.send(tag, ("Aborted, conflicting " + conflicts + ".").getBytes());
+        }
+    }
+
+    // incr|decr <key> [delta] - replies the new value of the counter
+    private void handleIncrement(int tag, String[] commandTokens, boolean decrement) throws IOException {
+        if (commandTokens.length != 1 && commandTokens.length != 2) {
+            this.conn.send(tag, ("Invalid number of arguments for '" + this.command + "'. Requires key and optionally a delta.").getBytes());
+            return;
+        }
+
+        long delta = 1;
+        if (commandTokens.length == 2) {
+            Long n = Bytes.parseLong(commandTokens[1].getBytes());
+            if (n == null || n == Long.MIN_VALUE) {
+                this.conn.send(tag, ("Invalid delta for '" + this.command + "'.").getBytes());
+                return;
+            }
+            delta = n;
+        }
+
+        try {
+            long value = this.data.increment(commandTokens[0], decrement ? -delta : delta);
+            this.conn.send(tag, Long.toString(value).getBytes());
+        } catch (IllegalArgumentException e) {
+            this.conn.send(tag, ("Cannot " + this.command + " '" + commandTokens[0] + "': " + e.getMessage() + ".").getBytes());
+        }
+    }
+
+    // append <key> <value> - replies the new length of the value
+    private void handleAppend(int tag, String[] commandTokens) throws IOException {
+        if (commandTokens.length != 2) {
+            this.conn.send(tag, "Invalid number of arguments for 'append'. Requires key and value.".getBytes());
+            return;
+        }
+
+        byte[] value = commandTokens[1].getBytes();
+        int length = this.data.append(commandTokens[0], value, 0, value.length);
+        this.conn.send(tag, ("Key '" + commandTokens[0] + "' now has " + length + " bytes.").getBytes());
+    }
+
+    // push <key> <item> [max] - replies the new length of the list
+    private void handlePush(int tag, String[] commandTokens) throws IOException {
+        if (commandTokens.length != 2 && commandTokens.length != 3) {
+            this.conn.send(tag, "Invalid number of arguments for 'push'. Requires key, item and optionally a maximum length.".getBytes());
+            return;
+        }
+
+        int max = 0;
+        if (commandTokens.length == 3) {
+            try {
+                max = Integer.parseInt(commandTokens[2]);
+            } catch (NumberFormatException ex) {
+                max = -1;
+            }
+            if (max < 1) {
+                this.conn.send(tag, "Invalid maximum length for 'push'.".getBytes());
+                return;
+            }
+        }
+
+        int length = this.data.push(commandTokens[0], commandTokens[1].getBytes(), max);
+        this.conn.send(tag, ("List '" + commandTokens[0] + "' now has " + length + " items.").getBytes());
+    }
+
+    // pop <key> - replies the item removed from the head of the list, empty if there is none
+    private void handlePop(int tag, String[] commandTokens) throws IOException {
+        if (commandTokens.length != 1) {
+            this.conn.send(tag, "Invalid number of arguments for 'pop'. Requires key.".getBytes());
+            return;
+        }
+
+        byte[] item = this.data.pop(commandTokens[0]);
+        this.conn.send(tag, item == null ? new byte[0] : item);
+    }
+
+    // scan <prefix> <limit> [after <cursor>] or scan <from> <to> <limit> [after <cursor>].
+    // Streams one "<key> <value>" frame per key, then a last frame without a space: the cursor to continue after,
+    // or empty once the range is exhausted.
+    private void handleScan(int tag, String[] commandTokens) throws IOException {
+        int n = commandTokens.length;
+        boolean after = n >= 4 && commandTokens[n - 2].equals("after");
+        int args = after ? n - 2 : n;
+        if (args != 2 && args != 3) {
+            this.conn.send(tag, "Invalid arguments for 'scan'. Requires prefix and limit, or from, to and limit.".getBytes());
+            return;
+        }
+
+        int limit;
+        try {
+            limit = Integer.parseInt(commandTokens[args - 1]);
+        } catch (NumberFormatException ex) {
+            limit = 0;
+        }
+        if (limit < 1 || limit > MAX_SCAN_LIMIT) {
+            this.conn.send(tag, ("Invalid limit for 'scan', must be between 1 and " + MAX_SCAN_LIMIT + ".").getBytes());
+            return;
+        }
+
+        String from = commandTokens[0];
+        String to = args == 3 ? commandTokens[1] : StorageEngine.prefixEnd(from);
+        if (after) from = StorageEngine.after(commandTokens[n - 1]);
+
+        IOException[] failed = new IOException[1];
+        String cursor = this.data.scan(from, to, limit, (key, value) -> {
+            if (failed[0] != null) return;
+            byte[] k = key.getBytes();
+            byte[] frame = Arrays.copyOf(k, k.length + 1 + value.length);
+            frame[k.length] = ' ';
+            System.arraycopy(value, 0, frame, k.length + 1, value.length);
+            try {
+                this.conn.send(tag, frame);
+            } catch (IOException e) {
+                failed[0] = e;
+            }
+        });
+        if (failed[0] != null) throw failed[0];
+        this.conn.send(tag, cursor == null ? new byte[0] : cursor.getBytes());
+    }
+
+    // findkeys <value> [limit] - one frame per key holding the value, in key order, then an empty frame
+    private void handleFindKeys(int tag, String[] commandTokens) throws IOException {
+        if (commandTokens.length != 1 && commandTokens.length != 2) {
+            this.conn.send(tag, "Invalid arguments for 'findkeys'. Requires value and optionally limit.".getBytes());
+            return;
+        }
+
+        int limit = MAX_SCAN_LIMIT;
+        if (commandTokens.length == 2) {
+            try {
+                limit = Integer.parseInt(commandTokens[1]);
+            } catch (NumberFormatException ex) {
+                limit = 0;
+            }
+        }
+        if (limit < 1 || limit > MAX_SCAN_LIMIT) {
+            this.conn.send(tag, ("Invalid limit for 'findkeys', must be between 1 and " + MAX_SCAN_LIMIT + ".").getBytes());
+            return;
+        }
+
+        IOException[] failed = new IOException[1];
+        this.data.findKeys(commandTokens[0].getBytes(), limit, key -> {
+            if (failed[0] != null) return;
+            try {
+                this.conn.send(tag, key.getBytes());
+            } catch (IOException e) {
+                failed[0] = e;
+            }
+        });
+        if (failed[0] != null) throw failed[0];
+        this.conn.send(tag, new byte[0]);
+    }
+
+    // aggregate keys <n> <key>..., aggregate prefix <prefix> or aggregate range <from> <to>.
+    // Replies a single "count <c> sum <s> min <m> max <m> skipped <k>" frame, without min and max if count is 0.
+    private void handleAggregate(int tag, String[] commandTokens) throws IOException {
+        int n = commandTokens.length;
+        String mode = n == 0 ? "" : commandTokens[0];
+        Aggregate res;
+        try {
+            if (mode.equals("prefix") && n == 2) {
+                res = this.data.aggregate(commandTokens[1], StorageEngine.prefixEnd(commandTokens[1]));
+            } else if (mode.equals("range") && n == 3) {
+                res = this.data.aggregate(commandTokens[1], commandTokens[2]);
+            } else if (mode.equals("keys") && n >= 3 && parseCount(commandTokens[1]) == n - 2) {
+                res = this.data.aggregate(Arrays.asList(commandTokens).subList(2, n));
+            } else {
+                this.conn.send(tag, "Invalid arguments for 'aggregate'. Requires keys <n> <key>..., prefix <prefix> or range <from> <to>.".getBytes());
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            this.conn.send(tag, ("Cannot aggregate: " + e.getMessage() + ".").getBytes());
+            return;
+        }
+
+        StringBuilder reply = new StringBuilder("count ").append(res.count).append(" sum ").append(res.sum);
+        if (res.count > 0) reply.append(" min ").append(res.min).append(" max ").append(res.max);
+        reply.append(" skipped ").append(res.skipped);
+        this.conn.send(tag, reply.toString().getBytes());
+    }
+
+    // Number of keys given by a client, -1 if malformed
+    private static int parseCount(String token) {
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // Version given by a client, -1 if malformed
+    private static long parseVersion(String token) {
+        try {
+            long version = Long.parseLong(token);
+            return version >= 0 ? version : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private void handleGetWhen(int tag, String[] commandTokens) {
         try {
-            if (commandTokens.length != 3) {
-                this.conn.send(tag, "Invalid number of arguments for 'getWhen'. Requires key keyCond valueCond.".getBytes());
+            if (commandTokens.length < 3) {
+                this.conn.send(tag, "Invalid number of arguments for 'getWhen'. Requires key keyCond valueCond or key condition.".getBytes());
                 return;
             }
 
             String key = commandTokens[0];
-            String keyCond = commandTokens[1];
-            String valueCond = commandTokens[2];
+            Predicate condition;
+            if (commandTokens.length == 3 && !commandTokens[2].equals("absent")) { // getwhen key keyCond valueCond
+                condition = Predicate.equalTo(commandTokens[1], commandTokens[2].getBytes());
+            } else { // getwhen key <condition>, e.g. getwhen key a = 1 and ( b >= 10 or c prefix x ), getwhen key s absent
+                try {
+                    condition = Predicate.parse(commandTokens, 1);
+                } catch (IllegalArgumentException e) {
+                    this.conn.send(tag, ("Invalid condition for 'getWhen': " + e.getMessage()).getBytes());
+                    return;
+                }
+            }
 
-            // Use getWhen to wait for the condition to be met
-            byte[] value = this.data.getWhen(key, keyCond, valueCond.getBytes());
+            // Register the condition and return - the reply is sent by the write that satisfies it
+            CompletableFuture<byte[]> pending = this.data.getWhenAsync(key, condition);
+            this.pendingGetWhens.add(pending);
+            pending.whenComplete((value, ex) -> {
+                this.pendingGetWhens.remove(pending);
+                if (!pending.isCancelled()) this.replyGetWhen(tag, value, ex);
+            });
+        } catch (Exception e) {
+            this.replyGetWhen(tag, null, e);
+        }
+    }
 
-            if (value != null) {
+    // Replies with the counters of the namespace, e.g. "hits=10 misses=2 evictions=0 pendingGetWhens=1 ... ops=12"
+    private void handleStats(int tag) throws IOException {
+        StringJoiner reply = new StringJoiner(" ");
+        for (Map.Entry<String, Long> stat : this.namespace.getStats().entrySet()) {
+            reply.add(stat.getKey() + "=" + stat.getValue());
+        }
+        this.conn.send(tag, reply.toString().getBytes());
+    }
+
+    private void replyGetWhen(int tag, byte[] value, Throwable ex) {
+        try {
+            if (ex != null) {
+                // Catch-all for unexpected exceptions
+                System.err.println("Unexpected error while handling 'getWhen' for client: " + this.client_username + " - " + ex.getMessage());
+                ex.printStackTrace(); // Log the full stack trace for debugging
+                this.conn.send(tag, "Unexpected error occurred while processing 'getWhen'.".getBytes());
+            } else if (value != null) {
                 this.conn.send(tag, value);
             } else {
                 this.conn.send(tag, "".getBytes());
             }
-        } catch (Exception e) {
-            // Catch-all for unexpected exceptions
-            System.err.println("Unexpected error while handling 'getWhen' for client: " + this.client_username + " - " + e.getMessage());
-            e.printStackTrace(); // Log the full stack trace for debugging
-            try {
-                this.conn.send(tag, "Unexpected error occurred while processing 'getWhen'.".getBytes());
-            } catch (IOException ex) {
-                System.err.println("Failed to notify client of unexpected error: " + ex.getMessage());
-            }
+        } catch (IOException e) {
+            System.err.println("Failed to send 'getWhen' reply to client " + this.client_username + ": " + e.getMessage());
         }
     }
 
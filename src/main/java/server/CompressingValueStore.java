@@ -0,0 +1,188 @@
+package server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * CompressingValueStore - keeps the values of at least `threshold` bytes deflated in another ValueStore.
+ *
+ * A value is only kept deflated if that saves at least 1/MIN_SAVING of it, otherwise (e.g. already compressed
+ * data) it goes to the inner store as is and costs nothing on reads. Deflated values are inflated on every load,
+ * unless the client takes them still deflated (loadDeflated). The counters in getStats() give the ratio reached
+ * and the CPU time spent, to tune the threshold.
+ *
+ * Stores that persist values (LogStructuredValueStore) are not supported: their recovered references would not
+ * tell deflated values apart.
+ */
+public class CompressingValueStore implements ValueStore {
+    public static final int DEFAULT_THRESHOLD = 1024;
+    private static final int MIN_SAVING = 8;
+
+    private final ValueStore inner;
+    private final int threshold;
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final LongAdder deflated = new LongAdder();   // Values kept deflated
+    private final LongAdder rawBytes = new LongAdder();   // Their length before...
+    private final LongAdder storedBytes = new LongAdder(); // ...and after deflating
+    private final LongAdder deflateNanos = new LongAdder();
+    private final LongAdder inflations = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    // Reference of a value kept deflated
+    private static final class Deflated {
+        private final Object ref;
+        private final int length; // Inflated
+        private final int stored;
+
+        private Deflated(Object ref, int length, int stored) {
+            this.ref = ref;
+            this.length = length;
+            this.stored = stored;
+        }
+    }
+
+    public CompressingValueStore(ValueStore inner) {
+        this(inner, DEFAULT_THRESHOLD);
+    }
+
+    // Builder for the smallest value length worth deflating
+    public CompressingValueStore(ValueStore inner, int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("Compression threshold must be positive: " + threshold);
+        this.inner = inner;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Object store(byte[] buf, int off, int len) {
+        return store(null, buf, off, len, 0);
+    }
+
+    @Override
+    public Object store(Key key, byte[] buf, int off, int len, long expiresAt) {
+        if (len < this.threshold) return this.inner.store(key, buf, off, len, expiresAt);
+
+        long startTime = System.nanoTime();
+        byte[] out = deflate(this.deflaters.get(), buf, off, len, len - len / MIN_SAVING);
+        this.deflateNanos.add(System.nanoTime() - startTime);
+        if (out == null) return this.inner.store(key, buf, off, len, expiresAt); // Not worth it
+
+        this.deflated.increment();
+        this.rawBytes.add(len);
+        this.storedBytes.add(out.length);
+        return new Deflated(this.inner.store(key, out, 0, out.length, expiresAt), len, out.length);
+    }
+
+    @Override
+    public byte[] load(Object ref) {
+        if (!(ref instanceof Deflated)) return this.inner.load(ref);
+        Deflated d = (Deflated) ref;
+        byte[] data = this.inner.load(d.ref);
+        if (data == null) return null;
+
+        long startTime = System.nanoTime();
+        Inflater inflater = this.inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] value = new byte[d.length];
+        try {
+            int n = 0;
+            while (n < value.length && !inflater.finished()) {
+                int k = inflater.inflate(value, n, value.length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new DataFormatException("truncated");
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt deflated value", e);
+        }
+        this.inflateNanos.add(System.nanoTime() - startTime);
+        this.inflations.increment();
+        return value;
+    }
+
+    // The stored bytes as they are when kept deflated
+    @Override
+    public byte[] loadDeflated(Object ref) {
+        if (!(ref instanceof Deflated)) return ValueStore.super.loadDeflated(ref);
+        return this.inner.load(((Deflated) ref).ref);
+    }
+
+    @Override
+    public void release(Object ref) {
+        this.inner.release(ref instanceof Deflated ? ((Deflated) ref).ref : ref);
+    }
+
+    @Override
+    public void committed(Object ref, long version) {
+        this.inner.committed(ref instanceof Deflated ? ((Deflated) ref).ref : ref, version);
+    }
+
+    @Override
+    public void removed(Key key, long version) {
+        this.inner.removed(key, version);
+    }
+
+    @Override
+    public int footprint(Object ref, int length) {
+        return ref instanceof Deflated ? ((Deflated) ref).stored : this.inner.footprint(ref, length);
+    }
+
+    @Override
+    public long sharedBytes() {
+        return this.inner.sharedBytes();
+    }
+
+    @Override
+    public long recover(Recovery recovery) throws IOException {
+        return this.inner.recover(recovery);
+    }
+
+    // Values kept deflated, their size as a percentage of the original, and the CPU time spent on them
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>(this.inner.getStats());
+        long raw = this.rawBytes.sum();
+        stats.put("deflatedValues", this.deflated.sum());
+        stats.put("deflatedPercent", raw == 0 ? 100 : this.storedBytes.sum() * 100 / raw);
+        stats.put("deflateMicros", this.deflateNanos.sum() / 1000);
+        stats.put("inflations", this.inflations.sum());
+        stats.put("inflateMicros", this.inflateNanos.sum() / 1000);
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inner.close();
+    }
+
+    // Deflates buf[off..off+len) as a zlib stream, null if it takes more than `max` bytes
+    static byte[] deflate(Deflater deflater, byte[] buf, int off, int len, int max) {
+        deflater.reset();
+        deflater.setInput(buf, off, len);
+        deflater.finish();
+        byte[] out = new byte[Math.max(max, 0)];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == out.length) return null;
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // Deflates a whole value, however much it takes
+    static byte[] deflate(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            return deflate(deflater, value, 0, value.length, value.length + value.length / 1000 + 64);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -1,110 +1,1516 @@
 package server;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
-public class DataManager {
-    private Map<String, byte[]> dataMap = new HashMap<>(); // Map <keyname,data>
-    private Lock l_manager = new ReentrantLock();
-    private Map<String,Condition> condMap = new HashMap<>(); // Map of conditions to each key
+public class DataManager implements StorageEngine {
+    static final int DEFAULT_STRIPES = 64;
+    static final long EXPIRY_TICK_MILLIS = 10;
+    static final long ANY_VERSION = -1; // Expected version of an unconditional write
+    static final byte LIST_SEPARATOR = ' ';
+    static final int PARALLEL_AGGREGATE = 8192; // Keys from which an aggregation is split across the fork-join pool
 
-    // Single Write 
-    public boolean put(String key, byte[] value) {
-        l_manager.lock();
+    private final Stripe[] stripes; // Each key belongs to exactly one stripe
+    private final int stripeMask;
+    private final AtomicInteger pendingWaiters = new AtomicInteger(0); // getWhens registered and not yet completed
+    private final VersionManager versions = new VersionManager();
+    private final ValueStore store; // Holds the bytes of the values, versions only keep its references
+
+    private final long maxBytes;
+    private final EvictionPolicy policy; // null when unbounded
+    private final EvictionPolicy.Evictor evictor = this::evict;
+    private final Queue<Entry> retained = new ConcurrentLinkedQueue<>(); // Entries with older versions kept for a snapshot
+    private final AtomicLong lastPurge = new AtomicLong(-1);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder(); // Hits answered without the value, the client had it
+    private final LongAdder expired = new LongAdder();
+    private final TimingWheel<Entry> expirations = new TimingWheel<>(EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+    private final AtomicBoolean expiring = new AtomicBoolean(false); // Expiry thread started by the first TTL
+    private volatile boolean closed = false;
+    // Keys in order for scans, built by the first scan and then kept by writers under the stripe locks
+    private volatile ConcurrentSkipListMap<Key, Entry> ordered = null;
+    private volatile boolean orderedReady = false;
+    private final Lock l_ordered = new ReentrantLock(); // One thread builds the index
+    // Keys by the digest of their value for findKeys, built by the first one and then kept by writers like `ordered`
+    private volatile Map<Long, Set<Entry>> valueIndex = null;
+    private volatile boolean valueIndexReady = false;
+    private final Lock l_valueIndex = new ReentrantLock();
+    private final WriteAheadLog wal; // null when nothing is persisted
+    private final Lock l_snapshot = new ReentrantLock(); // One snapshot at a time
+
+    // Lock stripe - owns the data and waiters of a disjoint subset of the keys.
+    // The lock is only taken by writers (and getWhen), readers go through the version chains without it.
+    private static class Stripe {
+        private final Lock l_stripe = new ReentrantLock();
+        private final KeyTable<Entry> dataMap = new KeyTable<>(); // Entries by key, each entry is its key
+        private final WatchIndex<Waiter> watchers = new WatchIndex<>(); // pending getWhens on keys of this stripe
+        private final Map<Key, Integer> pins = new HashMap<>(); // Keys read by pending getWhens, never evicted
+    }
+
+    // A key of the map - its version chain and its place in the eviction policy. The entry is the key itself,
+    // so the map holds no separate key object.
+    private static class Entry extends EvictionPolicy.Node {
+        private volatile Version head; // Newest version, written holding the stripe lock
+        private TimingWheel.Timeout<Entry> expiry; // Pending expiration of the head, guarded by the stripe lock
+        private boolean retained;                  // Queued in `retained`, guarded by the stripe lock
+
+        private Entry(Key key) {
+            super(key);
+        }
+    }
+
+    // Value of a key as written by one commit, linked to the value it replaced
+    private static class Version {
+        private final long version;
+        private final Object ref; // Reference of the value in the ValueStore, null if the key was removed
+        private final long expiresAt; // Epoch millis after which the value reads as absent, 0 = never
+        private volatile Version older;
+
+        private Version(long version, Object ref, long expiresAt, Version older) {
+            this.version = version;
+            this.ref = ref;
+            this.expiresAt = expiresAt;
+            this.older = older;
+        }
+    }
+
+    // Marks a chain cut by the garbage collection of old versions - a reader reaching it must take a newer snapshot
+    private static final Version TRIMMED = new Version(-1, null, 0, null);
+
+    // Pending getWhen - completed by the writer that satisfies its condition, no thread waits on it
+    private static class Waiter {
+        private final Key key;
+        private final Predicate predicate;
+        private final Set<Key> keys; // the key and every key in the predicate, pinned while waiting
+        private final int[] order; // stripes of `keys`
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        private boolean registered = true; // guarded by the stripes in `order`
+
+        private Waiter(Key key, Predicate predicate, Set<Key> keys, int[] order) {
+            this.key = key;
+            this.predicate = predicate;
+            this.keys = keys;
+            this.order = order;
+        }
+    }
+
+    public DataManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    // Builder for a specified number of stripes (rounded up to a power of two, 1 = single global lock)
+    public DataManager(int nStripes) {
+        this(nStripes, new HeapValueStore());
+    }
+
+    // Builder for a specified value store, e.g. SlabValueStore to keep values off-heap
+    public DataManager(ValueStore store) {
+        this(DEFAULT_STRIPES, store);
+    }
+
+    public DataManager(int nStripes, ValueStore store) {
+        this(nStripes, store, Long.MAX_VALUE);
+    }
+
+    // Builder for a memory budget: once keys and values take more than `maxBytes`, the coldest keys are evicted
+    public DataManager(int nStripes, ValueStore store, long maxBytes) {
+        this(nStripes, store, maxBytes, null);
+    }
+
+    // Builder for a durable store: the log is replayed first, then every write is appended to it
+    // and only returns once it reached the log's durability level
+    public DataManager(int nStripes, ValueStore store, long maxBytes, WriteAheadLog wal) {
+        this.store = store;
+        this.wal = wal;
+        if (maxBytes < 1) throw new IllegalArgumentException("Memory budget must be positive: " + maxBytes);
+        this.maxBytes = maxBytes;
+        this.policy = maxBytes == Long.MAX_VALUE ? null : new EvictionPolicy(maxBytes, store::sharedBytes);
+        if (nStripes < 1) throw new IllegalArgumentException("Number of stripes must be positive: " + nStripes);
+        int size = Integer.highestOneBit(nStripes);
+        if (size < nStripes) size <<= 1;
+
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeMask = size - 1;
+
+        recoverStore();
+        if (wal != null) recover();
+    }
+
+    // Adopts the values a persistent store (e.g. LogStructuredValueStore) kept from an earlier run at the versions
+    // they were written at, scheduling their expiration again. Values that expired while the server was down are dropped.
+    private void recoverStore() {
+        try {
+            long last = this.store.recover((key, ref, length, version, expiresAt) -> {
+                if (isExpired(expiresAt)) {
+                    this.store.release(ref);
+                    return;
+                }
+                Stripe stripe = stripeFor(key);
+                stripe.l_stripe.lock();
+                try {
+                    account(install(stripe, key, ref, version, expiresAt), this.store.footprint(ref, length));
+                } finally {
+                    stripe.l_stripe.unlock();
+                }
+            });
+            this.versions.advance(last);
+            maintain();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to recover the value store", e);
+        }
+    }
+
+    // Where snapshots of a durable store are kept, next to its log
+    public Path getSnapshotPath() {
+        return this.wal == null ? null : this.wal.getPath().resolveSibling(this.wal.getPath().getFileName() + ".snapshot");
+    }
+
+    // Rebuilds the map from the last snapshot (loaded in parallel) and the log written after it.
+    // Records of a key are in commit order, so the last one wins.
+    private void recover() {
         try {
-            if (value.length==0) return false;
-            this.dataMap.put(key, value);
-            
-            if (this.condMap.containsKey(key)) {
-                Condition cond = this.condMap.get(key);
-                cond.signalAll(); // Notify all waiting threads of this key 
+            long after = 0;
+            Path snapshot = getSnapshotPath();
+            if (Files.exists(snapshot)) {
+                after = SnapshotFile.load(snapshot, Runtime.getRuntime().availableProcessors(), this::restore);
+                this.versions.advance(after);
+                maintain();
             }
-            else {
-                // if doesn't exist create a new entry on map with a new condition
-                Condition cond = l_manager.newCondition();
-                this.condMap.put(key, cond);
+
+            long last = this.wal.replay(after, (version, expiresAt, values) -> {
+                for (Map.Entry<String, byte[]> e : values.entrySet()) {
+                    load(Key.of(e.getKey()), e.getValue(), version, expiresAt);
+                }
+                maintain();
+            });
+            this.versions.advance(last);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to recover from " + this.wal.getPath(), e);
+        }
+    }
+
+    // Installs a value of the snapshot at the version it was written at - nothing reads yet, so it needs no commit
+    private void restore(Key key, byte[] value, long version, long expiresAt) {
+        if (isExpired(expiresAt)) return; // Expired while the server was down
+        Object ref = this.store.store(key, value, 0, value.length, expiresAt);
+        Stripe stripe = stripeFor(key);
+        stripe.l_stripe.lock();
+        try {
+            account(install(stripe, key, ref, version, expiresAt), this.store.footprint(ref, value.length));
+        } finally {
+            stripe.l_stripe.unlock();
+        }
+    }
+
+    // Snapshots replace the prefix of the write-ahead log, there are none without one
+    @Override
+    public boolean supportsSnapshots() {
+        return this.wal != null;
+    }
+
+    // Writes a point-in-time snapshot of every key without stopping writers, then deletes the log segments it
+    // covers. Returns the number of keys written.
+    @Override
+    public long snapshot() throws IOException {
+        if (this.wal == null) throw new IllegalStateException("Snapshots need a write-ahead log");
+
+        this.l_snapshot.lock();
+        try {
+            // Every record of the closed segments was given a version up to `barrier` - wait until all are visible
+            long segment = this.wal.rotate();
+            long barrier = this.versions.lastBegun();
+            while (this.versions.current() < barrier) {
+                Thread.yield();
+            }
+
+            while (true) {
+                long snapshot = this.versions.open();
+                try (SnapshotFile.Writer writer = SnapshotFile.create(getSnapshotPath())) {
+                    long keys = writeAt(writer, snapshot);
+                    if (keys >= 0) {
+                        writer.finish(snapshot);
+                        this.wal.deleteSegments(segment);
+                        return keys;
+                    }
+                } finally {
+                    closeSnapshot(snapshot);
+                }
+            }
+        } finally {
+            this.l_snapshot.unlock();
+        }
+    }
+
+    // Writes the value of every key at `snapshot`, or returns -1 if one was trimmed before the snapshot was pinned
+    private long writeAt(SnapshotFile.Writer writer, long snapshot) throws IOException {
+        long keys = 0;
+        for (Stripe stripe : this.stripes) {
+            List<Entry> entries = new ArrayList<>(stripe.dataMap.size());
+            stripe.dataMap.forEach(entries::add);
+            for (Entry e : entries) {
+                Version v = readAt(e, snapshot);
+                if (v == null) continue;
+                byte[] value = v == TRIMMED ? null : this.store.load(v.ref);
+                if (value == null) return -1;
+                writer.add(e, value, v.version, v.expiresAt);
+                keys++;
+            }
+        }
+        return keys;
+    }
+
+    // Installs a recovered value at the version it was logged with, without logging it again. A value that expired
+    // while the server was down, or an empty one (a list popped empty), still removes the older value of the key.
+    private void load(Key key, byte[] value, long version, long expiresAt) {
+        boolean live = value.length > 0 && !isExpired(expiresAt);
+        Object ref = live ? this.store.store(key, value, 0, value.length, expiresAt) : null;
+        Stripe stripe = stripeFor(key);
+        stripe.l_stripe.lock();
+        try {
+            Entry old = stripe.dataMap.get(key);
+            if (old == null ? !live : old.head.version >= version) { // Nothing to remove, or already recovered newer
+                if (live) this.store.release(ref);
+                return;
+            }
+            this.versions.advance(version); // Nothing reads yet, the logged version is published as is
+            Entry e = install(stripe, key, ref, version, live ? expiresAt : 0);
+            if (live) this.store.committed(ref, version);
+            account(e, live ? this.store.footprint(ref, value.length) : -1);
+            trim(stripe, e, this.versions.oldestVisible());
+        } finally {
+            stripe.l_stripe.unlock();
+        }
+    }
+
+    // Waits until a logged write reached the durability level of the log
+    private static void awaitDurable(CompletableFuture<Void> durable) {
+        if (durable == null) return;
+        try {
+            durable.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw new UncheckedIOException("Write could not be logged", (IOException) cause);
+            throw e;
+        }
+    }
+
+    public int getStripeCount() {
+        return this.stripes.length;
+    }
+
+    private int stripeIndex(Key key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & this.stripeMask;
+    }
+
+    private Stripe stripeFor(Key key) {
+        return this.stripes[stripeIndex(key)];
+    }
+
+    // Stripes covering the given keys, in ascending order - the global lock acquisition order
+    private int[] stripesOf(Collection<Key> keys) {
+        Set<Integer> indexes = new TreeSet<>();
+        for (Key key : keys) {
+            indexes.add(stripeIndex(key));
+        }
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void lockAll(int[] order) {
+        for (int i : order) {
+            this.stripes[i].l_stripe.lock();
+        }
+    }
+
+    private void unlockAll(int[] order) {
+        for (int i = order.length - 1; i >= 0; i--) {
+            this.stripes[order[i]].l_stripe.unlock();
+        }
+    }
+
+    // Bytes a key takes against the budget - the bytes of the key, the value and the bookkeeping
+    private static int weigh(Key key, int valueLength) {
+        return key.length() + valueLength + EvictionPolicy.ENTRY_OVERHEAD;
+    }
+
+    // Whether a value with the given expiration (0 = never) reads as absent by now
+    private static boolean isExpired(long expiresAt) {
+        return expiresAt != 0 && expiresAt <= System.currentTimeMillis();
+    }
+
+    // Value of the key, must be called holding the key's stripe lock (the newest version is then committed)
+    private byte[] read(Key key) {
+        Entry e = stripeFor(key).dataMap.get(key);
+        if (e == null || e.head.ref == null || isExpired(e.head.expiresAt)) return null;
+        return this.store.load(e.head.ref);
+    }
+
+    // Same, for the keys named by predicates
+    private byte[] read(String key) {
+        return read(Key.of(key));
+    }
+
+    // Version of the live value of the key, 0 if absent - must be called holding the key's stripe lock
+    private long versionOf(Stripe stripe, Key key) {
+        Entry e = stripe.dataMap.get(key);
+        return e == null || e.head.ref == null || isExpired(e.head.expiresAt) ? 0 : e.head.version;
+    }
+
+    // Latest committed version of the key without locking (0 if absent), ANY_VERSION if it can no longer be told
+    private long peekVersion(Key key) {
+        Version v = readAt(stripeFor(key).dataMap.get(key), this.versions.current());
+        return v == null ? 0 : v == TRIMMED ? ANY_VERSION : v.version;
+    }
+
+    // Version of the key visible at `snapshot`, null if absent (or expired) then or TRIMMED if no longer available.
+    // Expired values are hidden here already, the expiry thread only removes them later.
+    private Version readAt(Entry e, long snapshot) {
+        Version v = e == null ? null : e.head;
+        while (v != null && v != TRIMMED && v.version > snapshot) {
+            v = v.older;
+        }
+        return v == null || v.ref == null && v != TRIMMED || isExpired(v.expiresAt) ? null : v;
+    }
+
+    // New value of the key at `version`, expiring at `expiresAt` (0 = never), must be called holding the key's
+    // stripe lock. Replaces the pending expiration of the previous value; a null ref removes the key.
+    private Entry install(Stripe stripe, Key key, Object ref, long version, long expiresAt) {
+        Entry e = stripe.dataMap.get(key);
+        Version previous = e == null ? null : e.head;
+        if (e == null) {
+            e = new Entry(key);
+            e.head = new Version(version, ref, expiresAt, null);
+            stripe.dataMap.add(e);
+            ConcurrentSkipListMap<Key, Entry> index = this.ordered;
+            if (index != null) index.put(e, e);
+        } else {
+            e.head = new Version(version, ref, expiresAt, e.head);
+        }
+
+        Map<Long, Set<Entry>> values = this.valueIndex;
+        if (values != null) reindex(values, e, previous, ref);
+        if (ref == null && previous != null && previous.ref != null) this.store.removed(key, version);
+
+        if (e.expiry != null) this.expirations.cancel(e.expiry);
+        e.expiry = expiresAt == 0 ? null : this.expirations.schedule(e, expiresAt);
+        if (e.expiry != null && !this.expiring.get() && this.expiring.compareAndSet(false, true)) {
+            Thread expiryThread = new Thread(this::expireLoop, "expiry");
+            expiryThread.setDaemon(true);
+            expiryThread.start();
+        }
+        return e;
+    }
+
+    // Moves an entry of the value index from the digest of its previous value to the one of its new value (ref, null
+    // once removed), must be called holding the key's stripe lock
+    private void reindex(Map<Long, Set<Entry>> index, Entry e, Version previous, Object ref) {
+        byte[] old = previous == null || previous.ref == null ? null : this.store.load(previous.ref);
+        if (old != null) {
+            index.computeIfPresent(Bytes.digest(old, 0, old.length), (d, keys) -> {
+                keys.remove(e);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+        byte[] value = ref == null ? null : this.store.load(ref);
+        if (value != null) addToValueIndex(index, e, value);
+    }
+
+    private static void addToValueIndex(Map<Long, Set<Entry>> index, Entry e, byte[] value) {
+        index.compute(Bytes.digest(value, 0, value.length), (d, keys) -> {
+            if (keys == null) keys = ConcurrentHashMap.newKeySet();
+            keys.add(e);
+            return keys;
+        });
+    }
+
+    // Drops versions of the key no snapshot from `oldest` on can see, must be called holding the key's stripe lock.
+    // A removed key whose older values became unreachable leaves the map; returns whether it is gone. A key left
+    // with older versions is queued, so they are dropped once the snapshots reading them are closed (purge).
+    private boolean trim(Stripe stripe, Entry e, long oldest) {
+        Version v = e.head;
+        while (v != null && v.version > oldest) {
+            v = v.older;
+        }
+        if (v != null && v.older != null && v.older != TRIMMED) {
+            Version dropped = v.older;
+            v.older = TRIMMED;
+            for (; dropped != null && dropped != TRIMMED; dropped = dropped.older) {
+                if (dropped.ref != null) this.store.release(dropped.ref);
             }
+        }
 
+        if (e.head.ref == null && (e.head.older == null || e.head.older == TRIMMED)) {
+            stripe.dataMap.remove(e);
+            ConcurrentSkipListMap<Key, Entry> index = this.ordered;
+            if (index != null) index.remove(e, e);
             return true;
+        }
+        if (e.head.older != null && e.head.older != TRIMMED && !e.retained) {
+            e.retained = true;
+            this.retained.add(e);
+        }
+        return false;
+    }
+
+    // Records the new stored value length of an entry (-1 once removed), must be called holding its stripe lock
+    private void account(Entry e, int valueLength) {
+        if (this.policy != null) this.policy.recordWrite(e, valueLength < 0 ? 0 : weigh(e, valueLength));
+    }
+
+    // Evicts the entry chosen by the policy unless a pending getWhen reads it.
+    // The removal is a regular commit, so snapshots taken before it still see the value.
+    private boolean evict(EvictionPolicy.Node node) {
+        Entry e = (Entry) node;
+        Stripe stripe = stripeFor(e);
+        stripe.l_stripe.lock();
+        try {
+            if (stripe.dataMap.get(e) != e || e.head.ref == null) return true; // Already gone
+            if (stripe.pins.containsKey(e)) return false;
+
+            long version = this.versions.begin();
+            install(stripe, e, null, version, 0);
+            this.versions.commit(version);
+            account(e, -1);
+            trim(stripe, e, this.versions.oldestVisible());
         } finally {
-            l_manager.unlock();
+            stripe.l_stripe.unlock();
         }
+        return true;
     }
 
-    // Single Read
-    public byte[] get(String key) {
-        l_manager.lock();
+    // Advances the timing wheel every tick and removes the keys whose TTL elapsed, until the store is closed
+    private void expireLoop() {
+        List<Entry> due = new ArrayList<>();
+        while (!this.closed) {
+            try {
+                Thread.sleep(this.expirations.getTickMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+            this.expirations.advance(System.currentTimeMillis(), due);
+            for (Entry e : due) {
+                expire(e);
+            }
+            if (!due.isEmpty()) purge();
+            due.clear();
+        }
+    }
+
+    // Removes an entry whose TTL elapsed, unlike eviction even if pending getWhens read it: they see it absent,
+    // and those waiting for it to be absent are woken. Like eviction, the removal is a regular commit.
+    private void expire(Entry e) {
+        Set<Waiter> satisfied = new LinkedHashSet<>();
+        Stripe stripe = stripeFor(e);
+        stripe.l_stripe.lock();
         try {
+            // Gone or written again meanwhile - a new TTL has its own timeout
+            if (stripe.dataMap.get(e) != e || e.head.ref == null || !isExpired(e.head.expiresAt)) return;
 
-            return this.dataMap.getOrDefault(key, null);
+            long version = this.versions.begin();
+            install(stripe, e, null, version, 0);
+            this.versions.commit(version);
+            account(e, -1);
+            trim(stripe, e, this.versions.oldestVisible());
+            this.expired.increment();
+            if (stripe.watchers.watches(e)) {
+                stripe.watchers.collect(e, null, satisfied);
+            }
         } finally {
-            l_manager.unlock();
+            stripe.l_stripe.unlock();
         }
+
+        resolveAll(satisfied);
     }
 
-    // Multi Write
-    public void multiPut(Map<String, byte[]> mapValues) {
-        l_manager.lock();
+    // Keeps the memory budget after a write, called holding no stripe lock
+    private void maintain() {
+        if (this.policy != null) this.policy.maintenance(this.evictor);
+        purge();
+    }
+
+    // Drops the older versions kept for snapshots closed since the last purge, called holding no stripe lock
+    private void purge() {
+        if (this.retained.isEmpty()) return;
+        long oldest = this.versions.oldestVisible();
+        long last = this.lastPurge.get();
+        if (oldest == last || !this.lastPurge.compareAndSet(last, oldest)) return;
+
+        List<Entry> due = new ArrayList<>();
+        Entry e;
+        while ((e = this.retained.poll()) != null) due.add(e);
+        for (Entry d : due) {
+            Stripe stripe = stripeFor(d);
+            stripe.l_stripe.lock();
+            try {
+                d.retained = false;
+                if (stripe.dataMap.get(d) == d) trim(stripe, d, oldest); // Queued again if still read
+            } finally {
+                stripe.l_stripe.unlock();
+            }
+        }
+    }
+
+    // Unpins a snapshot, releasing the versions only it still read
+    private void closeSnapshot(long snapshot) {
+        this.versions.close(snapshot);
+        purge();
+    }
+
+    private void pin(Key key) {
+        stripeFor(key).pins.merge(key, 1, Integer::sum);
+    }
+
+    private void unpin(Key key) {
+        stripeFor(key).pins.computeIfPresent(key, (k, n) -> n == 1 ? null : n - 1);
+    }
+
+    // Removes the waiter from every atom it watches, must be called holding all stripes of the waiter
+    private void unregister(Waiter w) {
+        if (!w.registered) return;
+        w.registered = false;
+        for (Predicate.Atom atom : w.predicate.atoms()) {
+            stripeFor(Key.of(atom.getKey())).watchers.remove(atom, w);
+        }
+        for (Key key : w.keys) {
+            unpin(key);
+        }
+        this.pendingWaiters.decrementAndGet();
+    }
+
+    // Re-evaluates the whole predicate of a waiter one of whose atoms was satisfied by a write.
+    // The future is completed after releasing the stripes, so callbacks never run under a lock.
+    private void resolve(Waiter w) {
+        boolean done = false;
+        byte[] value = null;
+
+        lockAll(w.order);
+        try {
+            if (!w.registered || w.future.isDone()) return; // Resolved or cancelled meanwhile
+
+            // Otherwise the atoms stay indexed and the next write to one of them tries again
+            if (w.predicate.test(this::read)) {
+                value = read(w.key);
+                unregister(w);
+                done = true;
+            }
+        } finally {
+            unlockAll(w.order);
+        }
+
+        if (done) w.future.complete(value);
+    }
+
+    // Drops a cancelled waiter from the index, so abandoned getWhens (e.g. client disconnected) hold no memory
+    private void cancel(Waiter w) {
+        lockAll(w.order);
+        try {
+            unregister(w);
+        } finally {
+            unlockAll(w.order);
+        }
+    }
+
+    private void resolveAll(Collection<Waiter> satisfied) {
+        for (Waiter w : satisfied) {
+            resolve(w);
+        }
+    }
+
+    // Absolute expiration of a write with the given TTL, 0 (never) for none
+    private static long expiresAt(long ttlMillis) {
+        if (ttlMillis < 0) throw new IllegalArgumentException("TTL cannot be negative: " + ttlMillis);
+        return ttlMillis == 0 ? 0 : System.currentTimeMillis() + ttlMillis;
+    }
+
+    // Single Write of buf[off..off+len), e.g. straight from the received frame
+    @Override
+    public boolean put(Key key, byte[] buf, int off, int len, long ttlMillis) {
+        if (len == 0) return false;
+        write(key, buf, off, len, expiresAt(ttlMillis), ANY_VERSION);
+        return true;
+    }
+
+    // Compare-and-set - writes the value only if the key is still at `expectedVersion` (0 = absent)
+    @Override
+    public CasResult compareAndSet(String key, long expectedVersion, byte[] buf, int off, int len) {
+        if (len == 0) throw new IllegalArgumentException("Value cannot be empty");
+        if (expectedVersion < 0) throw new IllegalArgumentException("Invalid version: " + expectedVersion);
+
+        // A version that already moved on fails without storing the value nor taking the lock
+        Key k = Key.of(key);
+        long seen = peekVersion(k);
+        if (seen != ANY_VERSION && seen != expectedVersion) return new CasResult(false, Collections.singletonMap(key, seen));
+        long version = write(k, buf, off, len, 0, expectedVersion);
+        if (version == ANY_VERSION) return new CasResult(false, versionsOf(Collections.singleton(key)));
+        return new CasResult(true, Collections.singletonMap(key, version));
+    }
+
+    // Writes buf[off..off+len) as the value of the key if its version is `expected` (ANY_VERSION = always).
+    // Returns the version written, or ANY_VERSION if the key was at another one.
+    private long write(Key key, byte[] buf, int off, int len, long expiresAt, long expected) {
+        Set<Waiter> satisfied = new LinkedHashSet<>();
+        byte[] record = this.wal == null ? null : WriteAheadLog.encode(key, buf, off, len, expiresAt);
+        CompletableFuture<Void> durable = null;
+        Object ref = this.store.store(key, buf, off, len, expiresAt);
+        Stripe stripe = stripeFor(key);
+        long version;
+        stripe.l_stripe.lock();
         try {
-            for (Map.Entry<String, byte[]> e : mapValues.entrySet()) {
-                String key = e.getKey();
-                this.dataMap.put(key, e.getValue());
+            if (expected != ANY_VERSION && versionOf(stripe, key) != expected) {
+                this.store.release(ref);
+                return ANY_VERSION;
+            }
 
-                if (this.condMap.containsKey(key)) {
-                    Condition cond = this.condMap.get(key);
-                    cond.signalAll(); // Notify all waiting threads of this key 
+            version = this.versions.begin();
+            if (record != null) durable = this.wal.append(record, version);
+            Entry e = install(stripe, key, ref, version, expiresAt);
+            this.store.committed(ref, version);
+            this.versions.commit(version);
+            account(e, this.store.footprint(ref, len));
+            trim(stripe, e, this.versions.oldestVisible());
+            if (stripe.watchers.watches(key)) {
+                stripe.watchers.collect(key, this.store.load(ref), satisfied);
+            }
+        } finally {
+            stripe.l_stripe.unlock();
+        }
+
+        maintain();
+        awaitDurable(durable); // getWhens are only woken by values that survive a restart
+        resolveAll(satisfied);
+        return version;
+    }
+
+    // Replaces the value of the key (null if absent) by `op` of it, holding the key's stripe lock so concurrent
+    // updates never lose one another. `op` returns null to leave the key as it is, or an empty value to remove it.
+    // The value keeps its TTL.
+    private void update(Key key, UnaryOperator<byte[]> op) {
+        Set<Waiter> satisfied = new LinkedHashSet<>();
+        CompletableFuture<Void> durable = null;
+        Stripe stripe = stripeFor(key);
+        stripe.l_stripe.lock();
+        try {
+            byte[] value = op.apply(read(key));
+            if (value == null) return;
+
+            Entry e = stripe.dataMap.get(key);
+            boolean remove = value.length == 0;
+            long expiresAt = remove || versionOf(stripe, key) == 0 ? 0 : e.head.expiresAt;
+            Object ref = remove ? null : this.store.store(key, value, 0, value.length, expiresAt);
+            long version = this.versions.begin();
+            if (this.wal != null) { // Logged as an empty value on removal
+                durable = this.wal.append(WriteAheadLog.encode(key, value, 0, value.length, expiresAt), version);
+            }
+            e = install(stripe, key, ref, version, expiresAt);
+            if (!remove) this.store.committed(ref, version);
+            this.versions.commit(version);
+            account(e, remove ? -1 : this.store.footprint(ref, value.length));
+            trim(stripe, e, this.versions.oldestVisible());
+            if (stripe.watchers.watches(key)) {
+                stripe.watchers.collect(key, remove ? null : value, satisfied);
+            }
+        } finally {
+            stripe.l_stripe.unlock();
+        }
+
+        maintain();
+        awaitDurable(durable);
+        resolveAll(satisfied);
+    }
+
+    // Counter held as a decimal 64-bit integer, 0 if absent
+    private static long counter(byte[] value) {
+        if (value == null) return 0;
+        Long n = Bytes.parseLong(value);
+        if (n == null) throw new IllegalArgumentException("Value is not a 64-bit integer");
+        return n;
+    }
+
+    // Adds `delta` to the counter of the key (created at 0), returns the new value
+    @Override
+    public long increment(String key, long delta) {
+        long[] res = new long[1];
+        update(Key.of(key), value -> {
+            try {
+                res[0] = Math.addExact(counter(value), delta);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Counter would overflow");
+            }
+            return Long.toString(res[0]).getBytes();
+        });
+        return res[0];
+    }
+
+    // Appends buf[off..off+len) to the value of the key (created if absent), returns the new length
+    @Override
+    public int append(String key, byte[] buf, int off, int len) {
+        int[] res = new int[1];
+        update(Key.of(key), value -> {
+            if (len == 0) {
+                res[0] = value == null ? 0 : value.length;
+                return null;
+            }
+            int length = value == null ? 0 : value.length;
+            byte[] appended = Arrays.copyOf(value == null ? new byte[0] : value, length + len);
+            System.arraycopy(buf, off, appended, length, len);
+            res[0] = appended.length;
+            return appended;
+        });
+        return res[0];
+    }
+
+    // Adds an item to the tail of the list of the key (created if absent), dropping the oldest items beyond
+    // `maxLength` (0 = unbounded). Lists are stored as their items separated by spaces. Returns the new length.
+    @Override
+    public int push(String key, byte[] item, int maxLength) {
+        if (item.length == 0 || Bytes.indexOf(item, LIST_SEPARATOR, 0) >= 0) {
+            throw new IllegalArgumentException("List items cannot be empty nor contain spaces");
+        }
+        if (maxLength < 0) throw new IllegalArgumentException("Invalid maximum length: " + maxLength);
+
+        int[] res = new int[1];
+        update(Key.of(key), value -> {
+            int length = value == null ? 0 : 1 + count(value, LIST_SEPARATOR);
+            int drop = maxLength == 0 ? 0 : Math.max(0, length + 1 - maxLength); // Oldest items beyond the bound
+            res[0] = length + 1 - Math.min(drop, length);
+            if (drop >= length) return item;
+            int from = 0; // Start of the items kept
+            for (int i = 0; i < drop; i++) {
+                from = Bytes.indexOf(value, LIST_SEPARATOR, from) + 1;
+            }
+            byte[] list = new byte[value.length - from + 1 + item.length];
+            System.arraycopy(value, from, list, 0, value.length - from);
+            list[value.length - from] = LIST_SEPARATOR;
+            System.arraycopy(item, 0, list, value.length - from + 1, item.length);
+            return list;
+        });
+        return res[0];
+    }
+
+    // Removes and returns the item at the head of the list of the key, null if absent. The key is removed
+    // with its last item.
+    @Override
+    public byte[] pop(String key) {
+        byte[][] res = new byte[1][];
+        update(Key.of(key), value -> {
+            if (value == null) return null;
+            int end = Bytes.indexOf(value, LIST_SEPARATOR, 0);
+            if (end < 0) {
+                res[0] = value;
+                return new byte[0];
+            }
+            res[0] = Arrays.copyOfRange(value, 0, end);
+            return Arrays.copyOfRange(value, end + 1, value.length);
+        });
+        return res[0];
+    }
+
+    private static int count(byte[] value, byte b) {
+        int n = 0;
+        for (byte x : value) {
+            if (x == b) n++;
+        }
+        return n;
+    }
+
+    // Single Read - lock free, the newest committed version
+    @Override
+    public byte[] get(Key key) {
+        Versioned v = getVersioned(key);
+        return v == null ? null : v.value;
+    }
+
+    // Single Read of the value and its version, the one a compare-and-set expects
+    @Override
+    public Versioned getVersioned(Key key) {
+        return lookup(key, false, ANY_VERSION);
+    }
+
+    // Conditional Read - like getVersioned, but if the key is still at `knownVersion` the value is neither loaded
+    // nor returned: only its version, with a null value
+    @Override
+    public Versioned getIfModified(Key key, long knownVersion) {
+        return lookup(key, false, knownVersion);
+    }
+
+    // Single Read of the value as a zlib stream - sent as stored when the store keeps it deflated
+    @Override
+    public byte[] getDeflated(Key key) {
+        Versioned v = lookup(key, true, ANY_VERSION);
+        return v == null ? null : v.value;
+    }
+
+    // Newest committed value of the key (deflated if asked) with its version, lock free - without the value if it
+    // is at `knownVersion` (ANY_VERSION to always load it)
+    private Versioned lookup(Key key, boolean deflated, long knownVersion) {
+        Stripe stripe = stripeFor(key);
+        while (true) {
+            Entry e = stripe.dataMap.get(key);
+            Version v = readAt(e, this.versions.current());
+            if (v == null) {
+                this.misses.increment();
+                return null;
+            }
+            if (v != TRIMMED && v.version == knownVersion) {
+                this.hits.increment();
+                this.notModified.increment();
+                if (this.policy != null) this.policy.recordRead(e);
+                return new Versioned(null, v.version);
+            }
+            if (v != TRIMMED) {
+                byte[] value = deflated ? this.store.loadDeflated(v.ref) : this.store.load(v.ref);
+                if (value != null) { // Otherwise released by a writer meanwhile - retry
+                    this.hits.increment();
+                    if (this.policy != null) this.policy.recordRead(e);
+                    return new Versioned(value, v.version);
                 }
-                else {
-                    // if doesn't exist creates a new entry on conditions map with a new condition
-                    Condition cond = l_manager.newCondition();
-                    this.condMap.put(key, cond);
+            }
+        }
+    }
+
+    // Multi Write - atomic, every stripe involved is locked in ascending order and all keys commit at one version
+    @Override
+    public void multiPut(Map<String, byte[]> mapValues, long ttlMillis) {
+        multiWrite(mapValues, expiresAt(ttlMillis), null);
+    }
+
+    // Bulk Write - keys[i] gets buf[offs[i]..offs[i]+lens[i]) for i < n, e.g. straight from a bulk load frame. Not
+    // atomic: the keys are grouped by stripe and each group is written holding only its stripe lock, at one version
+    // and in one log record, so a batch takes each lock once. Of a key given twice, the last value wins.
+    @Override
+    public void putAll(Key[] keys, byte[] buf, int[] offs, int[] lens, int n) {
+        for (int i = 0; i < n; i++) {
+            if (lens[i] == 0) throw new IllegalArgumentException("Value cannot be empty");
+        }
+
+        // Order of the keys by stripe (counting sort), leaving out the earlier of repeated keys
+        Set<Key> seen = new HashSet<>(n * 2);
+        boolean[] repeated = new boolean[n];
+        int[] starts = new int[this.stripes.length + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            if (seen.add(keys[i])) starts[stripeIndex(keys[i]) + 1]++;
+            else repeated[i] = true;
+        }
+        for (int s = 0; s < this.stripes.length; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[seen.size()];
+        int[] next = Arrays.copyOf(starts, this.stripes.length);
+        for (int i = 0; i < n; i++) {
+            if (!repeated[i]) order[next[stripeIndex(keys[i])]++] = i;
+        }
+
+        Set<Waiter> satisfied = new LinkedHashSet<>();
+        CompletableFuture<Void> durable = null; // The log is written in order, so the last record is awaited
+        Object[] refs = new Object[n];
+        Entry[] entries = new Entry[n];
+        for (int s = 0; s < this.stripes.length; s++) {
+            int from = starts[s], to = starts[s + 1];
+            if (from == to) continue;
+            byte[] record = this.wal == null ? null : WriteAheadLog.encode(keys, buf, offs, lens, order, from, to);
+            for (int j = from; j < to; j++) {
+                int i = order[j];
+                refs[i] = this.store.store(keys[i], buf, offs[i], lens[i], 0);
+            }
+
+            Stripe stripe = this.stripes[s];
+            stripe.l_stripe.lock();
+            try {
+                long version = this.versions.begin();
+                if (record != null) durable = this.wal.append(record, version);
+                for (int j = from; j < to; j++) {
+                    int i = order[j];
+                    entries[i] = install(stripe, keys[i], refs[i], version, 0);
+                    this.store.committed(refs[i], version);
+                }
+                this.versions.commit(version);
+
+                long oldest = this.versions.oldestVisible();
+                for (int j = from; j < to; j++) {
+                    int i = order[j];
+                    account(entries[i], this.store.footprint(refs[i], lens[i]));
+                    trim(stripe, entries[i], oldest);
+                    if (stripe.watchers.watches(keys[i])) {
+                        stripe.watchers.collect(keys[i], Arrays.copyOfRange(buf, offs[i], offs[i] + lens[i]), satisfied);
+                    }
+                }
+            } finally {
+                stripe.l_stripe.unlock();
+            }
+            maintain();
+        }
+
+        awaitDurable(durable);
+        resolveAll(satisfied);
+    }
+
+    // Sizes every stripe for `keys` more keys at once, ahead of a bulk load of about that many
+    @Override
+    public void reserve(long keys) {
+        int perStripe = (int) Math.min(Integer.MAX_VALUE, keys / this.stripes.length + 1);
+        for (Stripe stripe : this.stripes) {
+            stripe.l_stripe.lock();
+            try {
+                stripe.dataMap.reserve(perStripe);
+            } finally {
+                stripe.l_stripe.unlock();
+            }
+        }
+    }
+
+    // Multi compare-and-set - writes every pair only if every key of `expectedVersions` (a superset of the keys
+    // written, 0 = absent) is still at its version
+    @Override
+    public CasResult compareAndSet(Map<String, Long> expectedVersions, Map<String, byte[]> mapValues) {
+        if (!expectedVersions.keySet().containsAll(mapValues.keySet())) {
+            throw new IllegalArgumentException("Every key written needs an expected version");
+        }
+        for (byte[] value : mapValues.values()) {
+            if (value.length == 0) throw new IllegalArgumentException("Value cannot be empty");
+        }
+        for (Map.Entry<String, Long> e : expectedVersions.entrySet()) {
+            long seen = peekVersion(Key.of(e.getKey()));
+            if (seen != ANY_VERSION && seen != e.getValue()) return new CasResult(false, versionsOf(expectedVersions.keySet()));
+        }
+        return multiWrite(mapValues, 0, expectedVersions);
+    }
+
+    // Optimistic transaction commit - writes every pair only if every key read is still at the version it was read
+    // at (0 = absent). Only the stripes of the keys read and written are locked, and only while validating and
+    // installing; on a conflict the result holds just the keys read that changed, with their current versions.
+    @Override
+    public CasResult commit(Map<String, Long> readVersions, Map<String, byte[]> writes) {
+        for (byte[] value : writes.values()) {
+            if (value.length == 0) throw new IllegalArgumentException("Value cannot be empty");
+        }
+        for (Map.Entry<String, Long> e : readVersions.entrySet()) {
+            long seen = peekVersion(Key.of(e.getKey()));
+            if (seen != ANY_VERSION && seen != e.getValue()) return conflicts(readVersions, versionsOf(readVersions.keySet()));
+        }
+        CasResult res = multiWrite(writes, 0, readVersions);
+        return res.applied ? res : conflicts(readVersions, res.versions);
+    }
+
+    // The keys whose current version is not the one read
+    private static CasResult conflicts(Map<String, Long> readVersions, Map<String, Long> current) {
+        Map<String, Long> changed = new HashMap<>();
+        for (Map.Entry<String, Long> e : readVersions.entrySet()) {
+            long version = current.getOrDefault(e.getKey(), 0L);
+            if (version != e.getValue()) changed.put(e.getKey(), version);
+        }
+        return new CasResult(false, changed);
+    }
+
+    // Latest committed version of each key, 0 if absent
+    private Map<String, Long> versionsOf(Set<String> keys) {
+        Map<String, Long> res = new HashMap<>();
+        for (String key : keys) {
+            long version = peekVersion(Key.of(key));
+            res.put(key, version == ANY_VERSION ? 0 : version);
+        }
+        return res;
+    }
+
+    // Writes every pair at one version, if every key of `expected` (null = always) is at its version
+    private CasResult multiWrite(Map<String, byte[]> mapValues, long expiresAt, Map<String, Long> expected) {
+        Set<Waiter> satisfied = new LinkedHashSet<>();
+        byte[] record = this.wal == null ? null : WriteAheadLog.encode(mapValues, expiresAt);
+        CompletableFuture<Void> durable = null;
+        List<String> names = new ArrayList<>(mapValues.keySet());
+        Key[] keys = new Key[names.size()];
+        Object[] refs = new Object[names.size()];
+        for (int i = 0; i < keys.length; i++) {
+            byte[] value = mapValues.get(names.get(i));
+            keys[i] = Key.of(names.get(i));
+            refs[i] = this.store.store(keys[i], value, 0, value.length, expiresAt);
+        }
+
+        Map<Key, Long> versionsExpected = new HashMap<>();
+        if (expected != null) {
+            for (Map.Entry<String, Long> e : expected.entrySet()) versionsExpected.put(Key.of(e.getKey()), e.getValue());
+        }
+        Set<Key> locked = new HashSet<>(versionsExpected.keySet());
+        locked.addAll(Arrays.asList(keys));
+        int[] order = stripesOf(locked);
+        long version;
+        lockAll(order);
+        try {
+            if (expected != null) {
+                boolean matches = true;
+                for (Map.Entry<Key, Long> e : versionsExpected.entrySet()) {
+                    matches &= versionOf(stripeFor(e.getKey()), e.getKey()) == e.getValue();
+                }
+                if (!matches) {
+                    Map<String, Long> current = new HashMap<>();
+                    for (String name : expected.keySet()) {
+                        Key key = Key.of(name);
+                        current.put(name, versionOf(stripeFor(key), key));
+                    }
+                    for (Object ref : refs) this.store.release(ref);
+                    return new CasResult(false, current);
+                }
+            }
+            if (keys.length == 0) return new CasResult(true, new HashMap<>()); // Validated a read-only transaction
+
+            version = this.versions.begin();
+            if (record != null) durable = this.wal.append(record, version); // One record, all keys or none on replay
+            Entry[] entries = new Entry[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                entries[i] = install(stripeFor(keys[i]), keys[i], refs[i], version, expiresAt);
+                this.store.committed(refs[i], version);
+            }
+            this.versions.commit(version);
+
+            long oldest = this.versions.oldestVisible();
+            for (int i = 0; i < keys.length; i++) {
+                Stripe stripe = stripeFor(keys[i]);
+                byte[] value = mapValues.get(names.get(i));
+                account(entries[i], this.store.footprint(refs[i], value.length));
+                trim(stripe, entries[i], oldest);
+                if (stripe.watchers.watches(keys[i])) {
+                    stripe.watchers.collect(keys[i], value, satisfied);
                 }
             }
-            
         } finally {
-            l_manager.unlock();
+            unlockAll(order);
         }
+
+        maintain();
+        awaitDurable(durable);
+        resolveAll(satisfied);
+
+        Map<String, Long> written = new HashMap<>();
+        for (String key : names) written.put(key, version);
+        return new CasResult(true, written);
     }
 
-    // Multi Read
+    // Multi Read - atomic and lock free, every key is read at the same snapshot
+    @Override
     public Map<String, byte[]> multiGet(Set<String> keys) {
-        l_manager.lock();
+        Map<String, byte[]> res = new HashMap<>();
+        for (Map.Entry<String, Versioned> e : multiGetVersioned(keys).entrySet()) res.put(e.getKey(), e.getValue().value);
+        return res;
+    }
+
+    // Multi Read of the values and their versions, the read set of a transaction
+    @Override
+    public Map<String, Versioned> multiGetVersioned(Set<String> keys) {
+        return multiRead(keys, Collections.emptyMap());
+    }
+
+    // Conditional Multi Read - like multiGetVersioned, but the keys still at their version of `knownVersions` come
+    // with a null value, never loaded
+    @Override
+    public Map<String, Versioned> multiGetIfModified(Map<String, Long> knownVersions) {
+        return multiRead(knownVersions.keySet(), knownVersions);
+    }
+
+    // Reads every key at one snapshot, loading only the values not at their version of `known`
+    private Map<String, Versioned> multiRead(Set<String> keys, Map<String, Long> known) {
+        while (true) {
+            long snapshot = this.versions.open();
+            try {
+                Map<String, Versioned> res = new HashMap<>();
+                List<Entry> found = new ArrayList<>();
+                boolean complete = true;
+                for (String key : keys) {
+                    Key k = Key.of(key);
+                    Entry e = stripeFor(k).dataMap.get(k);
+                    Version v = readAt(e, snapshot);
+                    if (v == null) continue;
+                    if (v != TRIMMED && known.getOrDefault(key, ANY_VERSION) == v.version) {
+                        res.put(key, new Versioned(null, v.version));
+                        found.add(e);
+                        continue;
+                    }
+
+                    byte[] value = v == TRIMMED ? null : this.store.load(v.ref);
+                    if (value == null) { // Trimmed before the snapshot was pinned - retry on a newer one
+                        complete = false;
+                        break;
+                    }
+                    res.put(key, new Versioned(value, v.version));
+                    found.add(e);
+                }
+                if (complete) {
+                    for (Versioned v : res.values()) {
+                        if (v.value == null) this.notModified.increment();
+                    }
+                    this.hits.add(res.size());
+                    this.misses.add(keys.size() - res.size());
+                    if (this.policy != null) {
+                        for (Entry e : found) this.policy.recordRead(e);
+                    }
+                    return res;
+                }
+            } finally {
+                closeSnapshot(snapshot);
+            }
+        }
+    }
+
+    // The ordered index, built on first use: once published, writers add and remove their keys, and each stripe is
+    // copied holding its lock, so every key is either copied or added by its writer
+    private ConcurrentSkipListMap<Key, Entry> orderedIndex() {
+        if (this.orderedReady) return this.ordered;
+        this.l_ordered.lock();
         try {
-            Map<String, byte[]> res = new HashMap<>();
-            for (String key : keys) {
-                if (this.dataMap.containsKey(key)) {
-                    res.put(key, this.dataMap.get(key));
+            if (this.orderedReady) return this.ordered;
+            ConcurrentSkipListMap<Key, Entry> index = new ConcurrentSkipListMap<>();
+            this.ordered = index;
+            for (Stripe stripe : this.stripes) {
+                stripe.l_stripe.lock();
+                try {
+                    stripe.dataMap.forEach(e -> index.put(e, e));
+                } finally {
+                    stripe.l_stripe.unlock();
                 }
             }
-            return res;
+            this.orderedReady = true;
+            return index;
         } finally {
-            l_manager.unlock();
+            this.l_ordered.unlock();
         }
     }
 
-    // Conditional get
-    public byte[] getWhen(String key, String keyCond, byte[] valueCond) throws InterruptedException{
-        l_manager.lock();
+    // Range Read - up to `limit` keys of [from, to) (to = null for no bound) in key order, all read at one snapshot
+    // and then handed to `out` with no snapshot pinned, so a slow consumer holds back no garbage collection.
+    // Returns the last key given if the range has more, to continue after it, or null once it is exhausted.
+    // Scans are not counted as reads by the eviction policy, so a full scan does not flush the hot keys.
+    @Override
+    public String scan(String from, String to, int limit, BiConsumer<String, byte[]> out) {
+        if (limit < 1) throw new IllegalArgumentException("Scan limit must be positive: " + limit);
+        ConcurrentSkipListMap<Key, Entry> index = orderedIndex();
+        Key start = Key.of(from);
+        Map<Key, Entry> range = to == null ? index.tailMap(start, true) : index.subMap(start, true, Key.of(to), false);
+
+        while (true) {
+            List<Key> keys = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            boolean more = false;
+            boolean complete = true;
+            long snapshot = this.versions.open();
+            try {
+                for (Entry e : range.values()) {
+                    Version v = readAt(e, snapshot);
+                    if (v == null) continue;
+                    if (keys.size() == limit) {
+                        more = true;
+                        break;
+                    }
+
+                    byte[] value = v == TRIMMED ? null : this.store.load(v.ref);
+                    if (value == null) { // Trimmed before the snapshot was pinned - retry on a newer one
+                        complete = false;
+                        break;
+                    }
+                    keys.add(e);
+                    values.add(value);
+                }
+            } finally {
+                closeSnapshot(snapshot);
+            }
+
+            if (complete) {
+                for (int i = 0; i < keys.size(); i++) {
+                    out.accept(keys.get(i).toString(), values.get(i));
+                }
+                return more ? keys.get(keys.size() - 1).toString() : null;
+            }
+        }
+    }
 
+    // The value index, built on first use like the ordered index: published first, then each stripe is added
+    // holding its lock, while writers keep the stripes already added
+    private Map<Long, Set<Entry>> valueIndex() {
+        if (this.valueIndexReady) return this.valueIndex;
+        this.l_valueIndex.lock();
         try {
+            if (this.valueIndexReady) return this.valueIndex;
+            Map<Long, Set<Entry>> index = new ConcurrentHashMap<>();
+            this.valueIndex = index;
+            for (Stripe stripe : this.stripes) {
+                stripe.l_stripe.lock();
+                try {
+                    stripe.dataMap.forEach(e -> {
+                        byte[] value = e.head.ref == null ? null : this.store.load(e.head.ref);
+                        if (value != null) addToValueIndex(index, e, value);
+                    });
+                } finally {
+                    stripe.l_stripe.unlock();
+                }
+            }
+            this.valueIndexReady = true;
+            return index;
+        } finally {
+            this.l_valueIndex.unlock();
+        }
+    }
+
+    // Reverse lookup - up to `limit` keys holding exactly `value`, in key order, all read at one snapshot and then
+    // handed to `out` with no snapshot pinned. Returns the number of keys given. The first call indexes every value,
+    // later writes keep the index.
+    @Override
+    public int findKeys(byte[] value, int limit, Consumer<String> out) {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be positive: " + limit);
+        Set<Entry> candidates = valueIndex().get(Bytes.digest(value, 0, value.length));
+        if (candidates == null) return 0;
+
+        List<Key> keys = new ArrayList<>();
+        boolean complete = false;
+        while (!complete) {
+            keys.clear();
+            complete = true;
+            long snapshot = this.versions.open();
+            try {
+                for (Entry e : candidates) {
+                    Version v = readAt(e, snapshot);
+                    if (v == null) continue;
+
+                    byte[] current = v == TRIMMED ? null : this.store.load(v.ref);
+                    if (current == null) { // Trimmed before the snapshot was pinned - retry on a newer one
+                        complete = false;
+                        break;
+                    }
+                    if (Arrays.equals(current, value)) keys.add(e); // Not just the same digest
+                }
+            } finally {
+                closeSnapshot(snapshot);
+            }
+        }
+
+        keys.sort(null);
+        int n = Math.min(limit, keys.size());
+        for (int i = 0; i < n; i++) {
+            out.accept(keys.get(i).toString());
+        }
+        return n;
+    }
+
+    // Aggregation - count, sum, min and max of the integer values of the keys, all read at one snapshot, so nothing
+    // but the result leaves the engine. Like scans, not counted as reads by the eviction policy.
+    @Override
+    public Aggregate aggregate(Collection<String> keys) {
+        Set<Key> distinct = new LinkedHashSet<>();
+        for (String key : keys) {
+            distinct.add(Key.of(key));
+        }
+        return aggregate(() -> {
+            List<Entry> entries = new ArrayList<>(distinct.size());
+            for (Key key : distinct) {
+                Entry e = stripeFor(key).dataMap.get(key);
+                if (e != null) entries.add(e);
+            }
+            return entries;
+        });
+    }
+
+    // Same over the keys of [from, to) (to = null for no bound)
+    @Override
+    public Aggregate aggregate(String from, String to) {
+        ConcurrentSkipListMap<Key, Entry> index = orderedIndex();
+        Key start = Key.of(from);
+        Map<Key, Entry> range = to == null ? index.tailMap(start, true) : index.subMap(start, true, Key.of(to), false);
+        return aggregate(() -> new ArrayList<>(range.values()));
+    }
+
+    // Aggregates the entries found once the snapshot is pinned, on the fork-join pool beyond PARALLEL_AGGREGATE
+    private Aggregate aggregate(Supplier<List<Entry>> entries) {
+        while (true) {
+            long snapshot = this.versions.open();
+            try {
+                List<Entry> found = entries.get();
+                AggregateTask task = new AggregateTask(found, 0, found.size(), snapshot);
+                Aggregate res = found.size() < PARALLEL_AGGREGATE ? task.compute() : ForkJoinPool.commonPool().invoke(task);
+                if (res != null) return res;
+            } finally {
+                closeSnapshot(snapshot);
+            }
+        }
+    }
+
+    // Aggregates entries[from..to) at a snapshot, splitting in halves down to PARALLEL_AGGREGATE entries.
+    // Returns null if a value was trimmed before the snapshot was pinned - the caller retries on a newer one.
+    @SuppressWarnings("serial") // Only ever run in this process, never serialized
+    private class AggregateTask extends RecursiveTask<Aggregate> {
+        private final List<Entry> entries;
+        private final int from;
+        private final int to;
+        private final long snapshot;
+
+        private AggregateTask(List<Entry> entries, int from, int to, long snapshot) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.snapshot = snapshot;
+        }
 
-            // Create or retrieve the condition associated with `keyCond`
-            Condition cond = condMap.computeIfAbsent(keyCond, k -> l_manager.newCondition());
+        @Override
+        protected Aggregate compute() {
+            if (this.to - this.from > PARALLEL_AGGREGATE) {
+                int middle = (this.from + this.to) >>> 1;
+                AggregateTask left = new AggregateTask(this.entries, this.from, middle, this.snapshot);
+                left.fork();
+                Aggregate right = new AggregateTask(this.entries, middle, this.to, this.snapshot).compute();
+                Aggregate res = left.join();
+                return res == null || right == null ? null : res.combine(right);
+            }
+
+            long count = 0, sum = 0, min = Long.MAX_VALUE, max = Long.MIN_VALUE, skipped = 0;
+            for (int i = this.from; i < this.to; i++) {
+                Version v = readAt(this.entries.get(i), this.snapshot);
+                if (v == null) continue;
+                byte[] value = v == TRIMMED ? null : store.load(v.ref);
+                if (value == null) return null;
 
-            // Check the condition of `keyCond` (value on map equals to 'valueCond') and wait if necessary
-            while (!Arrays.equals(dataMap.get(keyCond), valueCond)) {
-                cond.await(); // Wait until the condition is satisfied
+                Long n = Bytes.parseLong(value);
+                if (n == null) {
+                    skipped++;
+                    continue;
+                }
+                try {
+                    sum = Math.addExact(sum, n);
+                } catch (ArithmeticException e) {
+                    throw new IllegalArgumentException("Sum would overflow");
+                }
+                count++;
+                min = Math.min(min, n);
+                max = Math.max(max, n);
+            }
+            return new Aggregate(count, sum, min, max, skipped);
+        }
+    }
+
+    // Conditional get - returns immediately, the future is completed by the write that satisfies the predicate
+    @Override
+    public CompletableFuture<byte[]> getWhenAsync(String name, Predicate predicate) {
+        Key key = Key.of(name);
+        Set<Key> keys = new HashSet<>();
+        for (String k : predicate.keys()) {
+            keys.add(Key.of(k));
+        }
+        keys.add(key);
+        int[] order = stripesOf(keys);
+        Waiter w;
+
+        lockAll(order);
+        try {
+            // Check the predicate and read 'key' holding all stripes, so no write can happen in between
+            if (predicate.test(this::read)) {
+                return CompletableFuture.completedFuture(read(key));
             }
 
-            // Return value of 'key'
-            return this.dataMap.getOrDefault(key, null);            
+            // Registered while holding the stripes of every atom, so the next write to one of them will see the waiter
+            w = new Waiter(key, predicate, keys, order);
+            for (Predicate.Atom atom : predicate.atoms()) {
+                stripeFor(Key.of(atom.getKey())).watchers.add(atom, w);
+            }
+            for (Key k : keys) {
+                pin(k); // Evicting them would lose the value the waiter is about to read
+            }
+            this.pendingWaiters.incrementAndGet();
         } finally {
-            l_manager.unlock();
+            unlockAll(order);
+        }
+
+        w.future.whenComplete((v, ex) -> {
+            if (w.future.isCancelled()) cancel(w);
+        });
+        return w.future;
+    }
+
+    // Number of getWhen requests still waiting for their condition
+    public int getPendingWaiters() {
+        return this.pendingWaiters.get();
+    }
+
+    // Reads that found the key
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    // Reads of absent (or evicted, or expired) keys
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    // Keys removed by the expiry thread once their TTL elapsed
+    public long getExpired() {
+        return this.expired.sum();
+    }
+
+    public long getEvictions() {
+        return this.policy == null ? 0 : this.policy.getEvictions();
+    }
+
+    // Bytes counted against the budget, 0 when unbounded
+    public long getWeightedSize() {
+        return this.policy == null ? 0 : this.policy.getWeightedSize();
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    // Counters reported by the 'stats' command, in display order
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", getHits());
+        stats.put("misses", getMisses());
+        stats.put("notModified", this.notModified.sum());
+        stats.put("evictions", getEvictions());
+        stats.put("expired", getExpired());
+        if (this.policy != null) {
+            stats.put("bytes", getWeightedSize());
+            stats.put("maxBytes", getMaxBytes());
         }
+        stats.put("pendingGetWhens", (long) getPendingWaiters());
+        stats.putAll(this.store.getStats());
+        return stats;
+    }
+
+    // Stops the expiry thread, flushes and closes the write-ahead log, if any, and the value store
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        if (this.wal != null) this.wal.close();
+        this.store.close();
     }
 }
@@ -0,0 +1,169 @@
+package server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * DedupValueStore - stores each distinct value of at least `threshold` bytes once in another ValueStore.
+ *
+ * Values are pooled by content: a hash of the bytes picks a bin, and a value equal byte for byte to one in the bin
+ * shares it instead of being stored again. Every key holding a pooled value holds one reference count, taken by
+ * store() and dropped by release() once no snapshot can read the key's version anymore - so overwrites, removals,
+ * evictions and expirations all give their count back, and the last one releases the value. A pooled value is
+ * charged to the memory budget once, as shared bytes, not to the keys holding it.
+ *
+ * Like CompressingValueStore, it does not support stores that persist values under their key (LogStructuredValueStore).
+ */
+public class DedupValueStore implements ValueStore {
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    private final ValueStore inner;
+    private final int threshold;
+    private final Map<Long, Shared> pool = new ConcurrentHashMap<>(); // Map <digest,values with that digest>
+
+    private final LongAdder values = new LongAdder();     // Distinct values pooled
+    private final LongAdder hits = new LongAdder();       // Stores that found their value pooled
+    private final LongAdder savedBytes = new LongAdder(); // Bytes not stored thanks to the pool, right now
+    private final LongAdder pooledBytes = new LongAdder(); // Footprint of the pooled values in the inner store
+
+    // Pooled value, its count guarded by the pool bin of its digest
+    private static final class Shared {
+        private final long digest;
+        private final Object ref;
+        private final int length;
+        private final int footprint; // In the inner store
+        private int refs = 1;
+        private Shared next; // Another value of the same digest
+
+        private Shared(long digest, Object ref, int length, int footprint, Shared next) {
+            this.digest = digest;
+            this.ref = ref;
+            this.length = length;
+            this.footprint = footprint;
+            this.next = next;
+        }
+    }
+
+    public DedupValueStore(ValueStore inner) {
+        this(inner, DEFAULT_THRESHOLD);
+    }
+
+    // Builder for the smallest value length worth pooling - smaller ones cost less than the pool entry
+    public DedupValueStore(ValueStore inner, int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("Deduplication threshold must be positive: " + threshold);
+        this.inner = inner;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Object store(byte[] buf, int off, int len) {
+        return store(null, buf, off, len, 0);
+    }
+
+    @Override
+    public Object store(Key key, byte[] buf, int off, int len, long expiresAt) {
+        if (len < this.threshold) return this.inner.store(key, buf, off, len, expiresAt);
+
+        long digest = Bytes.digest(buf, off, len);
+        Shared[] res = new Shared[1];
+        this.pool.compute(digest, (d, head) -> {
+            for (Shared s = head; s != null; s = s.next) {
+                if (Arrays.equals(this.inner.load(s.ref), 0, s.length, buf, off, off + len)) {
+                    s.refs++;
+                    this.hits.increment();
+                    this.savedBytes.add(len);
+                    res[0] = s;
+                    return head;
+                }
+            }
+            Object ref = this.inner.store(key, buf, off, len, expiresAt);
+            res[0] = new Shared(d, ref, len, this.inner.footprint(ref, len), head);
+            this.values.increment();
+            this.pooledBytes.add(res[0].footprint);
+            return res[0];
+        });
+        return res[0];
+    }
+
+    @Override
+    public byte[] load(Object ref) {
+        return this.inner.load(ref instanceof Shared ? ((Shared) ref).ref : ref);
+    }
+
+    @Override
+    public byte[] loadDeflated(Object ref) {
+        return this.inner.loadDeflated(ref instanceof Shared ? ((Shared) ref).ref : ref);
+    }
+
+    // Drops one count of a pooled value, the last one releases it
+    @Override
+    public void release(Object ref) {
+        if (!(ref instanceof Shared)) {
+            this.inner.release(ref);
+            return;
+        }
+        Shared shared = (Shared) ref;
+        this.pool.compute(shared.digest, (d, head) -> {
+            if (--shared.refs > 0) {
+                this.savedBytes.add(-shared.length);
+                return head;
+            }
+            this.inner.release(shared.ref);
+            this.values.decrement();
+            this.pooledBytes.add(-shared.footprint);
+            if (head == shared) return shared.next;
+            for (Shared s = head; s != null; s = s.next) {
+                if (s.next == shared) {
+                    s.next = shared.next;
+                    break;
+                }
+            }
+            return head;
+        });
+    }
+
+    @Override
+    public void committed(Object ref, long version) {
+        if (!(ref instanceof Shared)) this.inner.committed(ref, version);
+    }
+
+    @Override
+    public void removed(Key key, long version) {
+        this.inner.removed(key, version);
+    }
+
+    // Keys holding a pooled value are not charged for it, the pool is (sharedBytes)
+    @Override
+    public int footprint(Object ref, int length) {
+        return ref instanceof Shared ? 0 : this.inner.footprint(ref, length);
+    }
+
+    @Override
+    public long sharedBytes() {
+        return this.pooledBytes.sum();
+    }
+
+    @Override
+    public long recover(Recovery recovery) throws IOException {
+        return this.inner.recover(recovery);
+    }
+
+    // Distinct values pooled, stores that found theirs in the pool and the bytes the pool saves
+    @Override
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>(this.inner.getStats());
+        stats.put("dedupValues", this.values.sum());
+        stats.put("dedupHits", this.hits.sum());
+        stats.put("dedupSavedBytes", this.savedBytes.sum());
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inner.close();
+    }
+}
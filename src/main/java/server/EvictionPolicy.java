@@ -0,0 +1,291 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/*
+ * EvictionPolicy - W-TinyLFU over a budget of bytes.
+ *
+ * New entries land in a small LRU window (1% of the budget). When the window overflows, its oldest entry
+ * competes with the oldest entry of the main space and the one with the lower estimated frequency (count-min
+ * sketch, periodically halved) is evicted, so one-off keys cannot flush frequently used ones. The main space
+ * is a segmented LRU: entries read while in probation are promoted to the protected segment (80%).
+ *
+ * Bytes held on behalf of several entries (values pooled by DedupValueStore) count once towards the budget, on
+ * top of the entries' weights, and are given back as evicting their holders releases them.
+ *
+ * Reads and writes never wait for the policy: they are recorded in buffers (reads are dropped when the buffer
+ * is full) which are drained by maintenance(), under the policy lock. Every step is O(1), no scan is needed.
+ */
+class EvictionPolicy {
+    static final int ENTRY_OVERHEAD = 64; // Estimated bytes of bookkeeping per key
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private static final int NONE = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+
+    // Links embedded in each tracked entry, so the policy needs no map of its own. The entry is its key,
+    // whose hash feeds the frequency sketch.
+    abstract static class Node extends Key {
+        private Node prev;
+        private Node next;
+        private int segment = NONE;
+        private int policyWeight;      // Weight as last seen by the policy, guarded by its lock
+        private volatile int weight;   // Current weight, set by the writer of the entry
+
+        Node(Key key) {
+            super(key);
+        }
+    }
+
+    // Removes an entry chosen by the policy, returns false if it must be kept (e.g. watched by a getWhen)
+    interface Evictor {
+        boolean evict(Node node);
+    }
+
+    // Doubly linked LRU list, head is the most recent
+    private static class Segment {
+        private final int id;
+        private Node head;
+        private Node tail;
+        private long weight;
+
+        private Segment(int id) {
+            this.id = id;
+        }
+
+        private void addFirst(Node n) {
+            n.segment = this.id;
+            n.prev = null;
+            n.next = this.head;
+            if (this.head != null) this.head.prev = n;
+            else this.tail = n;
+            this.head = n;
+            this.weight += n.policyWeight;
+        }
+
+        private void remove(Node n) {
+            if (n.prev != null) n.prev.next = n.next;
+            else this.head = n.next;
+            if (n.next != null) n.next.prev = n.prev;
+            else this.tail = n.prev;
+            n.prev = null;
+            n.next = null;
+            n.segment = NONE;
+            this.weight -= n.policyWeight;
+        }
+    }
+
+    private final long maxWeight;
+    private final long windowMax;
+    private final long protectedMax;
+    private final Segment window = new Segment(WINDOW);
+    private final Segment probation = new Segment(PROBATION);
+    private final Segment protectedSegment = new Segment(PROTECTED);
+    private final FrequencySketch sketch;
+
+    private final Lock l_policy = new ReentrantLock();
+    private final Queue<Node> readBuffer = new ArrayBlockingQueue<>(READ_BUFFER_SIZE);
+    private final Queue<Node> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicLong weightedSize = new AtomicLong(0); // Sum of the current weights
+    private final LongSupplier sharedSize;                      // Bytes shared by entries, outside their weights
+    private final LongAdder evictions = new LongAdder();
+
+    EvictionPolicy(long maxWeight, LongSupplier sharedSize) {
+        this.maxWeight = maxWeight;
+        this.sharedSize = sharedSize;
+        this.windowMax = Math.max(1, maxWeight / 100);
+        this.protectedMax = (maxWeight - this.windowMax) * 80 / 100;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(1024, maxWeight / 256)));
+    }
+
+    private Segment segmentOf(Node n) {
+        switch (n.segment) {
+            case WINDOW: return this.window;
+            case PROBATION: return this.probation;
+            case PROTECTED: return this.protectedSegment;
+            default: return null;
+        }
+    }
+
+    // Records a new weight of the entry (0 once removed), must be called by the entry's writer
+    void recordWrite(Node n, int weight) {
+        this.weightedSize.addAndGet(weight - n.weight);
+        n.weight = weight;
+        this.writeBuffer.add(n);
+    }
+
+    // Records a read, lossy when the buffer is full
+    void recordRead(Node n) {
+        if (!this.readBuffer.offer(n)) {
+            maintenance(null); // Drain it if nobody else is
+        }
+    }
+
+    boolean isOverBudget() {
+        return this.weightedSize.get() + this.sharedSize.getAsLong() > this.maxWeight;
+    }
+
+    // Applies the buffered events and evicts until the budget is respected.
+    // Only blocks if the budget is exceeded, otherwise leaves the work to the thread already doing it.
+    void maintenance(Evictor evictor) {
+        if (isOverBudget() && evictor != null) this.l_policy.lock();
+        else if (!this.l_policy.tryLock()) return;
+
+        try {
+            Node n;
+            while ((n = this.readBuffer.poll()) != null) onAccess(n);
+            while ((n = this.writeBuffer.poll()) != null) onWrite(n);
+
+            if (evictor != null) {
+                admitFromWindow(evictor);
+                evictFromMain(evictor);
+            }
+        } finally {
+            this.l_policy.unlock();
+        }
+    }
+
+    private void reweigh(Node n) {
+        int weight = n.weight;
+        Segment segment = segmentOf(n);
+        if (segment != null) segment.weight += weight - n.policyWeight;
+        n.policyWeight = weight;
+    }
+
+    private void onAccess(Node n) {
+        Segment segment = segmentOf(n);
+        if (segment == null) return; // Removed meanwhile
+        this.sketch.increment(n.hashCode());
+
+        segment.remove(n);
+        if (segment == this.probation) {
+            this.protectedSegment.addFirst(n);
+            while (this.protectedSegment.weight > this.protectedMax && this.protectedSegment.tail != null) {
+                Node demoted = this.protectedSegment.tail;
+                this.protectedSegment.remove(demoted);
+                this.probation.addFirst(demoted);
+            }
+        } else {
+            segment.addFirst(n);
+        }
+    }
+
+    private void onWrite(Node n) {
+        if (n.weight == 0) { // Removed
+            Segment segment = segmentOf(n);
+            if (segment != null) segment.remove(n);
+            n.policyWeight = 0;
+            return;
+        }
+
+        reweigh(n);
+        if (n.segment == NONE) {
+            this.sketch.increment(n.hashCode());
+            this.window.addFirst(n);
+        } else {
+            onAccess(n);
+        }
+    }
+
+    // Entries leaving the window enter the main space only if they are used more often than its victim
+    private void admitFromWindow(Evictor evictor) {
+        while (this.window.weight > this.windowMax && this.window.tail != null) {
+            Node candidate = this.window.tail;
+            this.window.remove(candidate);
+
+            Node victim = this.probation.tail != null ? this.probation.tail : this.protectedSegment.tail;
+            if (!isOverBudget() || victim == null
+                    || this.sketch.frequency(candidate.hashCode()) > this.sketch.frequency(victim.hashCode())) {
+                this.probation.addFirst(candidate);
+                if (isOverBudget() && victim != null) evict(victim, evictor);
+            } else if (!evict(candidate, evictor)) {
+                this.probation.addFirst(candidate);
+            }
+        }
+    }
+
+    private void evictFromMain(Evictor evictor) {
+        // Bounded, in case everything left is pinned
+        long attempts = 0;
+        long limit = 16 + (this.weightedSize.get() / ENTRY_OVERHEAD);
+        while (isOverBudget() && attempts++ < limit) {
+            Node victim = this.probation.tail;
+            if (victim == null) victim = this.protectedSegment.tail;
+            if (victim == null) victim = this.window.tail;
+            if (victim == null) return;
+            evict(victim, evictor);
+        }
+    }
+
+    private boolean evict(Node victim, Evictor evictor) {
+        Segment segment = segmentOf(victim);
+        if (segment != null) segment.remove(victim);
+
+        if (evictor.evict(victim)) {
+            this.evictions.increment();
+            victim.policyWeight = 0;
+            return true;
+        }
+        this.protectedSegment.addFirst(victim); // Pinned - treat as hot
+        return false;
+    }
+
+    long getWeightedSize() {
+        return this.weightedSize.get() + this.sharedSize.getAsLong();
+    }
+
+    long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    // Count-min sketch of 4-bit counters (4 rows), halved after every `sampleSize` increments so old
+    // popularity fades out
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae3d, 0x27d4eb2f, 0x165667b1 };
+
+        private final byte[] table;
+        private final int width;
+        private final int sampleSize;
+        private int increments = 0;
+
+        private FrequencySketch(int width) {
+            this.width = Integer.highestOneBit(Math.max(16, width));
+            this.table = new byte[4 * this.width];
+            this.sampleSize = 10 * this.width;
+        }
+
+        private int index(int row, int hash) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= h >>> 16;
+            return row * this.width + (h & (this.width - 1));
+        }
+
+        private void increment(int hash) {
+            for (int row = 0; row < 4; row++) {
+                int i = index(row, hash);
+                if (this.table[i] < 15) this.table[i]++;
+            }
+            if (++this.increments >= this.sampleSize) {
+                for (int i = 0; i < this.table.length; i++) this.table[i] >>= 1;
+                this.increments /= 2;
+            }
+        }
+
+        private int frequency(int hash) {
+            int min = 15;
+            for (int row = 0; row < 4; row++) {
+                min = Math.min(min, this.table[index(row, hash)]);
+            }
+            return min;
+        }
+    }
+}
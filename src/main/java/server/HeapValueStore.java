@@ -0,0 +1,23 @@
+package server;
+
+import java.util.Arrays;
+
+// Values kept as plain heap arrays - the reference is the value itself
+public class HeapValueStore implements ValueStore {
+
+    @Override
+    public Object store(byte[] buf, int off, int len) {
+        if (off == 0 && len == buf.length) return buf;
+        return Arrays.copyOfRange(buf, off, off + len);
+    }
+
+    @Override
+    public byte[] load(Object ref) {
+        return (byte[]) ref;
+    }
+
+    @Override
+    public void release(Object ref) {
+        // Left to the garbage collector
+    }
+}
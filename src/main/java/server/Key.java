@@ -0,0 +1,76 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Key - a key as its UTF-8 bytes with a cached hash, from the received frame to the map.
+ *
+ * Keys are compared byte by byte (unsigned), the order of their code points and of the scans. The map entries of
+ * DataManager are keys themselves, so a stored key costs a single byte array on top of its entry.
+ */
+public class Key implements Comparable<Key> {
+    private final byte[] bytes;
+    private final int hash;
+
+    private Key(byte[] bytes) {
+        this.bytes = bytes;
+        int h = 0;
+        for (byte b : bytes) {
+            h = 31 * h + b;
+        }
+        this.hash = h;
+    }
+
+    // Builder for a subclass that is the given key, sharing its bytes
+    protected Key(Key key) {
+        this.bytes = key.bytes;
+        this.hash = key.hash;
+    }
+
+    public static Key of(String key) {
+        return new Key(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Key of buf[off..off+len), e.g. straight from the received frame
+    public static Key of(byte[] buf, int off, int len) {
+        return new Key(Arrays.copyOfRange(buf, off, off + len));
+    }
+
+    // Key of an array the caller gives up, without copying it
+    static Key wrap(byte[] bytes) {
+        return new Key(bytes);
+    }
+
+    // The bytes of the key, not a copy - must not be modified
+    byte[] bytes() {
+        return this.bytes;
+    }
+
+    public int length() {
+        return this.bytes.length;
+    }
+
+    @Override
+    public final int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Key)) return false;
+        Key other = (Key) o;
+        return this.hash == other.hash && Arrays.equals(this.bytes, other.bytes);
+    }
+
+    @Override
+    public final int compareTo(Key other) {
+        return Arrays.compareUnsigned(this.bytes, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/*
+ * KeyTable - open-addressing hash table of entries that are their own keys, resized incrementally.
+ *
+ * Linear probing over a single array of references, so an entry costs one slot and no node. Lookups are lock
+ * free; adds and removals must be serialized by the caller (DataManager holds the stripe lock).
+ *
+ * Growing allocates the new table and leaves the old one in place: every later add or removal moves the next
+ * MIGRATE_STEP slots of the old table, and lookups search the new table and then the old one, so no single
+ * operation pays for rehashing the whole table. Moved entries are not cleared from the old table, so a lookup
+ * racing with a move still finds them there; removals clear them from both.
+ */
+class KeyTable<E extends Key> {
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int MIGRATE_STEP = 16;  // Old slots moved per add or removal while resizing
+    private static final Object TOMBSTONE = new Object(); // A removed entry, probes continue past it
+
+    // Tables seen by a lookup, replaced as a whole so they are always read consistently
+    private static final class Tables {
+        private final AtomicReferenceArray<Object> current;
+        private final AtomicReferenceArray<Object> old; // null unless resizing
+
+        private Tables(AtomicReferenceArray<Object> current, AtomicReferenceArray<Object> old) {
+            this.current = current;
+            this.old = old;
+        }
+    }
+
+    private volatile Tables tables = new Tables(new AtomicReferenceArray<>(MIN_CAPACITY), null);
+    private int size = 0;     // Live entries, written by the single writer
+    private int used = 0;     // Slots of the current table holding an entry or a tombstone
+    private int migrated = 0; // Slots of the old table already moved
+
+    // First slot of a hash in a table of `length` (a power of two). Takes the high bits of a Fibonacci hash: the
+    // low bits of the keys of one stripe are alike, as they chose the stripe.
+    private static int slot(int h, int length) {
+        return (h * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    // Entry with the given key, null if absent - lock free
+    @SuppressWarnings("unchecked")
+    E get(Key key) {
+        Tables t = this.tables;
+        Object e = find(t.current, key);
+        if (e == null && t.old != null) e = find(t.old, key);
+        return (E) e;
+    }
+
+    private static Object find(AtomicReferenceArray<Object> table, Key key) {
+        int mask = table.length() - 1;
+        for (int i = slot(key.hashCode(), table.length()); ; i = (i + 1) & mask) {
+            Object o = table.get(i);
+            if (o == null) return null;
+            if (o != TOMBSTONE && o.equals(key)) return o;
+        }
+    }
+
+    // Adds an entry whose key is absent, must be called by the single writer
+    void add(E e) {
+        if (this.tables.old != null) migrate(MIGRATE_STEP);
+        if ((this.used + 1) * 4L > this.tables.current.length() * 3L) grow();
+        if (insert(this.tables.current, e)) this.used++;
+        this.size++;
+    }
+
+    // Removes this very entry, false if it is not in the table - must be called by the single writer
+    boolean remove(E e) {
+        Tables t = this.tables;
+        if (t.old != null) migrate(MIGRATE_STEP);
+        t = this.tables;
+        boolean removed = clear(t.current, e);
+        if (t.old != null) removed |= clear(t.old, e);
+        if (removed) this.size--;
+        return removed;
+    }
+
+    // Makes room for `n` more entries at once, rehashing now rather than growing step by step during a bulk load -
+    // must be called by the single writer
+    void reserve(int n) {
+        long needed = this.size + (long) n;
+        if (needed * 4 <= this.tables.current.length() * 3L) return;
+        if (this.tables.old != null) migrate(Integer.MAX_VALUE);
+        int capacity = (int) Math.min(MAX_CAPACITY, Long.highestOneBit(needed) << 2);
+        if (capacity <= this.tables.current.length()) return;
+        this.tables = new Tables(new AtomicReferenceArray<>(capacity), this.tables.current);
+        this.used = 0;
+        this.migrated = 0;
+        migrate(Integer.MAX_VALUE);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    // Whether a resize is still moving entries
+    boolean isResizing() {
+        return this.tables.old != null;
+    }
+
+    // Gives every entry to `action` once. Weakly consistent without the writer's lock: entries added or removed
+    // meanwhile may be seen or not.
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super E> action) {
+        Tables t = this.tables;
+        Set<Object> seen = t.old == null ? null : new HashSet<>(); // Entries may be in both tables
+        for (int i = 0; i < t.current.length(); i++) {
+            Object o = t.current.get(i);
+            if (o == null || o == TOMBSTONE) continue;
+            if (seen != null) seen.add(o);
+            action.accept((E) o);
+        }
+        if (t.old == null) return;
+        for (int i = 0; i < t.old.length(); i++) {
+            Object o = t.old.get(i);
+            if (o != null && o != TOMBSTONE && !seen.contains(o)) action.accept((E) o);
+        }
+    }
+
+    // Starts moving to a table where the live entries take at most a quarter, never below half the current one,
+    // so the move completes long before the new table fills up
+    private void grow() {
+        if (this.tables.old != null) migrate(Integer.MAX_VALUE); // Not expected, the step keeps ahead
+        AtomicReferenceArray<Object> current = this.tables.current;
+        long wanted = Math.max(current.length() / 2, (long) Integer.highestOneBit(this.size + 1) << 3);
+        int capacity = (int) Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, wanted));
+        this.tables = new Tables(new AtomicReferenceArray<>(capacity), current);
+        this.used = 0;
+        this.migrated = 0;
+    }
+
+    // Moves up to `n` slots of the old table, dropping it once all were moved
+    private void migrate(int n) {
+        Tables t = this.tables;
+        int end = (int) Math.min(t.old.length(), (long) this.migrated + n);
+        for (int i = this.migrated; i < end; i++) {
+            Object o = t.old.get(i);
+            if (o != null && o != TOMBSTONE && insert(t.current, o)) this.used++;
+        }
+        this.migrated = end;
+        if (end == t.old.length()) this.tables = new Tables(t.current, null);
+    }
+
+    // Links an entry into the first free slot of its probe sequence, returns whether it took an empty slot
+    private static boolean insert(AtomicReferenceArray<Object> table, Object e) {
+        int mask = table.length() - 1;
+        for (int i = slot(e.hashCode(), table.length()); ; i = (i + 1) & mask) {
+            Object o = table.get(i);
+            if (o == null || o == TOMBSTONE) {
+                table.set(i, e);
+                return o == null;
+            }
+        }
+    }
+
+    private static boolean clear(AtomicReferenceArray<Object> table, Object e) {
+        int mask = table.length() - 1;
+        for (int i = slot(e.hashCode(), table.length()); ; i = (i + 1) & mask) {
+            Object o = table.get(i);
+            if (o == null) return false;
+            if (o == e) {
+                table.set(i, TOMBSTONE);
+                return true;
+            }
+        }
+    }
+}
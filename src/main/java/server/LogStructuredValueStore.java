@@ -0,0 +1,434 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * LogStructuredValueStore - values kept on disk, Bitcask style, for datasets larger than memory.
+ *
+ * Values are appended to the active segment file and read back with positional reads; memory only holds
+ * DataManager's key directory, whose references (Location) are a segment, an offset and a length.
+ * Once a sealed segment is mostly dead (replaced or removed values), a background thread copies its live
+ * records to the active segment and deletes the file.
+ *
+ * Record: [int crc32][long version][long expires at][int key length][int value length][key][value]. The crc
+ * covers everything after the version, which is written in place once the value is committed: on restart the
+ * committed record with the highest version of each key is its value, with its expiration (0 = never).
+ *
+ * A removal (pop to empty, eviction, expiration) appends a tombstone, a record with value length -1 written with
+ * its version, so the older records of the key are not brought back on restart. Compaction carries tombstones
+ * over to the active segment while an older segment - which may still hold such a record - exists.
+ *
+ * Locking order: active segment lock, then the location's monitor. Readers only take the location's monitor.
+ */
+public class LogStructuredValueStore implements ValueStore {
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    private static final int HEADER = 28;
+    private static final double COMPACTION_RATIO = 0.5; // Dead fraction of a sealed segment that triggers compaction
+
+    private final Path dir;
+    private final long segmentSize;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Lock l_active = new ReentrantLock();
+    private Segment active; // guarded by l_active
+
+    private final ExecutorService compactor;
+    private final AtomicLong compactedBytes = new AtomicLong(0);
+
+    // Reference handed to DataManager - mutable so compaction can move the record without touching the key directory
+    static final class Location {
+        private final int keyLength;
+        private final int length; // -1 for a tombstone
+        private Segment segment;
+        private long offset;
+        private boolean freed;
+
+        private Location(Segment segment, long offset, int keyLength, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.length = length;
+        }
+
+        private boolean isTombstone() {
+            return this.length < 0;
+        }
+
+        private int recordSize() {
+            return HEADER + this.keyLength + Math.max(this.length, 0);
+        }
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final Set<Location> live = ConcurrentHashMap.newKeySet();
+        private final Set<Location> tombstones = ConcurrentHashMap.newKeySet(); // Counted as dead, kept by compaction
+        private final AtomicLong deadBytes = new AtomicLong(0);
+        private final AtomicInteger writers = new AtomicInteger(0); // Appends reserved but not yet written
+        private volatile long size; // written holding l_active
+        private volatile boolean sealed = false;
+        private volatile boolean compacting = false;
+
+        private Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = this.channel.size();
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += this.channel.write(buffer, position);
+            }
+        }
+
+        private void read(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = this.channel.read(buffer, position);
+                if (n < 0) throw new IOException("Unexpected end of segment " + this.path);
+                position += n;
+            }
+        }
+    }
+
+    public LogStructuredValueStore(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    // Builder for a directory of segments, rolling to a new segment every `segmentSize` bytes
+    public LogStructuredValueStore(Path dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.data")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(0, name.length() - ".data".length()));
+                Segment segment = new Segment(id, file);
+                segment.sealed = true;
+                this.segments.put(id, segment);
+            }
+        }
+        roll();
+
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "compactor-" + dir.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private Path segmentPath(int id) {
+        return this.dir.resolve(String.format("%08d.data", id));
+    }
+
+    // Seals the active segment and starts a new one, must be called holding l_active (or from the constructor)
+    private void roll() throws IOException {
+        int id = this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1;
+        Segment next = new Segment(id, segmentPath(id));
+        this.segments.put(id, next);
+        if (this.active != null) {
+            this.active.sealed = true;
+            maybeCompact(this.active);
+        }
+        this.active = next;
+    }
+
+    // Appends a record to the active segment, returns its location (not yet in the segment's live set)
+    private Location append(ByteBuffer record, int keyLength, int length) {
+        Segment segment;
+        long position;
+        this.l_active.lock();
+        try {
+            if (this.active.size > 0 && this.active.size + record.remaining() > this.segmentSize) roll();
+            segment = this.active;
+            position = segment.size;
+            segment.size += record.remaining();
+            segment.writers.incrementAndGet();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create a segment in " + this.dir, e);
+        } finally {
+            this.l_active.unlock();
+        }
+
+        // Positional writes of different appends run in parallel
+        try {
+            segment.write(record, position);
+            return new Location(segment, position, keyLength, length);
+        } catch (IOException e) {
+            segment.deadBytes.addAndGet(record.limit());
+            segment.writers.decrementAndGet();
+            throw new UncheckedIOException("Failed to append to " + segment.path, e);
+        }
+    }
+
+    // Record of buf[off..off+len), or of a tombstone if len is -1 (buf is then ignored)
+    private static ByteBuffer encode(byte[] key, byte[] buf, int off, int len, long expiresAt, long version) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + key.length + Math.max(len, 0));
+        record.putLong(4, version);
+        record.position(12);
+        record.putLong(expiresAt).putInt(key.length).putInt(len).put(key);
+        if (len > 0) record.put(buf, off, len);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 12, record.capacity() - 12);
+        record.putInt(0, (int) crc.getValue());
+        record.clear();
+        return record;
+    }
+
+    @Override
+    public Object store(byte[] buf, int off, int len) {
+        return store(Key.of(""), buf, off, len, 0);
+    }
+
+    @Override
+    public Object store(Key key, byte[] buf, int off, int len, long expiresAt) {
+        byte[] k = key.bytes();
+        Location location = append(encode(k, buf, off, len, expiresAt, 0), k.length, len);
+        Segment segment = location.segment;
+        segment.live.add(location);
+        segment.writers.decrementAndGet();
+        return location;
+    }
+
+    // Appends a tombstone of the key, already committed at `version`
+    @Override
+    public void removed(Key key, long version) {
+        byte[] k = key.bytes();
+        Location location = append(encode(k, null, 0, -1, 0, version), k.length, -1);
+        Segment segment = location.segment;
+        segment.tombstones.add(location);
+        segment.deadBytes.addAndGet(location.recordSize());
+        segment.writers.decrementAndGet();
+    }
+
+    @Override
+    public void committed(Object ref, long version) {
+        Location location = (Location) ref;
+        ByteBuffer stamp = ByteBuffer.allocate(8).putLong(0, version);
+        synchronized (location) {
+            if (location.freed) return;
+            try {
+                location.segment.write(stamp, location.offset + 4);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to commit a record in " + location.segment.path, e);
+            }
+        }
+    }
+
+    @Override
+    public byte[] load(Object ref) {
+        Location location = (Location) ref;
+        byte[] value = new byte[location.length];
+        synchronized (location) {
+            if (location.freed) return null;
+            try {
+                location.segment.read(ByteBuffer.wrap(value), location.offset + HEADER + location.keyLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read from " + location.segment.path, e);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void release(Object ref) {
+        Location location = (Location) ref;
+        Segment segment;
+        synchronized (location) {
+            if (location.freed) return;
+            location.freed = true;
+            segment = location.segment;
+        }
+        segment.live.remove(location);
+        segment.deadBytes.addAndGet(location.recordSize());
+        maybeCompact(segment);
+    }
+
+    private void maybeCompact(Segment segment) {
+        if (!segment.sealed || segment.compacting || segment.deadBytes.get() < segment.size * COMPACTION_RATIO) return;
+        synchronized (segment) {
+            if (segment.compacting) return;
+            segment.compacting = true;
+        }
+        this.compactor.execute(() -> compact(segment));
+    }
+
+    // Moves the live records of a sealed segment to the active one and deletes its file. Its tombstones move too
+    // unless it is the oldest segment: older records of their keys can only be in older segments.
+    private void compact(Segment segment) {
+        try {
+            while (segment.writers.get() > 0) Thread.yield(); // Appends reserved before it was sealed
+
+            List<Location> moved = new ArrayList<>(segment.live);
+            if (this.segments.firstKey() < segment.id) moved.addAll(segment.tombstones);
+            for (Location location : moved) {
+                byte[] record = new byte[location.recordSize()];
+                this.l_active.lock();
+                try {
+                    synchronized (location) {
+                        if (location.freed || location.segment != segment) continue;
+                        segment.read(ByteBuffer.wrap(record), location.offset);
+
+                        if (this.active.size > 0 && this.active.size + record.length > this.segmentSize) roll();
+                        Segment target = this.active;
+                        long position = target.size;
+                        target.write(ByteBuffer.wrap(record), position); // Keeps the committed version
+                        target.size += record.length;
+                        if (location.isTombstone()) {
+                            target.tombstones.add(location);
+                            target.deadBytes.addAndGet(record.length);
+                        } else {
+                            target.live.add(location);
+                        }
+                        location.segment = target;
+                        location.offset = position;
+                    }
+                } finally {
+                    this.l_active.unlock();
+                }
+                segment.live.remove(location);
+            }
+
+            // The copies must be on disk before their originals disappear
+            this.l_active.lock();
+            try {
+                this.active.channel.force(false);
+            } finally {
+                this.l_active.unlock();
+            }
+            this.segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+            this.compactedBytes.addAndGet(segment.size);
+        } catch (IOException e) {
+            System.err.println("Compaction of " + segment.path + " failed: " + e.getMessage());
+            segment.compacting = false;
+        }
+    }
+
+    // Rebuilds the references of the values written by an earlier run: the committed record with the
+    // highest version of each key, unless it is a tombstone. Superseded and uncommitted records count as dead space.
+    // Values are handed back with their expiration, even if it has passed - the caller drops them.
+    @Override
+    public long recover(Recovery recovery) throws IOException {
+        Map<Key, Location> newest = new HashMap<>();
+        Map<Location, Long> versions = new HashMap<>();
+        Map<Location, Long> expirations = new HashMap<>();
+        CRC32 crc = new CRC32();
+
+        for (Segment segment : this.segments.values()) {
+            if (segment == this.active) continue;
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (position + HEADER <= segment.size) {
+                header.clear();
+                segment.read(header, position);
+                int checksum = header.getInt(0);
+                long version = header.getLong(4);
+                long expiresAt = header.getLong(12);
+                int keyLength = header.getInt(20);
+                int length = header.getInt(24);
+                int stored = Math.max(length, 0);
+                if (keyLength < 0 || length < -1 || position + HEADER + keyLength + stored > segment.size) break;
+
+                ByteBuffer body = ByteBuffer.allocate(HEADER - 12 + keyLength + stored);
+                segment.read(body, position + 12);
+                crc.reset();
+                crc.update(body.array());
+                if ((int) crc.getValue() != checksum) break;
+
+                Location location = new Location(segment, position, keyLength, length);
+                Key key = Key.of(body.array(), HEADER - 12, keyLength);
+                Location previous = newest.get(key);
+                if (version > 0 && keyLength > 0 && (previous == null || versions.get(previous) < version)) {
+                    newest.put(key, location);
+                    versions.put(location, version);
+                    if (expiresAt != 0) expirations.put(location, expiresAt);
+                    if (previous != null) previous.segment.deadBytes.addAndGet(previous.recordSize());
+                } else {
+                    segment.deadBytes.addAndGet(location.recordSize());
+                }
+                position += location.recordSize();
+            }
+            segment.deadBytes.addAndGet(segment.size - position); // Torn tail
+        }
+
+        long last = 0;
+        for (Map.Entry<Key, Location> e : newest.entrySet()) {
+            Location location = e.getValue();
+            last = Math.max(last, versions.get(location));
+            if (location.isTombstone()) { // Removed - the tombstone still hides the older records
+                location.segment.tombstones.add(location);
+                location.segment.deadBytes.addAndGet(location.recordSize());
+                continue;
+            }
+            location.segment.live.add(location);
+            recovery.recovered(e.getKey(), location, location.length, versions.get(location),
+                    expirations.getOrDefault(location, 0L));
+        }
+        for (Segment segment : new ArrayList<>(this.segments.values())) maybeCompact(segment);
+        return last;
+    }
+
+    // Bytes of segment files on disk, and how many of them hold replaced or removed values
+    public long getDiskBytes() {
+        long total = 0;
+        for (Segment segment : this.segments.values()) total += segment.size;
+        return total;
+    }
+
+    public long getDeadBytes() {
+        long total = 0;
+        for (Segment segment : this.segments.values()) total += segment.deadBytes.get();
+        return total;
+    }
+
+    // Bytes of segments reclaimed by compaction so far
+    public long getCompactedBytes() {
+        return this.compactedBytes.get();
+    }
+
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.compactor.shutdown();
+        try {
+            this.compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Segment> open = new ArrayList<>(this.segments.values());
+        for (Segment segment : open) {
+            segment.channel.force(false);
+            segment.channel.close();
+        }
+    }
+}
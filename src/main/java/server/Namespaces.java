@@ -0,0 +1,147 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/*
+ * Namespaces - isolated storage engines by name, each opened on first use.
+ *
+ * A namespace is a StorageEngine of its own: its own map and stripe locks, value store, memory budget and log,
+ * so the writes and evictions of one tenant never reach the keys or the locks of another. Named namespaces can
+ * also be held to a number of operations per second. The default namespace ("") is the engine the server was
+ * started with and is never limited.
+ */
+public class Namespaces implements Closeable {
+    public static final String DEFAULT = "";
+    static final int MAX_NAMESPACES = 256;
+    private static final int MAX_NAME_LENGTH = 64;
+
+    // Opens the engine of a new namespace, e.g. recovering its own write-ahead log
+    @FunctionalInterface
+    public interface Factory {
+        StorageEngine open(String name) throws IOException;
+    }
+
+    // A namespace - its engine, operation budget and counters
+    public static final class Namespace {
+        public final String name;
+        public final StorageEngine engine;
+        private final long opsPerSecond; // 0 = unlimited
+        private double tokens;           // Operations still allowed now, guarded by this
+        private long refilledAt = System.nanoTime();
+        private final LongAdder ops = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+
+        private Namespace(String name, StorageEngine engine, long opsPerSecond) {
+            this.name = name;
+            this.engine = engine;
+            this.opsPerSecond = opsPerSecond;
+            this.tokens = opsPerSecond;
+        }
+
+        // Takes one operation of the budget (a bucket of a second's worth, refilled continuously), false if spent
+        public boolean tryAcquire() {
+            if (this.opsPerSecond > 0) {
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    this.tokens = Math.min(this.opsPerSecond, this.tokens + (now - this.refilledAt) * this.opsPerSecond / 1e9);
+                    this.refilledAt = now;
+                    if (this.tokens < 1) {
+                        this.throttled.increment();
+                        return false;
+                    }
+                    this.tokens--;
+                }
+            }
+            this.ops.increment();
+            return true;
+        }
+
+        // Counters of the engine, then the operations run and refused in this namespace
+        public Map<String, Long> getStats() {
+            Map<String, Long> stats = new LinkedHashMap<>(this.engine.getStats());
+            stats.put("ops", this.ops.sum());
+            stats.put("throttled", this.throttled.sum());
+            return stats;
+        }
+    }
+
+    private final Factory factory;
+    private final long opsPerSecond;
+    private final Map<String, Namespace> namespaces = new ConcurrentHashMap<>();
+
+    // Builder for a single namespace, the default one
+    public Namespaces(StorageEngine engine) {
+        this(engine, name -> {
+            throw new IllegalArgumentException("Namespaces are disabled");
+        }, 0);
+    }
+
+    // Builder for namespaces opened by `factory`, each limited to `opsPerSecond` operations (0 = unlimited)
+    public Namespaces(StorageEngine engine, Factory factory, long opsPerSecond) {
+        if (opsPerSecond < 0) throw new IllegalArgumentException("Operation budget cannot be negative: " + opsPerSecond);
+        this.factory = factory;
+        this.opsPerSecond = opsPerSecond;
+        this.namespaces.put(DEFAULT, new Namespace(DEFAULT, engine, 0));
+    }
+
+    public Namespace getDefault() {
+        return this.namespaces.get(DEFAULT);
+    }
+
+    // The namespace of that name, opened if new. Names are 1 to 64 letters, digits, '-' or '_'.
+    public Namespace get(String name) throws IOException {
+        Namespace namespace = this.namespaces.get(name);
+        if (namespace != null) return namespace;
+        if (!isValidName(name)) throw new IllegalArgumentException("Invalid namespace name: '" + name + "'");
+
+        try {
+            return this.namespaces.computeIfAbsent(name, n -> {
+                if (this.namespaces.size() >= MAX_NAMESPACES) {
+                    throw new IllegalArgumentException("Too many namespaces, at most " + MAX_NAMESPACES);
+                }
+                try {
+                    return new Namespace(n, this.factory.open(n), this.opsPerSecond);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) return false;
+        }
+        return true;
+    }
+
+    // Gives every open namespace to `action`, by name
+    public void forEach(BiConsumer<String, Namespace> action) {
+        this.namespaces.forEach(action);
+    }
+
+    // Closes every engine, even if closing one fails
+    @Override
+    public void close() throws IOException {
+        IOException failed = null;
+        for (Namespace namespace : this.namespaces.values()) {
+            try {
+                namespace.engine.close();
+            } catch (IOException e) {
+                failed = e;
+            }
+        }
+        if (failed != null) throw failed;
+    }
+}
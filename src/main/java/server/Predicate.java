@@ -0,0 +1,241 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/*
+ * Predicate - condition of a getWhen over one or more keys.
+ *
+ * Grammar (tokens separated by spaces, 'and' binds tighter than 'or'):
+ *      expr   := term ( 'or' term )*
+ *      term   := factor ( 'and' factor )*
+ *      factor := '(' expr ')' | key op operand | key 'absent'
+ *      op     := '=' | '!=' | '<' | '<=' | '>' | '>=' | 'prefix'
+ *
+ * '=' / '!=' compare bytes exactly, the ordering operators compare values as 64-bit decimal integers
+ * and 'prefix' matches values starting with the operand. An absent (e.g. expired) key only satisfies 'absent'.
+ */
+public abstract class Predicate {
+
+    public enum Op {
+        EQ("="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">="), PREFIX("prefix"), ABSENT("absent");
+
+        private final String symbol;
+
+        Op(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public boolean isNumeric() {
+            return this == LT || this == LE || this == GT || this == GE;
+        }
+
+        static Op of(String symbol) {
+            for (Op op : values()) {
+                if (op.symbol.equalsIgnoreCase(symbol)) return op;
+            }
+            return null;
+        }
+    }
+
+    // Evaluates the predicate, `lookup` returns the current value of a key or null if absent
+    public abstract boolean test(Function<String, byte[]> lookup);
+
+    // Leaf conditions - a write can only change the result through one of them
+    public abstract List<Atom> atoms();
+
+    public Set<String> keys() {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Atom atom : atoms()) {
+            keys.add(atom.key);
+        }
+        return keys;
+    }
+
+    public static Predicate equalTo(String key, byte[] value) {
+        return new Atom(key, Op.EQ, value);
+    }
+
+    // Single condition on the value of a key, the operand is null for 'absent'
+    public static final class Atom extends Predicate {
+        private final String key;
+        private final Op op;
+        private final byte[] operand;
+        private final long number; // operand of numeric comparisons
+
+        public Atom(String key, Op op, byte[] operand) {
+            this.key = key;
+            this.op = op;
+            this.operand = operand;
+            if (op.isNumeric()) {
+                Long n = Bytes.parseLong(operand);
+                if (n == null) throw new IllegalArgumentException("'" + new String(operand) + "' is not a number.");
+                this.number = n;
+            } else {
+                this.number = 0;
+            }
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public Op getOp() {
+            return this.op;
+        }
+
+        public byte[] getOperand() {
+            return this.operand;
+        }
+
+        public long getNumber() {
+            return this.number;
+        }
+
+        // Checks a value of the key (null if absent) against this condition
+        public boolean matches(byte[] value) {
+            if (value == null || this.op == Op.ABSENT) return value == null && this.op == Op.ABSENT;
+            switch (this.op) {
+                case EQ:
+                    return Arrays.equals(value, this.operand);
+                case NE:
+                    return !Arrays.equals(value, this.operand);
+                case PREFIX:
+                    return value.length >= this.operand.length
+                            && Arrays.equals(value, 0, this.operand.length, this.operand, 0, this.operand.length);
+                default:
+                    Long n = Bytes.parseLong(value);
+                    if (n == null) return false;
+                    switch (this.op) {
+                        case LT: return n < this.number;
+                        case LE: return n <= this.number;
+                        case GT: return n > this.number;
+                        default: return n >= this.number;
+                    }
+            }
+        }
+
+        @Override
+        public boolean test(Function<String, byte[]> lookup) {
+            return matches(lookup.apply(this.key));
+        }
+
+        @Override
+        public List<Atom> atoms() {
+            return List.of(this);
+        }
+    }
+
+    private static final class And extends Predicate {
+        private final List<Predicate> operands;
+
+        private And(List<Predicate> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public boolean test(Function<String, byte[]> lookup) {
+            for (Predicate p : this.operands) {
+                if (!p.test(lookup)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public List<Atom> atoms() {
+            List<Atom> atoms = new ArrayList<>();
+            for (Predicate p : this.operands) atoms.addAll(p.atoms());
+            return atoms;
+        }
+    }
+
+    private static final class Or extends Predicate {
+        private final List<Predicate> operands;
+
+        private Or(List<Predicate> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public boolean test(Function<String, byte[]> lookup) {
+            for (Predicate p : this.operands) {
+                if (p.test(lookup)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public List<Atom> atoms() {
+            List<Atom> atoms = new ArrayList<>();
+            for (Predicate p : this.operands) atoms.addAll(p.atoms());
+            return atoms;
+        }
+    }
+
+    // Parses tokens[from..] as an expression, throws IllegalArgumentException if they are not one
+    public static Predicate parse(String[] tokens, int from) {
+        Parser parser = new Parser(tokens, from);
+        Predicate p = parser.expr();
+        if (parser.pos != tokens.length) {
+            throw new IllegalArgumentException("Unexpected '" + tokens[parser.pos] + "' in condition.");
+        }
+        return p;
+    }
+
+    private static final class Parser {
+        private final String[] tokens;
+        private int pos;
+
+        private Parser(String[] tokens, int pos) {
+            this.tokens = tokens;
+            this.pos = pos;
+        }
+
+        private boolean accept(String token) {
+            if (this.pos < this.tokens.length && this.tokens[this.pos].equalsIgnoreCase(token)) {
+                this.pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String next(String expected) {
+            if (this.pos >= this.tokens.length) {
+                throw new IllegalArgumentException("Incomplete condition, expected " + expected + ".");
+            }
+            return this.tokens[this.pos++];
+        }
+
+        private Predicate expr() {
+            List<Predicate> operands = new ArrayList<>();
+            operands.add(term());
+            while (accept("or")) operands.add(term());
+            return operands.size() == 1 ? operands.get(0) : new Or(operands);
+        }
+
+        private Predicate term() {
+            List<Predicate> operands = new ArrayList<>();
+            operands.add(factor());
+            while (accept("and")) operands.add(factor());
+            return operands.size() == 1 ? operands.get(0) : new And(operands);
+        }
+
+        private Predicate factor() {
+            if (accept("(")) {
+                Predicate p = expr();
+                if (!accept(")")) throw new IllegalArgumentException("Missing ')' in condition.");
+                return p;
+            }
+            String key = next("a key");
+            String symbol = next("an operator");
+            Op op = Op.of(symbol);
+            if (op == null) throw new IllegalArgumentException("Unknown operator '" + symbol + "'.");
+            if (op == Op.ABSENT) return new Atom(key, op, null);
+            return new Atom(key, op, next("a value").getBytes());
+        }
+    }
+}
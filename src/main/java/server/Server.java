@@ -3,6 +3,9 @@ package server;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.*;
 
 import conn.*;
@@ -13,15 +16,16 @@ public class Server {
 
     private ServerSocket serverSocket;
     private UserManager users;
-    private DataManager data;
+    private Namespaces namespaces;
     private ThreadPoolExecutor clientThreadPool;
     private ThreadPoolExecutor commandThreadPool;
+    private ScheduledExecutorService snapshotScheduler;
 
     // Inicialização padrão (Usado pelos testes)
     public Server() {
         try {
             users = new UserManager(MAX_CLIENTS);
-            data = new DataManager();
+            namespaces = new Namespaces(new DataManager(), name -> new DataManager(), 0);
             serverSocket = new ServerSocket(PORT);
 
             // Create a custom thread pool
@@ -66,9 +70,19 @@ public class Server {
 
     // Builder for specified maxClients
     public Server(int maxClients) {
+        this(maxClients, new Namespaces(new DataManager(), name -> new DataManager(), 0));
+    }
+
+    // Builder for specified maxClients and storage engine, e.g. one recovered from its write-ahead log
+    public Server(int maxClients, StorageEngine data) {
+        this(maxClients, new Namespaces(data));
+    }
+
+    // Builder for specified maxClients and namespaces, the default one being the engine the server started with
+    public Server(int maxClients, Namespaces namespaces) {
         try {
             users = new UserManager(maxClients);
-            data = new DataManager();
+            this.namespaces = namespaces;
             serverSocket = new ServerSocket(PORT);
     
     
@@ -108,6 +122,28 @@ public class Server {
         }
     }
 
+    // Writes a snapshot of every durable namespace every `periodSeconds`, so restarts only replay the log written since
+    public void scheduleSnapshots(long periodSeconds) {
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshots");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            namespaces.forEach((name, namespace) -> {
+                if (!namespace.engine.supportsSnapshots()) return;
+                try {
+                    long startTime = System.nanoTime();
+                    long keys = namespace.engine.snapshot();
+                    System.out.printf("Snapshot of %d keys%s written in %.1f ms%n", keys,
+                            name.isEmpty() ? "" : " of namespace '" + name + "'", (System.nanoTime() - startTime) / 1e6);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error writing snapshot: " + e.getMessage());
+                }
+            });
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
     public void start() {
         try {
             while (true) {
@@ -117,7 +153,7 @@ public class Server {
                 System.out.println("Client connected: " + socket.getInetAddress().getHostAddress());
 
                 // Submit a ClientHandler to the thread pool
-                clientThreadPool.submit(new ClientHandler(socket, users, data, conn, commandThreadPool));
+                clientThreadPool.submit(new ClientHandler(socket, users, namespaces, conn, commandThreadPool));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -137,6 +173,12 @@ public class Server {
             if (clientThreadPool != null && !clientThreadPool.isShutdown()) {
                 clientThreadPool.shutdown(); // Gracefully shutdown the thread pool
             }
+            if (snapshotScheduler != null) {
+                snapshotScheduler.shutdownNow();
+            }
+            if (namespaces != null) {
+                namespaces.close(); // Flushes the write-ahead logs
+            }
             System.out.println("Server closed.");
         } catch (IOException e) {
             System.err.println("Error closing server: " + e.getMessage());
@@ -144,18 +186,64 @@ public class Server {
     }
 
 
+    // Usage: Server [maxClients] [--engine=memory|global|offheap|log:<dir>] [--max-bytes=<n>] [--compress-above=<n>]
+    //               [--dedup-above=<n>] [--wal=<file> [--durability=sync|<n>ms|os] [--snapshot-every=<seconds>]]
+    //               [--namespace-max-bytes=<n>] [--namespace-ops=<n per second>]
     public static void main(String[] args) {
         int maxClients = MAX_CLIENTS;
-    
-        if (args.length > 0) {
+        Map<String, String> options = new HashMap<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+                continue;
+            }
             try {
-                maxClients = Integer.parseInt(args[0]);
+                maxClients = Integer.parseInt(arg);
             } catch (NumberFormatException e) {
                 System.err.println("Invalid argument for max clients. Using default: " + maxClients);
             }
         }
-    
-        Server server = new Server(maxClients);
+
+        // The store is recovered (snapshot, log, segments) before the server accepts any connection
+        String engine = options.getOrDefault("engine", StorageEngines.DEFAULT);
+        Namespaces namespaces;
+        try {
+            long maxBytes = options.containsKey("max-bytes") ? Long.parseLong(options.get("max-bytes")) : Long.MAX_VALUE;
+            int compressAbove = options.containsKey("compress-above") ? Integer.parseInt(options.get("compress-above")) : 0;
+            int dedupAbove = options.containsKey("dedup-above") ? Integer.parseInt(options.get("dedup-above")) : 0;
+            String durability = options.getOrDefault("durability", "sync");
+            WriteAheadLog wal = null;
+            if (options.containsKey("wal")) {
+                wal = WriteAheadLog.open(Paths.get(options.get("wal")), durability);
+            }
+
+            long startTime = System.nanoTime();
+            StorageEngine data = StorageEngines.open(engine, maxBytes, wal, compressAbove, dedupAbove);
+            System.out.printf("Storage engine '%s' ready in %.1f ms%n", engine, (System.nanoTime() - startTime) / 1e6);
+
+            // Every other namespace gets an engine of the same kind, with its own budget, log and segments
+            long namespaceMaxBytes = options.containsKey("namespace-max-bytes") ? Long.parseLong(options.get("namespace-max-bytes")) : maxBytes;
+            long namespaceOps = options.containsKey("namespace-ops") ? Long.parseLong(options.get("namespace-ops")) : 0;
+            String walPath = options.get("wal");
+            namespaces = new Namespaces(data, name -> {
+                WriteAheadLog namespaceWal = walPath == null ? null : WriteAheadLog.open(Paths.get(walPath + "-" + name), durability);
+                String namespaceEngine = engine.startsWith("log:") ? engine + "-" + name : engine;
+                return StorageEngines.open(namespaceEngine, namespaceMaxBytes, namespaceWal, compressAbove, dedupAbove);
+            }, namespaceOps);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid storage configuration: " + e.getMessage());
+            return;
+        }
+
+        Server server = new Server(maxClients, namespaces);
+        if (options.containsKey("snapshot-every")) {
+            try {
+                server.scheduleSnapshots(Long.parseLong(options.get("snapshot-every")));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid snapshot period '" + options.get("snapshot-every") + "', snapshots disabled.");
+            }
+        }
         server.start();
     }
 }
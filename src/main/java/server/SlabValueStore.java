@@ -0,0 +1,266 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * SlabValueStore - values kept off-heap, in direct memory pages split into fixed size slots.
+ *
+ * Each slab class serves values up to its slot size (classes grow by GROWTH_FACTOR) from its own pages
+ * and free list. When a class accumulates more than two pages of free slots, the page with the fewest live
+ * values is compacted: its values move to free slots elsewhere and the page returns to a shared pool, so
+ * memory freed by one size class can be reused by another. Values larger than a page get their own buffer.
+ *
+ * Locking order: slab class lock, then the handle's monitor. Readers only take the handle's monitor.
+ */
+public class SlabValueStore implements ValueStore {
+    public static final int PAGE_SIZE = 1 << 20;
+    private static final int MIN_SLOT_SIZE = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final SlabClass[] classes;
+    private final int[] slotSizes;
+    private final Deque<ByteBuffer> freePages = new ArrayDeque<>(); // Pages returned by compaction
+    private final Lock l_pages = new ReentrantLock();
+
+    private final AtomicLong allocatedBytes = new AtomicLong(0); // Direct memory held, including pooled pages
+    private final AtomicLong storedBytes = new AtomicLong(0);    // Bytes of live values
+
+    // Reference handed to DataManager - mutable so compaction can move the value without touching the data map
+    static final class Handle {
+        private final int length;
+        private final SlabClass owner; // null for values larger than a page
+        private ByteBuffer large;
+        private int page;
+        private int slot;
+        private boolean freed;
+
+        private Handle(int length, SlabClass owner) {
+            this.length = length;
+            this.owner = owner;
+        }
+    }
+
+    private final class SlabClass {
+        private final int slotSize;
+        private final int slotsPerPage;
+        private final Lock l_class = new ReentrantLock();
+        private volatile ByteBuffer[] pages = new ByteBuffer[0]; // Copied on change, read without the class lock
+        private Handle[][] owners = new Handle[0][];             // Live handle of each slot, null if free
+        private int[] live = new int[0];                         // Live slots of each page
+        private long[] freeSlots = new long[16];                 // Stack of free (page << 32 | slot)
+        private int freeCount = 0;
+
+        private SlabClass(int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerPage = PAGE_SIZE / slotSize;
+        }
+
+        private void pushFree(int page, int slot) {
+            if (this.freeCount == this.freeSlots.length) {
+                this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeCount * 2);
+            }
+            this.freeSlots[this.freeCount++] = ((long) page << 32) | slot;
+        }
+
+        // Adds a page (from the pool if possible) and puts all its slots on the free list
+        private void grow() {
+            ByteBuffer buffer = takePage();
+            ByteBuffer[] current = this.pages;
+
+            int page = 0;
+            while (page < current.length && current[page] != null) page++; // Reuse indexes of compacted pages
+            if (page == current.length) {
+                this.owners = Arrays.copyOf(this.owners, page + 1);
+                this.live = Arrays.copyOf(this.live, page + 1);
+            }
+
+            ByteBuffer[] next = Arrays.copyOf(current, Math.max(current.length, page + 1));
+            next[page] = buffer;
+            this.owners[page] = new Handle[this.slotsPerPage];
+            this.live[page] = 0;
+            this.pages = next;
+
+            for (int slot = this.slotsPerPage - 1; slot >= 0; slot--) {
+                pushFree(page, slot);
+            }
+        }
+
+        private Handle allocate(byte[] buf, int off, int len) {
+            Handle h = new Handle(len, this);
+            this.l_class.lock();
+            try {
+                if (this.freeCount == 0) grow();
+                long free = this.freeSlots[--this.freeCount];
+                h.page = (int) (free >>> 32);
+                h.slot = (int) free;
+                this.pages[h.page].put(h.slot * this.slotSize, buf, off, len);
+                this.owners[h.page][h.slot] = h;
+                this.live[h.page]++;
+            } finally {
+                this.l_class.unlock();
+            }
+            return h;
+        }
+
+        private boolean free(Handle h) {
+            this.l_class.lock();
+            try {
+                synchronized (h) {
+                    if (h.freed) return false;
+                    h.freed = true;
+                }
+                this.owners[h.page][h.slot] = null;
+                this.live[h.page]--;
+                pushFree(h.page, h.slot);
+
+                if (this.freeCount > 2 * this.slotsPerPage) compact();
+                return true;
+            } finally {
+                this.l_class.unlock();
+            }
+        }
+
+        // Empties the page with the fewest live values into free slots of other pages and returns it to the pool
+        private void compact() {
+            ByteBuffer[] current = this.pages;
+            int victim = -1;
+            for (int p = 0; p < current.length; p++) {
+                if (current[p] != null && (victim == -1 || this.live[p] < this.live[victim])) victim = p;
+            }
+            if (victim == -1) return;
+
+            // Free slots of the victim page are no longer usable
+            int kept = 0;
+            for (int i = 0; i < this.freeCount; i++) {
+                if ((int) (this.freeSlots[i] >>> 32) != victim) this.freeSlots[kept++] = this.freeSlots[i];
+            }
+            this.freeCount = kept;
+
+            ByteBuffer from = current[victim];
+            for (Handle h : this.owners[victim]) {
+                if (h == null) continue;
+                long free = this.freeSlots[--this.freeCount];
+                int page = (int) (free >>> 32);
+                int slot = (int) free;
+                byte[] value = new byte[h.length];
+                synchronized (h) { // Readers see either the old or the new location, never a half copied value
+                    from.get(h.slot * this.slotSize, value, 0, h.length);
+                    current[page].put(slot * this.slotSize, value, 0, h.length);
+                    h.page = page;
+                    h.slot = slot;
+                }
+                this.owners[page][slot] = h;
+                this.live[page]++;
+            }
+
+            ByteBuffer[] next = Arrays.copyOf(current, current.length);
+            next[victim] = null;
+            this.owners[victim] = null;
+            this.live[victim] = 0;
+            this.pages = next;
+            returnPage(from);
+        }
+    }
+
+    public SlabValueStore() {
+        List<Integer> sizes = new ArrayList<>();
+        for (double size = MIN_SLOT_SIZE; size < PAGE_SIZE; size *= GROWTH_FACTOR) {
+            int aligned = ((int) size + 7) & ~7;
+            if (aligned < PAGE_SIZE && (sizes.isEmpty() || aligned > sizes.get(sizes.size() - 1))) sizes.add(aligned);
+        }
+        sizes.add(PAGE_SIZE);
+
+        this.slotSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        this.classes = new SlabClass[this.slotSizes.length];
+        for (int i = 0; i < this.classes.length; i++) {
+            this.classes[i] = new SlabClass(this.slotSizes[i]);
+        }
+    }
+
+    private ByteBuffer takePage() {
+        this.l_pages.lock();
+        try {
+            ByteBuffer page = this.freePages.poll();
+            if (page != null) return page;
+        } finally {
+            this.l_pages.unlock();
+        }
+        this.allocatedBytes.addAndGet(PAGE_SIZE);
+        return ByteBuffer.allocateDirect(PAGE_SIZE);
+    }
+
+    private void returnPage(ByteBuffer page) {
+        this.l_pages.lock();
+        try {
+            this.freePages.push(page);
+        } finally {
+            this.l_pages.unlock();
+        }
+    }
+
+    @Override
+    public Object store(byte[] buf, int off, int len) {
+        this.storedBytes.addAndGet(len);
+
+        if (len > PAGE_SIZE) {
+            Handle h = new Handle(len, null);
+            h.large = ByteBuffer.allocateDirect(len);
+            h.large.put(0, buf, off, len);
+            this.allocatedBytes.addAndGet(len);
+            return h;
+        }
+
+        int c = Arrays.binarySearch(this.slotSizes, len);
+        if (c < 0) c = -c - 1; // Smallest class whose slots fit the value
+        return this.classes[c].allocate(buf, off, len);
+    }
+
+    @Override
+    public byte[] load(Object ref) {
+        Handle h = (Handle) ref;
+        byte[] value = new byte[h.length];
+        synchronized (h) {
+            if (h.freed) return null;
+            if (h.owner == null) {
+                h.large.get(0, value, 0, h.length);
+            } else {
+                h.owner.pages[h.page].get(h.slot * h.owner.slotSize, value, 0, h.length);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void release(Object ref) {
+        Handle h = (Handle) ref;
+        if (h.owner != null) {
+            if (!h.owner.free(h)) return;
+        } else {
+            synchronized (h) {
+                if (h.freed) return;
+                h.freed = true;
+                h.large = null; // Direct buffer is reclaimed with its object
+            }
+            this.allocatedBytes.addAndGet(-h.length);
+        }
+        this.storedBytes.addAndGet(-h.length);
+    }
+
+    // Direct memory reserved by the store
+    public long getAllocatedBytes() {
+        return this.allocatedBytes.get();
+    }
+
+    // Bytes of the values currently stored
+    public long getStoredBytes() {
+        return this.storedBytes.get();
+    }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/*
+ * SnapshotFile - compact binary image of the store at one version.
+ *
+ * Layout: chunks of records [int key length][key][long version][long expiresAt][int value length][value], followed by
+ * the chunk index
+ * {[long offset][int length][int crc32]}*, then [int chunks][long version][int MAGIC].
+ * Chunks are independent, so they are loaded in parallel, each through its own memory mapping.
+ * The file is written next to its final name and renamed once complete, so a crash never leaves a partial snapshot.
+ */
+final class SnapshotFile {
+    private static final int MAGIC = 0x534e4150; // "SNAP"
+    private static final int TRAILER = 16;
+    static final int CHUNK_SIZE = 8 << 20;
+
+    // Receives each loaded record, possibly from several threads at once
+    interface Loader {
+        void apply(Key key, byte[] value, long version, long expiresAt);
+    }
+
+    // Writes a snapshot record by record
+    static final class Writer implements AutoCloseable {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final CRC32 crc = new CRC32();
+        private final List<long[]> chunks = new ArrayList<>(); // {offset, length, crc}
+        private long position = 0;
+        private long chunkStart = 0;
+        private boolean finished = false;
+
+        private Writer(Path target) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            this.channel = FileChannel.open(this.temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void put(byte[] data) throws IOException {
+            int off = 0;
+            while (off < data.length) {
+                if (!this.buffer.hasRemaining()) flush();
+                int n = Math.min(this.buffer.remaining(), data.length - off);
+                this.buffer.put(data, off, n);
+                off += n;
+            }
+        }
+
+        private void putInt(int value) throws IOException {
+            if (this.buffer.remaining() < 4) flush();
+            this.buffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            if (this.buffer.remaining() < 8) flush();
+            this.buffer.putLong(value);
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+            this.crc.update(this.buffer.duplicate());
+            while (this.buffer.hasRemaining()) this.channel.write(this.buffer);
+            this.buffer.clear();
+        }
+
+        // Adds a key whose value was written at `version` and expires at `expiresAt` (epoch millis, 0 = never)
+        void add(Key key, byte[] value, long version, long expiresAt) throws IOException {
+            byte[] k = key.bytes();
+            putInt(k.length);
+            put(k);
+            putLong(version);
+            putLong(expiresAt);
+            putInt(value.length);
+            put(value);
+            this.position += 24 + k.length + value.length;
+            if (this.position - this.chunkStart >= CHUNK_SIZE) endChunk();
+        }
+
+        private void endChunk() throws IOException {
+            flush();
+            if (this.position > this.chunkStart) {
+                this.chunks.add(new long[] { this.chunkStart, this.position - this.chunkStart, this.crc.getValue() });
+            }
+            this.chunkStart = this.position;
+            this.crc.reset();
+        }
+
+        // Completes the file and puts it in place of the previous snapshot
+        void finish(long version) throws IOException {
+            endChunk();
+            ByteBuffer index = ByteBuffer.allocate(this.chunks.size() * 16 + TRAILER);
+            for (long[] chunk : this.chunks) {
+                index.putLong(chunk[0]).putInt((int) chunk[1]).putInt((int) chunk[2]);
+            }
+            index.putInt(this.chunks.size()).putLong(version).putInt(MAGIC).flip();
+            while (index.hasRemaining()) this.channel.write(index);
+
+            this.channel.force(true);
+            this.channel.close();
+            Files.move(this.temp, this.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            this.finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.finished) return;
+            this.channel.close();
+            Files.deleteIfExists(this.temp); // Abandoned
+        }
+    }
+
+    private SnapshotFile() {
+    }
+
+    static Writer create(Path target) throws IOException {
+        return new Writer(target);
+    }
+
+    // Loads every record with `parallelism` threads, one memory mapped chunk at a time per thread.
+    // Returns the version of the snapshot.
+    static long load(Path file, int parallelism, Loader apply) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER) throw new IOException("Snapshot " + file + " is truncated");
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER, TRAILER);
+            int nChunks = trailer.getInt();
+            long version = trailer.getLong();
+            if (trailer.getInt() != MAGIC || nChunks < 0 || (long) nChunks * 16 > size - TRAILER) {
+                throw new IOException("Snapshot " + file + " is corrupt");
+            }
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER - nChunks * 16L, nChunks * 16L);
+
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int i = 0; i < nChunks; i++) {
+                    long offset = index.getLong();
+                    int length = index.getInt();
+                    int checksum = index.getInt();
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                    tasks.add(pool.submit(() -> {
+                        loadChunk(file, chunk, checksum, apply);
+                        return null;
+                    }));
+                }
+                for (Future<?> task : tasks) task.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + file);
+            } finally {
+                pool.shutdownNow();
+            }
+            return version;
+        }
+    }
+
+    private static void loadChunk(Path file, ByteBuffer chunk, int checksum, Loader apply) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(chunk.duplicate());
+        if ((int) crc.getValue() != checksum) throw new IOException("Snapshot " + file + " has a corrupt chunk");
+
+        while (chunk.hasRemaining()) {
+            byte[] key = new byte[chunk.getInt()];
+            chunk.get(key);
+            long version = chunk.getLong();
+            long expiresAt = chunk.getLong();
+            byte[] value = new byte[chunk.getInt()];
+            chunk.get(value);
+            apply.apply(Key.wrap(key), value, version, expiresAt);
+        }
+    }
+}
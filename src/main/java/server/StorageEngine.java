@@ -0,0 +1,177 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/*
+ * StorageEngine - what the server needs from a store of keys and values.
+ *
+ * ClientHandler and CommandExecutor only use this interface, so a new engine is plugged in by implementing it
+ * and naming it in StorageEngines. Implementations must be thread safe, multiPut/multiGet atomic and
+ * getWhenAsync must never block the caller. Keys are taken as Key (UTF-8 bytes) on the get/put hot path, the
+ * String variants convert them.
+ */
+public interface StorageEngine extends Closeable {
+
+    // Writes buf[off..off+len) as the value of the key, removed after `ttlMillis` (0 = kept), false if the value is empty
+    boolean put(Key key, byte[] buf, int off, int len, long ttlMillis);
+
+    default boolean put(String key, byte[] buf, int off, int len, long ttlMillis) {
+        return put(Key.of(key), buf, off, len, ttlMillis);
+    }
+
+    default boolean put(String key, byte[] buf, int off, int len) {
+        return put(key, buf, off, len, 0);
+    }
+
+    default boolean put(String key, byte[] value) {
+        return put(key, value, 0, value.length);
+    }
+
+    // Value of the key, null if absent
+    byte[] get(Key key);
+
+    default byte[] get(String key) {
+        return get(Key.of(key));
+    }
+
+    // Value of the key as a zlib stream, for clients that inflate it themselves - null if absent
+    byte[] getDeflated(Key key);
+
+    default byte[] getDeflated(String key) {
+        return getDeflated(Key.of(key));
+    }
+
+    // Value of the key with its version, null if absent (version 0)
+    Versioned getVersioned(Key key);
+
+    default Versioned getVersioned(String key) {
+        return getVersioned(Key.of(key));
+    }
+
+    // Value of the key with its version, null if absent - but only the version, with a null value, if the key is
+    // still at `knownVersion`, so a polling client is not sent a value it already has
+    Versioned getIfModified(Key key, long knownVersion);
+
+    default Versioned getIfModified(String key, long knownVersion) {
+        return getIfModified(Key.of(key), knownVersion);
+    }
+
+    // Writes buf[off..off+len) only if the key is still at `expectedVersion` (0 = absent), atomically
+    CasResult compareAndSet(String key, long expectedVersion, byte[] buf, int off, int len);
+
+    default CasResult compareAndSet(String key, long expectedVersion, byte[] value) {
+        return compareAndSet(key, expectedVersion, value, 0, value.length);
+    }
+
+    // Writes every pair atomically, all removed after `ttlMillis` (0 = kept)
+    void multiPut(Map<String, byte[]> values, long ttlMillis);
+
+    default void multiPut(Map<String, byte[]> values) {
+        multiPut(values, 0);
+    }
+
+    // Writes keys[i] = buf[offs[i]..offs[i]+lens[i]) for i < n in batch, not atomically - for bulk loads
+    void putAll(Key[] keys, byte[] buf, int[] offs, int[] lens, int n);
+
+    // Makes room for about `keys` more keys ahead of a bulk load, so the engine does not grow step by step
+    void reserve(long keys);
+
+    // Writes every pair atomically, only if every key of `expectedVersions` is still at its version
+    CasResult compareAndSet(Map<String, Long> expectedVersions, Map<String, byte[]> values);
+
+    // Optimistic transaction: writes every pair atomically only if every key of `readVersions` (0 = absent) is still
+    // at the version it was read at, otherwise the result holds the keys that changed and their current versions
+    CasResult commit(Map<String, Long> readVersions, Map<String, byte[]> writes);
+
+    // Atomic updates applied by the engine, the value never travels to the client and back.
+    // Adds `delta` to the decimal 64-bit counter of the key (created at 0), returns the new value
+    long increment(String key, long delta);
+
+    // Appends buf[off..off+len) to the value of the key (created if absent), returns the new length
+    int append(String key, byte[] buf, int off, int len);
+
+    // Adds an item to the tail of the list of the key, keeping at most `maxLength` items (0 = unbounded),
+    // returns the new length
+    int push(String key, byte[] item, int maxLength);
+
+    // Removes the item at the head of the list of the key, null if absent
+    byte[] pop(String key);
+
+    // Values of the keys present, read atomically
+    Map<String, byte[]> multiGet(Set<String> keys);
+
+    // Values of the keys present with their versions, read atomically (absent keys are at version 0)
+    Map<String, Versioned> multiGetVersioned(Set<String> keys);
+
+    // Same for the keys of `knownVersions`, with a null value for those still at their version there
+    Map<String, Versioned> multiGetIfModified(Map<String, Long> knownVersions);
+
+    // Gives `out` up to `limit` keys of [from, to) (to = null for no bound) and their values, in key order.
+    // Returns the last key given if there are more, to continue from just after it, or null at the end.
+    String scan(String from, String to, int limit, BiConsumer<String, byte[]> out);
+
+    // First key after every key starting with `prefix`, the exclusive end of a prefix scan (null if there is none)
+    static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) return prefix.substring(0, i) + (char) (c + 1);
+        }
+        return null;
+    }
+
+    // Smallest key after `key`, where a scan continues from its cursor
+    static String after(String key) {
+        return key + '\u0000';
+    }
+
+    // Gives `out` up to `limit` keys currently holding exactly `value`, in key order, returns how many were given
+    int findKeys(byte[] value, int limit, Consumer<String> out);
+
+    // Count, sum, min and max of the integer values of the keys, read atomically
+    Aggregate aggregate(Collection<String> keys);
+
+    // Same over the keys of [from, to) (to = null for no bound)
+    Aggregate aggregate(String from, String to);
+
+    // Value of 'key' once the predicate holds - completed by the write that satisfies it
+    CompletableFuture<byte[]> getWhenAsync(String key, Predicate predicate);
+
+    default CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        return getWhenAsync(key, Predicate.equalTo(keyCond, valueCond));
+    }
+
+    // Conditional get - blocks the calling thread until the condition is satisfied
+    default byte[] getWhen(String key, String keyCond, byte[] valueCond) throws InterruptedException {
+        CompletableFuture<byte[]> future = getWhenAsync(key, keyCond, valueCond);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false); // Nobody will read the result, release the waiter
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("getWhen failed", e.getCause());
+        }
+    }
+
+    // Counters reported by the 'stats' command, in display order
+    Map<String, Long> getStats();
+
+    // Whether snapshot() can be called, e.g. false for an engine without a write-ahead log
+    boolean supportsSnapshots();
+
+    // Writes a point-in-time snapshot for faster restarts, returns the number of keys written. Only for engines
+    // that supportsSnapshots(), others throw IllegalStateException.
+    long snapshot() throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,59 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/*
+ * StorageEngines - engines the server can be started with, by name:
+ *   memory     - values on the heap, lock striping (default)
+ *   global     - values on the heap, a single global lock
+ *   offheap    - values in direct memory slabs
+ *   log:<dir>  - values in log-structured segment files under <dir>
+ * The in-memory engines can keep large values deflated (CompressingValueStore) and store repeated values once
+ * (DedupValueStore).
+ */
+public final class StorageEngines {
+    public static final String DEFAULT = "memory";
+
+    private StorageEngines() {
+    }
+
+    // Engine without a memory budget nor a write-ahead log
+    public static StorageEngine open(String engine) throws IOException {
+        return open(engine, Long.MAX_VALUE, null);
+    }
+
+    // Engine bounded to `maxBytes` (Long.MAX_VALUE for none), logging to `wal` if not null
+    public static StorageEngine open(String engine, long maxBytes, WriteAheadLog wal) throws IOException {
+        return open(engine, maxBytes, wal, 0);
+    }
+
+    // Same, keeping values of at least `compressAbove` bytes deflated (0 = never)
+    public static StorageEngine open(String engine, long maxBytes, WriteAheadLog wal, int compressAbove) throws IOException {
+        return open(engine, maxBytes, wal, compressAbove, 0);
+    }
+
+    // Same, storing each distinct value of at least `dedupAbove` bytes once (0 = never)
+    public static StorageEngine open(String engine, long maxBytes, WriteAheadLog wal, int compressAbove, int dedupAbove)
+            throws IOException {
+        if (engine.equals("memory")) {
+            return new DataManager(DataManager.DEFAULT_STRIPES, wrap(new HeapValueStore(), compressAbove, dedupAbove), maxBytes, wal);
+        } else if (engine.equals("global")) {
+            return new DataManager(1, wrap(new HeapValueStore(), compressAbove, dedupAbove), maxBytes, wal);
+        } else if (engine.equals("offheap")) {
+            return new DataManager(DataManager.DEFAULT_STRIPES, wrap(new SlabValueStore(), compressAbove, dedupAbove), maxBytes, wal);
+        } else if (engine.startsWith("log:") && engine.length() > 4) {
+            if (compressAbove > 0) throw new IllegalArgumentException("The log engine does not support compression");
+            if (dedupAbove > 0) throw new IllegalArgumentException("The log engine does not support deduplication");
+            ValueStore store = new LogStructuredValueStore(Paths.get(engine.substring(4)));
+            return new DataManager(DataManager.DEFAULT_STRIPES, store, maxBytes, wal);
+        }
+        throw new IllegalArgumentException("Unknown storage engine: " + engine);
+    }
+
+    // Duplicates are found before compressing, so a pooled value is only deflated once
+    private static ValueStore wrap(ValueStore store, int compressAbove, int dedupAbove) {
+        if (compressAbove > 0) store = new CompressingValueStore(store, compressAbove);
+        return dedupAbove > 0 ? new DedupValueStore(store, dedupAbove) : store;
+    }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * TimingWheel - hierarchical timing wheel of the key expirations, scheduling and cancelling in O(1).
+ *
+ * LEVELS wheels of SLOTS slots each: a slot of level 0 covers one tick, a slot of level l covers SLOTS^l ticks.
+ * A timeout is linked into the slot of the lowest level its deadline fits in. Every tick empties one slot of
+ * level 0, and whenever a level wraps around, the next slot of the level above is cascaded down, its timeouts
+ * re-linked into lower (finer) levels. Deadlines beyond the top level wait in its farthest slot and are
+ * re-linked as they come closer.
+ */
+class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    // A scheduled expiration, linked into one slot while pending
+    static final class Timeout<T> {
+        private final T item;
+        private final long deadline; // In ticks
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private boolean linked = false;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        T getItem() {
+            return this.item;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout<T>[][] slots; // Sentinels of circular lists, slots[level][index]
+    private final Lock l_wheel = new ReentrantLock();
+    private long currentTick; // guarded by l_wheel, every tick up to it was processed
+    private int size = 0;     // guarded by l_wheel
+
+    // Builder for a tick length, the resolution of the deadlines, starting at `nowMillis`
+    TimingWheel(long tickMillis, long nowMillis) {
+        if (tickMillis < 1) throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.slots = newSlots();
+        for (Timeout<T>[] level : this.slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                Timeout<T> sentinel = new Timeout<>(null, 0);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        }
+    }
+
+    // Arrays of a generic type can only be created raw
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <T> Timeout<T>[][] newSlots() {
+        return new Timeout[LEVELS][SLOTS];
+    }
+
+    long getTickMillis() {
+        return this.tickMillis;
+    }
+
+    // Schedules `item` to expire at `deadlineMillis` (rounded up to the next tick)
+    Timeout<T> schedule(T item, long deadlineMillis) {
+        long deadline = (deadlineMillis + this.tickMillis - 1) / this.tickMillis;
+        Timeout<T> t;
+        this.l_wheel.lock();
+        try {
+            t = new Timeout<>(item, Math.max(deadline, this.currentTick + 1)); // Already due fires on the next tick
+            link(t);
+            this.size++;
+        } finally {
+            this.l_wheel.unlock();
+        }
+        return t;
+    }
+
+    // Drops a pending timeout, no effect if it already fired or was cancelled
+    void cancel(Timeout<T> t) {
+        this.l_wheel.lock();
+        try {
+            if (!t.linked) return;
+            unlink(t);
+            this.size--;
+        } finally {
+            this.l_wheel.unlock();
+        }
+    }
+
+    // Processes every tick up to `nowMillis`, adding the items whose deadline passed to `expired`
+    void advance(long nowMillis, List<T> expired) {
+        long target = nowMillis / this.tickMillis;
+        this.l_wheel.lock();
+        try {
+            while (this.currentTick < target) {
+                this.currentTick++;
+                cascade();
+                Timeout<T> sentinel = this.slots[0][(int) (this.currentTick & (SLOTS - 1))];
+                while (sentinel.next != sentinel) {
+                    Timeout<T> t = sentinel.next;
+                    unlink(t);
+                    this.size--;
+                    expired.add(t.item);
+                }
+            }
+        } finally {
+            this.l_wheel.unlock();
+        }
+    }
+
+    // Pending timeouts
+    int size() {
+        this.l_wheel.lock();
+        try {
+            return this.size;
+        } finally {
+            this.l_wheel.unlock();
+        }
+    }
+
+    // Re-links the next slot of every level that wrapped around on the current tick, must hold l_wheel
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            long shift = (long) SLOT_BITS * level;
+            if ((this.currentTick & ((1L << shift) - 1)) != 0) return; // The levels below did not wrap
+            Timeout<T> sentinel = this.slots[level][(int) ((this.currentTick >>> shift) & (SLOTS - 1))];
+            Timeout<T> t = sentinel.next;
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (t != sentinel) {
+                Timeout<T> next = t.next;
+                link(t);
+                t = next;
+            }
+        }
+    }
+
+    // Links a timeout into the lowest level covering its deadline (not before the current tick), must hold l_wheel
+    private void link(Timeout<T> t) {
+        long delta = t.deadline - this.currentTick;
+        long tick = t.deadline;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (level == LEVELS - 1 && delta >= 1L << (SLOT_BITS * LEVELS)) {
+            tick = this.currentTick + (1L << (SLOT_BITS * LEVELS)) - 1; // Too far, waits in the farthest slot
+        }
+        Timeout<T> sentinel = this.slots[level][(int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+        t.prev = sentinel.prev;
+        t.next = sentinel;
+        sentinel.prev.next = t;
+        sentinel.prev = t;
+        t.linked = true;
+    }
+
+    private void unlink(Timeout<T> t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        t.linked = false;
+    }
+}
@@ -0,0 +1,75 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/*
+ * ValueStore - where DataManager keeps the bytes of the values.
+ *
+ * DataManager only holds the reference returned by store() and hands it back to load()/release().
+ * Implementations must be thread safe.
+ */
+public interface ValueStore extends Closeable {
+
+    // Stores buf[off..off+len) and returns the reference to keep in its place.
+    // The store may keep `buf` itself, so callers must not modify it afterwards.
+    Object store(byte[] buf, int off, int len);
+
+    // Value behind the reference, or null if it was released meanwhile (the reader must retry)
+    byte[] load(Object ref);
+
+    // Called once no reader can reach the reference anymore
+    void release(Object ref);
+
+    // Value behind the reference as a zlib stream, for clients that inflate it themselves - null like load()
+    default byte[] loadDeflated(Object ref) {
+        byte[] value = load(ref);
+        return value == null ? null : CompressingValueStore.deflate(value);
+    }
+
+    // Bytes a value of `length` takes in the store, what a memory budget counts
+    default int footprint(Object ref, int length) {
+        return length;
+    }
+
+    // Bytes of values shared by several keys, left out of their footprint and counted once by a memory budget
+    default long sharedBytes() {
+        return 0;
+    }
+
+    // Counters of the store added to the 'stats' reply, in display order
+    default Map<String, Long> getStats() {
+        return Collections.emptyMap();
+    }
+
+    // Stores the value of `key`, expiring at `expiresAt` (0 = never) - stores that persist values keep both to find
+    // them again on restart
+    default Object store(Key key, byte[] buf, int off, int len, long expiresAt) {
+        return store(buf, off, len);
+    }
+
+    // Called holding the key's lock once the stored value is committed at `version`
+    default void committed(Object ref, long version) {
+    }
+
+    // Called holding the key's lock once the removal of its value is committed at `version` - stores that persist
+    // values record it so the value is not recovered on restart
+    default void removed(Key key, long version) {
+    }
+
+    // Value found by recover()
+    interface Recovery {
+        void recovered(Key key, Object ref, int length, long version, long expiresAt);
+    }
+
+    // Hands back the newest committed value of every key persisted by an earlier run, returns its highest version
+    default long recover(Recovery recovery) throws IOException {
+        return 0;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * VersionManager - commit versions of the multi-version store.
+ *
+ * Writers take a version with begin() once they hold the locks of their keys and publish it with commit(),
+ * which makes versions visible strictly in order: once `committed` is v, every write with a version <= v is installed.
+ * Readers pin the snapshot they read with open()/close(), so writers know which old versions must be kept.
+ */
+class VersionManager {
+    private final AtomicLong next = new AtomicLong(0);      // Last version handed out
+    private final AtomicLong committed = new AtomicLong(0); // Last version visible to readers
+    private final Map<Long, Integer> readers = new ConcurrentHashMap<>(); // Map <snapshot,number of readers>
+
+    // Version of a new write, must be called holding the locks of every key it writes
+    public long begin() {
+        return this.next.incrementAndGet();
+    }
+
+    // Publishes the version once every earlier one is published - earlier writers already hold all their locks,
+    // so they never wait for us
+    public void commit(long version) {
+        while (this.committed.get() != version - 1) {
+            Thread.yield();
+        }
+        this.committed.set(version);
+    }
+
+    // Continues numbering after `version`, e.g. the last one recovered from disk - only before any write
+    public void advance(long version) {
+        if (version > this.next.get()) {
+            this.next.set(version);
+            this.committed.set(version);
+        }
+    }
+
+    // Last version handed out, possibly not committed yet
+    public long lastBegun() {
+        return this.next.get();
+    }
+
+    // Latest consistent version
+    public long current() {
+        return this.committed.get();
+    }
+
+    // Pins the current snapshot until close()
+    public long open() {
+        long snapshot = this.committed.get();
+        this.readers.merge(snapshot, 1, Integer::sum);
+        return snapshot;
+    }
+
+    public void close(long snapshot) {
+        this.readers.computeIfPresent(snapshot, (s, n) -> n == 1 ? null : n - 1);
+    }
+
+    // Oldest snapshot a reader may still use, versions older than what it sees can be dropped
+    public long oldestVisible() {
+        long oldest = this.committed.get();
+        for (Long snapshot : this.readers.keySet()) {
+            if (snapshot < oldest) oldest = snapshot;
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,12 @@
+package server;
+
+// Value of a key together with the version of the write that produced it
+public class Versioned {
+    public final byte[] value;
+    public final long version;
+
+    public Versioned(byte[] value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+}
@@ -0,0 +1,160 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * WatchIndex - watchers of predicate atoms, indexed by key and by what the atom waits for,
+ *              so a write only reaches the watchers whose atom the new value satisfies.
+ *
+ * Not thread safe, each instance is guarded by the lock of the stripe that owns its keys.
+ */
+class WatchIndex<W> {
+    private final Map<Key, KeyWatch<W>> keyMap = new HashMap<>(); // Map <key,watchers of the key>
+
+    // Watchers of a single key, grouped by operator
+    private static class KeyWatch<W> {
+        private final Map<Bytes, List<W>> equal = new HashMap<>();       // value = operand
+        private final Map<Bytes, List<W>> notEqual = new HashMap<>();    // value != operand
+        private final Map<Bytes, List<W>> prefix = new HashMap<>();      // value starts with operand
+        private final Map<Integer, Integer> prefixLengths = new HashMap<>(); // Map <operand length,number of watchers>
+        private final TreeMap<Long, List<W>> atLeast = new TreeMap<>();  // value >= bound
+        private final TreeMap<Long, List<W>> atMost = new TreeMap<>();   // value <= bound
+        private final List<W> absent = new ArrayList<>();                // key removed
+        private int size = 0;
+    }
+
+    private static <K, W> void add(Map<K, List<W>> map, K k, W w) {
+        map.computeIfAbsent(k, x -> new ArrayList<>()).add(w);
+    }
+
+    private static <K, W> boolean remove(Map<K, List<W>> map, K k, W w) {
+        List<W> watchers = map.get(k);
+        if (watchers == null || !watchers.remove(w)) return false;
+        if (watchers.isEmpty()) map.remove(k);
+        return true;
+    }
+
+    // Numeric atoms are stored as inclusive bounds, null for strict bounds no long can reach
+    private static Long bound(Predicate.Atom atom) {
+        long n = atom.getNumber();
+        switch (atom.getOp()) {
+            case GT: return n == Long.MAX_VALUE ? null : n + 1;
+            case LT: return n == Long.MIN_VALUE ? null : n - 1;
+            default: return n;
+        }
+    }
+
+    public void add(Predicate.Atom atom, W w) {
+        Predicate.Op op = atom.getOp();
+        if (op.isNumeric() && bound(atom) == null) return; // Never satisfied, nothing to wake up
+
+        KeyWatch<W> kw = this.keyMap.computeIfAbsent(Key.of(atom.getKey()), k -> new KeyWatch<>());
+        kw.size++;
+        if (op == Predicate.Op.ABSENT) {
+            kw.absent.add(w);
+            return;
+        }
+        Bytes operand = new Bytes(atom.getOperand());
+
+        switch (op) {
+            case EQ:
+                add(kw.equal, operand, w);
+                break;
+            case NE:
+                add(kw.notEqual, operand, w);
+                break;
+            case PREFIX:
+                add(kw.prefix, operand, w);
+                kw.prefixLengths.merge(operand.length(), 1, Integer::sum);
+                break;
+            case GE:
+            case GT:
+                add(kw.atLeast, bound(atom), w);
+                break;
+            default:
+                add(kw.atMost, bound(atom), w);
+        }
+    }
+
+    public void remove(Predicate.Atom atom, W w) {
+        Predicate.Op op = atom.getOp();
+        Key key = Key.of(atom.getKey());
+        KeyWatch<W> kw = this.keyMap.get(key);
+        if (kw == null || (op.isNumeric() && bound(atom) == null)) return;
+        Bytes operand = op == Predicate.Op.ABSENT ? null : new Bytes(atom.getOperand());
+
+        boolean removed;
+        switch (op) {
+            case ABSENT:
+                removed = kw.absent.remove(w);
+                break;
+            case EQ:
+                removed = remove(kw.equal, operand, w);
+                break;
+            case NE:
+                removed = remove(kw.notEqual, operand, w);
+                break;
+            case PREFIX:
+                removed = remove(kw.prefix, operand, w);
+                if (removed) kw.prefixLengths.computeIfPresent(operand.length(), (len, n) -> n == 1 ? null : n - 1);
+                break;
+            case GE:
+            case GT:
+                removed = remove(kw.atLeast, bound(atom), w);
+                break;
+            default:
+                removed = remove(kw.atMost, bound(atom), w);
+        }
+
+        if (removed && --kw.size == 0) {
+            this.keyMap.remove(key); // Nobody watches the key anymore
+        }
+    }
+
+    public boolean watches(Key key) {
+        return this.keyMap.containsKey(key);
+    }
+
+    // Adds to `out` the watchers with an atom on `key` that `value` (null once removed) satisfies
+    public void collect(Key key, byte[] value, Collection<W> out) {
+        KeyWatch<W> kw = this.keyMap.get(key);
+        if (kw == null) return;
+        if (value == null) {
+            out.addAll(kw.absent);
+            return;
+        }
+
+        if (!kw.equal.isEmpty()) {
+            List<W> watchers = kw.equal.get(new Bytes(value));
+            if (watchers != null) out.addAll(watchers);
+        }
+
+        for (Map.Entry<Bytes, List<W>> e : kw.notEqual.entrySet()) {
+            if (!Arrays.equals(e.getKey().getData(), value)) out.addAll(e.getValue());
+        }
+
+        for (Integer length : kw.prefixLengths.keySet()) {
+            if (length > value.length) continue;
+            List<W> watchers = kw.prefix.get(new Bytes(Arrays.copyOf(value, length)));
+            if (watchers != null) out.addAll(watchers);
+        }
+
+        if (!kw.atLeast.isEmpty() || !kw.atMost.isEmpty()) {
+            Long n = Bytes.parseLong(value);
+            if (n != null) {
+                for (List<W> watchers : kw.atLeast.headMap(n, true).values()) out.addAll(watchers);
+                for (List<W> watchers : kw.atMost.tailMap(n, true).values()) out.addAll(watchers);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.keyMap.isEmpty();
+    }
+}
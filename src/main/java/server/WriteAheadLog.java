@@ -0,0 +1,444 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * WriteAheadLog - append-only log of the writes of DataManager, replayed on startup.
+ *
+ * Writers only enqueue their record; a single log thread writes everything queued since its last pass with one
+ * write and (depending on the durability policy) one fsync, then completes the futures of the whole batch.
+ * Concurrent writes therefore share the cost of an fsync instead of paying one each (group commit).
+ *
+ * Record: [int body length][int crc32 of body][body],
+ * body = [long version][long expiresAt][int n]{[int key length][key][int value length][value]}*
+ * A torn or corrupt record at the end of the log (crash in the middle of a write) is dropped on replay.
+ *
+ * rotate() closes the current file as segment `<path>.<n>` and continues in an empty one, so a snapshot
+ * covering everything up to the rotation can delete the old segments instead of replaying them.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int HEADER = 8;
+    private static final int BODY_HEADER = 20; // version, expiresAt and n
+
+    // Receives each replayed write: its version, expiration (epoch millis, 0 = never) and values
+    interface Replay {
+        void apply(long version, long expiresAt, Map<String, byte[]> values);
+    }
+
+    public enum Durability {
+        SYNC,     // fsync every batch before replying
+        INTERVAL, // reply once written to the OS, fsync every `interval` ms
+        BUFFERED; // reply once written to the OS, fsync left to the OS (and close())
+
+        // "sync", "os" or an interval such as "100ms"
+        public static Durability parse(String policy) {
+            if (policy.equalsIgnoreCase("sync")) return SYNC;
+            if (policy.equalsIgnoreCase("os")) return BUFFERED;
+            if (policy.endsWith("ms")) return INTERVAL;
+            throw new IllegalArgumentException("Unknown durability policy: " + policy);
+        }
+    }
+
+    // Record waiting for the log thread, or a rotation marker if `record` is null
+    private static class Pending {
+        private final byte[] record;
+        private final long version;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+        private long segment; // Number given to the closed file, for rotation markers
+
+        private Pending(byte[] record, long version) {
+            this.record = record;
+            this.version = version;
+        }
+    }
+
+    private final Path path;
+    private FileChannel channel; // Replaced by the log thread on rotation
+    private final Durability durability;
+    private final long intervalNanos;
+
+    private final Lock l_queue = new ReentrantLock();
+    private final Condition hasWork = this.l_queue.newCondition();
+    private List<Pending> queue = new ArrayList<>(); // guarded by l_queue
+    private boolean closed = false;                  // guarded by l_queue
+    private final Thread logThread;
+
+    private volatile long batches = 0; // Written by the log thread only
+    private volatile long records = 0;
+    private long lastSegment; // Number of the newest segment, used by the log thread only
+
+    public WriteAheadLog(Path path, Durability durability) throws IOException {
+        this(path, durability, 0);
+    }
+
+    // Builder for a log file and durability policy, `intervalMillis` is only used by INTERVAL
+    public WriteAheadLog(Path path, Durability durability, long intervalMillis) throws IOException {
+        this.path = path;
+        this.durability = durability;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        this.channel = openCurrent();
+        List<Long> segments = segments();
+        this.lastSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+
+        this.logThread = new Thread(this::writeLoop, "wal-" + path.getFileName());
+        this.logThread.setDaemon(true);
+        this.logThread.start();
+    }
+
+    // Builder from a server argument: "sync", "os" or an fsync interval such as "100ms"
+    public static WriteAheadLog open(Path path, String policy) throws IOException {
+        Durability durability = Durability.parse(policy);
+        long interval = 0;
+        if (durability == Durability.INTERVAL) {
+            try {
+                interval = Long.parseLong(policy.substring(0, policy.length() - 2));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid fsync interval: " + policy);
+            }
+        }
+        return new WriteAheadLog(path, durability, interval);
+    }
+
+    private FileChannel openCurrent() throws IOException {
+        FileChannel current = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        current.position(current.size());
+        return current;
+    }
+
+    private Path segmentPath(long n) {
+        return this.path.resolveSibling(this.path.getFileName() + "." + n);
+    }
+
+    // Numbers of the rotated segments, oldest first
+    private List<Long> segments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        String prefix = this.path.getFileName() + ".";
+        Path dir = this.path.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) numbers.add(Long.parseLong(suffix));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    public Durability getDurability() {
+        return this.durability;
+    }
+
+    // Encodes a write expiring at `expiresAt` (0 = never), the version is filled in by append.
+    // Done before taking any lock.
+    static byte[] encode(Map<String, byte[]> values, long expiresAt) {
+        int size = HEADER + BODY_HEADER;
+        List<byte[]> keys = new ArrayList<>(values.size());
+        for (Map.Entry<String, byte[]> e : values.entrySet()) {
+            byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            size += 8 + key.length + e.getValue().length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.position(HEADER + 8).putLong(expiresAt).putInt(values.size());
+        int i = 0;
+        for (byte[] value : values.values()) {
+            byte[] key = keys.get(i++);
+            record.putInt(key.length).put(key).putInt(value.length).put(value);
+        }
+        return record.array();
+    }
+
+    // Encodes a single write of buf[off..off+len)
+    static byte[] encode(Key key, byte[] buf, int off, int len, long expiresAt) {
+        byte[] k = key.bytes();
+        ByteBuffer record = ByteBuffer.allocate(HEADER + BODY_HEADER + 8 + k.length + len);
+        record.position(HEADER + 8);
+        record.putLong(expiresAt).putInt(1).putInt(k.length).put(k).putInt(len).put(buf, off, len);
+        return record.array();
+    }
+
+    // Encodes the writes of keys[order[from..to)], the value of keys[i] being buf[offs[i]..offs[i]+lens[i])
+    static byte[] encode(Key[] keys, byte[] buf, int[] offs, int[] lens, int[] order, int from, int to) {
+        int size = HEADER + BODY_HEADER;
+        for (int j = from; j < to; j++) {
+            size += 8 + keys[order[j]].length() + lens[order[j]];
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.position(HEADER + 8).putLong(0).putInt(to - from);
+        for (int j = from; j < to; j++) {
+            int i = order[j];
+            record.putInt(keys[i].length()).put(keys[i].bytes()).putInt(lens[i]).put(buf, offs[i], lens[i]);
+        }
+        return record.array();
+    }
+
+    // Queues an encoded record of the write committed at `version`. Records of the same key must be appended
+    // in commit order (DataManager appends holding the key's stripe lock). The future completes once the
+    // record reached the durability level of the log.
+    CompletableFuture<Void> append(byte[] record, long version) {
+        return enqueue(new Pending(record, version));
+    }
+
+    // Closes the current file as a segment and continues in a new one. Returns the number of that segment:
+    // every record appended before the call is in it or in an older one.
+    long rotate() throws IOException {
+        Pending marker = new Pending(null, 0);
+        try {
+            enqueue(marker).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        return marker.segment;
+    }
+
+    // Deletes the segments up to `n`, once a snapshot covers them
+    void deleteSegments(long n) throws IOException {
+        for (long segment : segments()) {
+            if (segment <= n) Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Pending p) {
+        this.l_queue.lock();
+        try {
+            if (this.closed) {
+                p.durable.completeExceptionally(new IOException("Write-ahead log is closed"));
+                return p.durable;
+            }
+            this.queue.add(p);
+            this.hasWork.signal();
+        } finally {
+            this.l_queue.unlock();
+        }
+        return p.durable;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        long lastSync = System.nanoTime();
+        boolean dirty = false; // Written since the last fsync
+
+        while (true) {
+            boolean stop;
+            this.l_queue.lock();
+            try {
+                while (this.queue.isEmpty() && !this.closed) {
+                    if (!dirty || this.durability != Durability.INTERVAL) {
+                        this.hasWork.awaitUninterruptibly();
+                        continue;
+                    }
+                    long remaining = lastSync + this.intervalNanos - System.nanoTime();
+                    if (remaining <= 0) break;
+                    try {
+                        this.hasWork.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        // Only close() stops the log thread
+                    }
+                }
+                List<Pending> swap = this.queue;
+                this.queue = batch;
+                batch = swap;
+                stop = this.closed;
+            } finally {
+                this.l_queue.unlock();
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    dirty = true;
+                }
+                boolean sync = this.durability == Durability.SYNC
+                        || this.durability == Durability.INTERVAL && System.nanoTime() - lastSync >= this.intervalNanos;
+                if (dirty && (sync || stop)) {
+                    this.channel.force(false);
+                    lastSync = System.nanoTime();
+                    dirty = false;
+                }
+                for (Pending p : batch) p.durable.complete(null);
+            } catch (IOException e) {
+                for (Pending p : batch) p.durable.completeExceptionally(e);
+            }
+            batch.clear();
+            if (stop) return;
+        }
+    }
+
+    // Writes the records of the batch, rotating the file at each marker
+    private void writeBatch(List<Pending> batch) throws IOException {
+        int from = 0;
+        for (int i = 0; i <= batch.size(); i++) {
+            if (i < batch.size() && batch.get(i).record != null) continue;
+            if (i > from) write(batch.subList(from, i));
+            if (i < batch.size()) rotate(batch.get(i));
+            from = i + 1;
+        }
+    }
+
+    private void rotate(Pending marker) {
+        try {
+            this.channel.force(false);
+            this.channel.close();
+            long n = this.lastSegment + 1;
+            Files.move(this.path, segmentPath(n), StandardCopyOption.ATOMIC_MOVE);
+            this.lastSegment = n;
+            marker.segment = n;
+            marker.durable.complete(null);
+        } catch (IOException e) {
+            marker.durable.completeExceptionally(e);
+        } finally {
+            try {
+                if (!this.channel.isOpen()) this.channel = openCurrent();
+            } catch (IOException e) {
+                System.err.println("Write-ahead log " + this.path + ": failed to reopen - " + e.getMessage());
+            }
+        }
+    }
+
+    // One gathering write for a run of records
+    private void write(List<Pending> batch) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            Pending p = batch.get(i);
+            ByteBuffer record = ByteBuffer.wrap(p.record);
+            record.putLong(HEADER, p.version);
+            crc.reset();
+            crc.update(p.record, HEADER, p.record.length - HEADER);
+            record.putInt(0, p.record.length - HEADER).putInt(4, (int) crc.getValue());
+            buffers[i] = record;
+        }
+
+        long remaining = 0;
+        for (ByteBuffer b : buffers) remaining += b.remaining();
+        while (remaining > 0) {
+            remaining -= this.channel.write(buffers);
+        }
+        this.batches++;
+        this.records += batch.size();
+    }
+
+    // Replays every complete record with a version after `after` (e.g. of the snapshot loaded before), segments
+    // first and then the current file, whose torn tail is truncated so new records follow valid ones.
+    // Returns the highest version found. Must be called before the first append.
+    long replay(long after, Replay apply) throws IOException {
+        long maxVersion = after;
+        for (long segment : segments()) {
+            try (FileChannel file = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                maxVersion = Math.max(maxVersion, replay(file, segmentPath(segment), after, apply));
+            }
+        }
+        return Math.max(maxVersion, replay(this.channel, this.path, after, apply));
+    }
+
+    private long replay(FileChannel file, Path name, long after, Replay apply) throws IOException {
+        long valid = 0;
+        long maxVersion = 0;
+        file.position(0);
+        InputStream stream = Channels.newInputStream(file);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        CRC32 crc = new CRC32();
+
+        try {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < BODY_HEADER || valid + HEADER + length > file.size()) break;
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) break;
+
+                ByteBuffer b = ByteBuffer.wrap(body);
+                long version = b.getLong();
+                valid += HEADER + length;
+                maxVersion = Math.max(maxVersion, version);
+                if (version <= after) continue; // Already in the snapshot
+
+                long expiresAt = b.getLong();
+                int n = b.getInt();
+                Map<String, byte[]> values = new LinkedHashMap<>();
+                for (int i = 0; i < n; i++) {
+                    byte[] key = new byte[b.getInt()];
+                    b.get(key);
+                    byte[] value = new byte[b.getInt()];
+                    b.get(value);
+                    values.put(new String(key, StandardCharsets.UTF_8), value);
+                }
+
+                apply.apply(version, expiresAt, values);
+            }
+        } catch (EOFException e) {
+            // End of the log, possibly in the middle of a torn record
+        }
+
+        if (valid < file.size()) {
+            System.err.println("Write-ahead log " + name + ": dropping " + (file.size() - valid) + " bytes of incomplete records");
+            if (file == this.channel) file.truncate(valid);
+        }
+        if (file == this.channel) file.position(valid);
+        return maxVersion;
+    }
+
+    // Number of group commits and of records written, records / batches is the average batch size
+    public long getBatches() {
+        return this.batches;
+    }
+
+    public long getRecords() {
+        return this.records;
+    }
+
+    // Writes and fsyncs whatever is queued, then closes the file
+    @Override
+    public void close() throws IOException {
+        this.l_queue.lock();
+        try {
+            if (this.closed) return;
+            this.closed = true;
+            this.hasWork.signal();
+        } finally {
+            this.l_queue.unlock();
+        }
+
+        try {
+            this.logThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.channel.force(false);
+        this.channel.close();
+    }
+}
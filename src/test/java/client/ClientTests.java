@@ -132,6 +132,52 @@ class ClientTests {
         }
     }
 
+    @Test
+    void testGetWhenCommand() {
+        Socket socket = null;
+        TaggedConnection conn = null;
+
+        try {
+            socket = new Socket("127.0.0.1", 12345);
+            conn = new TaggedConnection(socket);
+
+            // Registo e login
+            conn.send(new Frame(1, "userGetWhen:password".getBytes()));
+            conn.receive(); // Ignorar resposta do registo
+            conn.send(new Frame(2, "userGetWhen:password".getBytes())); // Login
+            conn.receive(); // Ignorar resposta do login
+
+            // getWhen fica pendente sem bloquear os comandos seguintes do mesmo cliente
+            conn.send(new Frame(3, "getwhen gwTarget gwFlag ready".getBytes())); // Tag 3 = getWhen
+            conn.send(new Frame(4, "put gwTarget done".getBytes()));
+            assertEquals(4, conn.receive().tag, "getWhen respondeu antes da condição.");
+            conn.send(new Frame(5, "put gwFlag ready".getBytes()));
+
+            // Respostas do put (tag 5) e do getWhen (tag 3), por qualquer ordem
+            Frame first = conn.receive();
+            Frame second = conn.receive();
+            Frame getWhenResponse = first.tag == 3 ? first : second;
+            assertEquals(3, getWhenResponse.tag);
+            assertEquals("done", new String(getWhenResponse.data), "getWhen falhou.");
+
+        } catch (Exception e) {
+            throw new AssertionError("Erro no comando getWhen: " + e.getMessage());
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.send(new Frame(0, "end".getBytes())); // Notificar o servidor
+                    Thread.sleep(50); // Pequeno atraso para garantir o processamento
+                    conn.close();
+                }
+                if (socket != null && !socket.isClosed()) socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     @Test
     void testMultipleClients() {
         ExecutorService executor = Executors.newFixedThreadPool(5);
@@ -0,0 +1,74 @@
+package server;
+
+import conn.Frame;
+import conn.TaggedConnection;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkLoaderTest {
+
+    @Test
+    void testLoadStreamedOverFrames() throws IOException, InterruptedException {
+        DataManager dataManager = new DataManager();
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket clientSocket = new Socket("localhost", serverSocket.getLocalPort());
+             Socket socket = serverSocket.accept();
+             TaggedConnection server = new TaggedConnection(socket);
+             TaggedConnection client = new TaggedConnection(clientSocket)) {
+
+            assertNull(BulkLoader.open(new Frame(7, "bulkload x".getBytes()), dataManager, server));
+            assertNull(BulkLoader.open(new Frame(7, "bulkloads".getBytes()), dataManager, server));
+            BulkLoader loader = BulkLoader.open(new Frame(7, "bulkload 3".getBytes()), dataManager, server);
+            assertNotNull(loader);
+            Thread thread = new Thread(loader);
+            thread.start();
+
+            // Linhas inteiras por frame, com uma linha vazia, um '\r' e linhas sem chave ou sem valor
+            assertFalse(loader.offer(new Frame(7, "a 1\nb two words\r\n\n".getBytes())));
+            assertFalse(loader.offer(new Frame(7, "novalue\n c\na 3".getBytes())));
+            assertTrue(loader.offer(new Frame(7, new byte[0])));
+
+            Frame reply = client.receive();
+            assertEquals(7, reply.tag);
+            assertEquals("Loaded 3 keys. Skipped 2 malformed lines.", new String(reply.data));
+            thread.join();
+            assertEquals("3", new String(dataManager.get("a")));
+            assertEquals("two words", new String(dataManager.get("b")));
+            assertNull(dataManager.get("novalue"));
+        }
+    }
+
+    @Test
+    void testFailedLoadDropsItsFrames() throws IOException, InterruptedException {
+        DataManager failing = new DataManager() {
+            @Override
+            public void putAll(Key[] keys, byte[] buf, int[] offs, int[] lens, int n) {
+                throw new IllegalStateException("Disk full");
+            }
+        };
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket clientSocket = new Socket("localhost", serverSocket.getLocalPort());
+             Socket socket = serverSocket.accept();
+             TaggedConnection server = new TaggedConnection(socket);
+             TaggedConnection client = new TaggedConnection(clientSocket)) {
+
+            BulkLoader loader = BulkLoader.open(new Frame(3, "bulkload".getBytes()), failing, server);
+            Thread thread = new Thread(loader);
+            thread.start();
+            assertFalse(loader.offer(new Frame(3, "a 1".getBytes())));
+
+            // Uma única resposta de erro, e os frames seguintes são descartados sem bloquear o leitor
+            Frame reply = client.receive();
+            assertEquals(3, reply.tag);
+            assertEquals("Error handling command (3)", new String(reply.data));
+            thread.join();
+            for (int i = 0; i < 100; i++) assertFalse(loader.offer(new Frame(3, ("k" + i + " v").getBytes())));
+            assertTrue(loader.offer(new Frame(3, new byte[0])));
+        }
+    }
+}
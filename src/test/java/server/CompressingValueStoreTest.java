@@ -0,0 +1,93 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressingValueStoreTest {
+
+    static byte[] inflate(byte[] deflated) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                out.write(buffer, 0, inflater.inflate(buffer));
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new AssertionError(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // ~2 KB de JSON repetitivo, como os valores que motivaram a compressão
+    private static byte[] json(int i) {
+        StringBuilder sb = new StringBuilder("{\"id\":" + i + ",\"events\":[");
+        for (int e = 0; e < 30; e++) {
+            sb.append("{\"type\":\"login\",\"status\":\"ok\",\"seq\":").append(e).append("},");
+        }
+        return sb.append("{}]}").toString().getBytes();
+    }
+
+    @Test
+    void testLargeValuesAreKeptDeflated() {
+        CompressingValueStore store = new CompressingValueStore(new HeapValueStore(), 1024);
+
+        byte[] small = "small".getBytes();
+        Object smallRef = store.store(small, 0, small.length);
+        assertArrayEquals(small, store.load(smallRef));
+        assertEquals(small.length, store.footprint(smallRef, small.length));
+
+        byte[] value = json(1);
+        Object ref = store.store(value, 0, value.length);
+        assertArrayEquals(value, store.load(ref));
+        assertTrue(store.footprint(ref, value.length) < value.length / 4);
+        assertArrayEquals(value, inflate(store.loadDeflated(ref))); // Enviado ao cliente tal como está guardado
+
+        // Dados aleatórios não comprimem: ficam como estão
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        Object randomRef = store.store(random, 0, random.length);
+        assertArrayEquals(random, store.load(randomRef));
+        assertEquals(random.length, store.footprint(randomRef, random.length));
+
+        Map<String, Long> stats = store.getStats();
+        assertEquals(1L, stats.get("deflatedValues"));
+        assertTrue(stats.get("deflatedPercent") < 25);
+    }
+
+    @Test
+    void testMemoryBudgetHoldsMoreDeflatedValues() {
+        long budget = 1 << 20;
+        DataManager raw = new DataManager(16, new HeapValueStore(), budget);
+        DataManager deflated = new DataManager(16, new CompressingValueStore(new HeapValueStore()), budget);
+
+        long rawStart = System.nanoTime();
+        for (int i = 0; i < 2000; i++) raw.put("key" + i, json(i));
+        long rawEnd = System.nanoTime();
+        for (int i = 0; i < 2000; i++) deflated.put("key" + i, json(i));
+        long deflatedEnd = System.nanoTime();
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 2000; i++) assertArrayEquals(json(i), deflated.get("key" + i));
+        long endTime = System.nanoTime();
+
+        Map<String, Long> stats = deflated.getStats();
+        System.out.printf("2000 puts de ~2 KB: %.2f ms sem compressão, %.2f ms com compressão (%d%% do tamanho)%n",
+                (rawEnd - rawStart) / 1e6, (deflatedEnd - rawEnd) / 1e6, stats.get("deflatedPercent"));
+        System.out.printf("Chaves expulsas com orçamento de 1 MB: %d sem compressão, %d com compressão; 2000 gets: %.2f ms%n",
+                raw.getEvictions(), deflated.getEvictions(), (endTime - startTime) / 1e6);
+        assertTrue(raw.getEvictions() > 0);
+        assertEquals(0L, deflated.getEvictions());
+        assertEquals(2000L, stats.get("inflations"));
+    }
+}
@@ -0,0 +1,205 @@
+package server;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Benchmarks - fora da execução por omissão, correm com 'mvn test -Pbenchmark'
+@Tag("benchmark")
+class DataManagerBenchmarkTest {
+
+    private static final int KEYS = 10_000;
+    private static final int OPS_PER_THREAD = 200_000;
+
+    // Corre a mesma carga mista (70% get, 20% put, 5% multiGet, 5% multiPut) com `threads` threads
+    // e devolve o débito em operações por milissegundo
+    private double runWorkload(DataManager dataManager, int threads) throws InterruptedException {
+        for (int i = 0; i < KEYS; i++) {
+            dataManager.put("key" + i, ("value" + i).getBytes());
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int op = 0; op < OPS_PER_THREAD; op++) {
+                    int kind = random.nextInt(100);
+                    String key = "key" + random.nextInt(KEYS);
+                    if (kind < 70) {
+                        dataManager.get(key);
+                    } else if (kind < 90) {
+                        dataManager.put(key, "updated".getBytes());
+                    } else if (kind < 95) {
+                        Set<String> keys = new HashSet<>();
+                        for (int k = 0; k < 4; k++) keys.add("key" + random.nextInt(KEYS));
+                        dataManager.multiGet(keys);
+                    } else {
+                        Map<String, byte[]> values = new HashMap<>();
+                        for (int k = 0; k < 4; k++) values.put("key" + random.nextInt(KEYS), "multi".getBytes());
+                        dataManager.multiPut(values);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        long endTime = System.nanoTime();
+
+        return ((double) threads * OPS_PER_THREAD) / ((endTime - startTime) / 1e6);
+    }
+
+    private void compare(String name, Supplier<DataManager> factory) throws InterruptedException {
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double throughput = runWorkload(factory.get(), threads);
+            assertTrue(throughput > 0);
+            System.out.printf("%s - threads: %d, débito: %.2f ops/ms%n", name, threads, throughput);
+        }
+    }
+
+    @Test
+    void testContentionScaling() throws InterruptedException {
+        // Aquecimento da JIT antes das medições
+        runWorkload(new DataManager(), 2);
+
+        compare("Lock global (1 stripe)", () -> new DataManager(1));
+        compare("Lock striping (" + new DataManager().getStripeCount() + " stripes)", DataManager::new);
+    }
+
+    @Test
+    void testReadLatencyDuringLargeMultiPut() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+        Map<String, byte[]> bulk = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) bulk.put("bulk" + i, "v".getBytes());
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 10; i++) keys.add("bulk" + (i * 5000));
+
+        // Escritor aplica multiPut de 50000 chaves continuamente
+        Thread writer = new Thread(() -> {
+            for (int round = 0; round < 20; round++) dataManager.multiPut(bulk);
+        });
+        writer.start();
+
+        // Leitor mede a latência de cada multiGet enquanto o escritor corre
+        List<Long> latencies = new ArrayList<>();
+        while (writer.isAlive()) {
+            long startTime = System.nanoTime();
+            Map<String, byte[]> values = dataManager.multiGet(keys);
+            latencies.add(System.nanoTime() - startTime);
+            assertTrue(values.isEmpty() || values.size() == keys.size());
+        }
+        writer.join();
+
+        latencies.sort(null);
+        if (latencies.isEmpty()) return;
+        System.out.printf("multiGet durante multiPut - leituras: %d, p50: %.3f ms, p99: %.3f ms, max: %.3f ms%n",
+                latencies.size(),
+                latencies.get(latencies.size() / 2) / 1e6,
+                latencies.get((int) (latencies.size() * 0.99)) / 1e6,
+                latencies.get(latencies.size() - 1) / 1e6);
+    }
+
+    // Latência máxima de uma inserção enquanto a tabela cresce de 0 a `keys` chaves (-Dbenchmark.keys=100000000 com
+    // heap suficiente para o cenário de 100M chaves)
+    private static void measureGrowth(String name, Consumer<Key> add, Key[] keys) {
+        long max = 0;
+        long slow = 0; // Inserções acima de 1 ms
+        long startTime = System.nanoTime();
+        for (Key key : keys) {
+            long t = System.nanoTime();
+            add.accept(key);
+            long latency = System.nanoTime() - t;
+            if (latency > max) max = latency;
+            if (latency > 1_000_000) slow++;
+        }
+        long endTime = System.nanoTime();
+        System.out.printf("%s - %d chaves: %.2f ms no total, inserção máxima: %.3f ms, acima de 1 ms: %d%n",
+                name, keys.length, (endTime - startTime) / 1e6, max / 1e6, slow);
+    }
+
+    @Test
+    void testMaxInsertLatencyWhileGrowing() {
+        int n = Integer.getInteger("benchmark.keys", 2_000_000);
+        Key[] keys = new Key[n];
+        for (int i = 0; i < n; i++) keys[i] = Key.of("key" + i);
+
+        // Uma só tabela, como uma stripe que recebe todas as chaves
+        ConcurrentHashMap<Key, Key> map = new ConcurrentHashMap<>();
+        measureGrowth("ConcurrentHashMap", key -> map.put(key, key), keys);
+        assertEquals(n, map.size());
+        map.clear();
+
+        KeyTable<Key> table = new KeyTable<>();
+        measureGrowth("KeyTable (redimensionamento incremental)", table::add, keys);
+        assertEquals(n, table.size());
+        assertSame(keys[n / 2], table.get(Key.of("key" + (n / 2))));
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcTimeMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    // Carrega 100000 valores de 1 KB, sobrescreve-os 3 vezes e mede heap ocupado e tempo de GC
+    private void measureFootprint(String name, ValueStore store) {
+        long heapBefore = usedHeap();
+        long gcBefore = gcTimeMillis();
+
+        DataManager dataManager = new DataManager(store);
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 100_000; i++) {
+                byte[] value = new byte[1024];
+                value[0] = (byte) round;
+                dataManager.put("key" + i, value, 0, value.length);
+            }
+        }
+
+        long gcTime = gcTimeMillis() - gcBefore;
+        long heapAfter = usedHeap();
+        assertEquals(3, dataManager.get("key0")[0]);
+        System.out.printf("%s - heap ocupado: %.1f MB, tempo em GC: %d ms%n",
+                name, (heapAfter - heapBefore) / 1e6, gcTime);
+    }
+
+    @Test
+    void testHeapVersusOffHeapFootprint() {
+        measureFootprint("Valores no heap", new HeapValueStore());
+        SlabValueStore slab = new SlabValueStore();
+        measureFootprint("Valores off-heap (slab)", slab);
+        System.out.printf("Valores off-heap (slab) - memória direta: %.1f MB%n", slab.getAllocatedBytes() / 1e6);
+    }
+}
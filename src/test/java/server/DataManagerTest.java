@@ -1,7 +1,12 @@
 package server;
 
 import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -90,4 +95,622 @@ class DataManagerTest {
 
         updater.join(); // Aguarda a conclusão da thread
     }
+
+    @Test
+    void testStripedMultiPutIsAtomic() throws InterruptedException {
+        DataManager dataManager = new DataManager(8);
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 32; i++) keys.add("atomicKey" + i); // chaves espalhadas por várias stripes
+
+        // Escritor alterna todas as chaves entre dois valores, sempre com multiPut
+        Thread writer = new Thread(() -> {
+            for (int round = 0; round < 2000; round++) {
+                Map<String, byte[]> values = new HashMap<>();
+                for (String key : keys) values.put(key, ("v" + (round % 2)).getBytes());
+                dataManager.multiPut(values);
+            }
+        });
+        writer.start();
+
+        // Leitor nunca pode observar uma mistura de valores de rondas diferentes
+        while (writer.isAlive()) {
+            Map<String, byte[]> snapshot = dataManager.multiGet(keys);
+            assertTrue(snapshot.isEmpty() || snapshot.size() == keys.size(), "multiGet observou um multiPut parcial.");
+            assertTrue(snapshot.values().stream().map(String::new).distinct().count() <= 1,
+                    "multiGet observou um multiPut parcial.");
+        }
+        writer.join();
+    }
+
+    @Test
+    void testGetWhenAsyncDoesNotBlock() {
+        DataManager dataManager = new DataManager();
+        dataManager.put("target", "result".getBytes());
+
+        // Regista muitos getWhen sem nenhuma thread bloqueada à espera
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(dataManager.getWhenAsync("target", "flag", "on".getBytes()));
+        }
+        assertTrue(futures.stream().noneMatch(CompletableFuture::isDone));
+
+        // Um valor diferente não satisfaz a condição
+        dataManager.put("flag", "off".getBytes());
+        assertTrue(futures.stream().noneMatch(CompletableFuture::isDone));
+
+        // O escritor que satisfaz a condição completa todos os pedidos pendentes
+        long startTime = System.nanoTime();
+        dataManager.put("flag", "on".getBytes());
+        long endTime = System.nanoTime();
+        System.out.printf("Tempo de execução do put com 1000 getWhen pendentes: %.2f ms%n", (endTime - startTime) / 1e6);
+
+        for (CompletableFuture<byte[]> future : futures) {
+            assertTrue(future.isDone());
+            assertEquals("result", new String(future.join()));
+        }
+
+        // Condição já satisfeita - completa de imediato
+        assertTrue(dataManager.getWhenAsync("target", "flag", "on".getBytes()).isDone());
+    }
+
+    @Test
+    void testGetWhenWakesOnlySatisfiedWaiters() {
+        DataManager dataManager = new DataManager();
+
+        // 1000 getWhen sobre a mesma chave, cada um à espera de um valor diferente
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(dataManager.getWhenAsync("hotKey", "hotKey", ("v" + i).getBytes()));
+        }
+        assertEquals(1000, dataManager.getPendingWaiters());
+
+        // Apenas o getWhen à espera de "v42" é acordado
+        dataManager.put("hotKey", "v42".getBytes());
+        assertEquals("v42", new String(futures.get(42).join()));
+        assertEquals(999, futures.stream().filter(f -> !f.isDone()).count());
+        assertEquals(999, dataManager.getPendingWaiters());
+    }
+
+    @Test
+    void testCancelledGetWhenIsReclaimed() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+
+        // Cancelar (ex.: cliente desligou-se) remove o pedido do índice
+        CompletableFuture<byte[]> future = dataManager.getWhenAsync("key", "condKey", "value".getBytes());
+        assertEquals(1, dataManager.getPendingWaiters());
+        future.cancel(false);
+        assertEquals(0, dataManager.getPendingWaiters());
+
+        // Uma thread interrompida em getWhen também liberta o seu pedido
+        Thread waiter = new Thread(() -> {
+            try {
+                dataManager.getWhen("key", "condKey", "value".getBytes());
+            } catch (InterruptedException ignored) {
+            }
+        });
+        waiter.start();
+        while (dataManager.getPendingWaiters() == 0) Thread.sleep(10);
+        waiter.interrupt();
+        waiter.join();
+        assertEquals(0, dataManager.getPendingWaiters());
+    }
+
+    @Test
+    void testGetWhenCompoundPredicates() {
+        DataManager dataManager = new DataManager();
+        dataManager.put("target", "result".getBytes());
+
+        // A = x AND B = y
+        CompletableFuture<byte[]> both = dataManager.getWhenAsync("target",
+                Predicate.parse("a = x and b = y".split(" "), 0));
+        // counter >= 100
+        CompletableFuture<byte[]> threshold = dataManager.getWhenAsync("target",
+                Predicate.parse("counter >= 100".split(" "), 0));
+        // Qualquer uma de N condições, com prefixo
+        CompletableFuture<byte[]> any = dataManager.getWhenAsync("target",
+                Predicate.parse("( a = z or status prefix done ) or counter < -5".split(" "), 0));
+        assertEquals(3, dataManager.getPendingWaiters());
+
+        dataManager.put("a", "x".getBytes());
+        assertFalse(both.isDone(), "AND satisfeito com apenas uma das chaves.");
+        dataManager.put("b", "y".getBytes());
+        assertEquals("result", new String(both.join()));
+
+        dataManager.put("counter", "99".getBytes());
+        assertFalse(threshold.isDone());
+        dataManager.put("counter", "not a number".getBytes());
+        assertFalse(threshold.isDone());
+        dataManager.put("counter", "250".getBytes());
+        assertTrue(threshold.isDone());
+
+        assertFalse(any.isDone());
+        dataManager.put("status", "done:ok".getBytes());
+        assertTrue(any.isDone());
+        assertEquals(0, dataManager.getPendingWaiters());
+
+        // Predicado já verdadeiro completa de imediato
+        assertTrue(dataManager.getWhenAsync("target", Predicate.parse("counter > 200 and a != y".split(" "), 0)).isDone());
+    }
+
+    @Test
+    void testOffHeapValueStore() throws InterruptedException {
+        SlabValueStore store = new SlabValueStore();
+        DataManager dataManager = new DataManager(store);
+
+        // Valor copiado diretamente de um intervalo do buffer (ex.: frame recebido)
+        byte[] frame = "put key1 value1".getBytes();
+        assertTrue(dataManager.put("key1", frame, 9, 6));
+        assertEquals("value1", new String(dataManager.get("key1")));
+
+        Map<String, byte[]> values = new HashMap<>();
+        values.put("key2", "value2".getBytes());
+        values.put("key3", "value3".getBytes());
+        dataManager.multiPut(values);
+        assertEquals("value3", new String(dataManager.multiGet(new HashSet<>(Arrays.asList("key2", "key3"))).get("key3")));
+
+        // Versões substituídas libertam o seu espaço off-heap
+        for (int i = 0; i < 1000; i++) dataManager.put("key1", ("value" + i).getBytes());
+        assertEquals("value999", new String(dataManager.get("key1")));
+        assertEquals("value999".length() + 2 * "value2".length(), store.getStoredBytes());
+
+        dataManager.put("flag", "on".getBytes());
+        assertEquals("value999", new String(dataManager.getWhen("key1", "flag", "on".getBytes())));
+    }
+
+    @Test
+    void testOldVersionsAreReleasedWhenTheSnapshotCloses() throws InterruptedException {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean block = new AtomicBoolean(false);
+        SlabValueStore store = new SlabValueStore() {
+            @Override
+            public byte[] load(Object ref) {
+                if (block.compareAndSet(true, false)) { // Um leitor fica parado com o snapshot aberto
+                    reading.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.load(ref);
+            }
+        };
+        DataManager dataManager = new DataManager(store);
+        for (int i = 0; i < 1000; i++) dataManager.put("key" + i, new byte[1000]);
+
+        block.set(true);
+        Thread reader = new Thread(() -> dataManager.multiGet(Collections.singleton("key0")));
+        reader.start();
+        reading.await();
+        for (int i = 0; i < 1000; i++) dataManager.put("key" + i, new byte[1000]);
+        assertEquals(2_000_000L, store.getStoredBytes()); // As versões antigas são do leitor
+
+        // Fechado o snapshot, as versões antigas são libertadas sem esperar por novas escritas nas chaves
+        done.countDown();
+        reader.join();
+        assertEquals(1_000_000L, store.getStoredBytes());
+    }
+
+    @Test
+    void testMemoryBudgetKeepsHotKeys() {
+        long budget = 64 * 1024;
+        SlabValueStore store = new SlabValueStore();
+        DataManager dataManager = new DataManager(16, store, budget);
+
+        for (int i = 0; i < 10; i++) dataManager.put("hot" + i, ("hotvalue" + i).getBytes());
+
+        // Varrimento de 5000 chaves frias de 100 bytes (~1 MB) intercalado com leituras das chaves quentes
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 5000; i++) {
+            dataManager.put("cold" + i, new byte[100]);
+            dataManager.get("hot" + (i % 10));
+            assertTrue(dataManager.getWeightedSize() <= budget);
+        }
+        long endTime = System.nanoTime();
+        System.out.printf("Tempo de execução de 5000 puts com orçamento de 64 KB: %.2f ms%n", (endTime - startTime) / 1e6);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("hotvalue" + i, new String(dataManager.get("hot" + i)));
+        }
+        assertTrue(dataManager.getEvictions() > 0);
+        assertTrue(store.getStoredBytes() <= budget); // Valores expulsos libertam o seu espaço off-heap
+
+        long hits = dataManager.getHits();
+        long misses = dataManager.getMisses();
+        assertNull(dataManager.get("cold0"));
+        assertEquals(misses + 1, dataManager.getMisses());
+        assertEquals(hits, dataManager.getHits());
+        assertEquals(dataManager.getEvictions(), dataManager.getStats().get("evictions"));
+    }
+
+    @Test
+    void testGetWhenKeysAreNotEvicted() {
+        DataManager dataManager = new DataManager(16, new HeapValueStore(), 16 * 1024);
+        dataManager.put("target", "kept".getBytes());
+        CompletableFuture<byte[]> future = dataManager.getWhenAsync("target", "flag", "go".getBytes());
+
+        // A chave lida pelo getWhen pendente não pode ser expulsa, por muito frio que esteja
+        for (int i = 0; i < 2000; i++) dataManager.put("filler" + i, new byte[100]);
+        assertTrue(dataManager.getEvictions() > 0);
+        assertFalse(future.isDone());
+
+        dataManager.put("flag", "go".getBytes());
+        assertEquals("kept", new String(future.join()));
+        assertEquals(0, dataManager.getPendingWaiters());
+    }
+
+    @Test
+    void testKeysExpireAfterTtl() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+        dataManager.put("session", "token".getBytes(), 0, 5, 100);
+        dataManager.put("kept", "value".getBytes());
+        Map<String, byte[]> values = new HashMap<>();
+        values.put("a", "1".getBytes());
+        values.put("b", "2".getBytes());
+        dataManager.multiPut(values, 100);
+        dataManager.put("renewed", "old".getBytes(), 0, 3, 100);
+        dataManager.put("renewed", "new".getBytes()); // Reescrita sem TTL cancela a expira\u00e7\u00e3o
+
+        CompletableFuture<byte[]> gone = dataManager.getWhenAsync("kept", Predicate.parse("session absent".split(" "), 0));
+        assertFalse(gone.isDone());
+        assertEquals("token", new String(dataManager.get("session")));
+
+        // A expira\u00e7\u00e3o acorda quem espera pela ausência da chave
+        long startTime = System.nanoTime();
+        assertEquals("value", new String(gone.join()));
+        long endTime = System.nanoTime();
+        System.out.printf("getWhen acordado pela expira\u00e7\u00e3o após %.2f ms (TTL de 100 ms)%n", (endTime - startTime) / 1e6);
+
+        assertNull(dataManager.get("session"));
+        for (int wait = 0; wait < 100 && dataManager.getExpired() < 3; wait++) Thread.sleep(10);
+        assertTrue(dataManager.multiGet(new HashSet<>(Arrays.asList("a", "b"))).isEmpty());
+        assertEquals("new", new String(dataManager.get("renewed")));
+        assertEquals(3, dataManager.getExpired());
+        assertEquals(3L, dataManager.getStats().get("expired"));
+    }
+
+    @Test
+    void testExpiredValueIsHiddenBeforeRemoval() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+        dataManager.put("key", "value".getBytes(), 0, 5, 1);
+        Thread.sleep(2);
+
+        // Leitura preguiçosa: o valor expirado já não é visível, mesmo que a thread de expira\u00e7\u00e3o ainda não o tenha removido
+        assertNull(dataManager.get("key"));
+        assertFalse(dataManager.getWhenAsync("key", "key", "value".getBytes()).isDone());
+        dataManager.put("key", "again".getBytes());
+        Thread.sleep(5 * DataManager.EXPIRY_TICK_MILLIS);
+        assertEquals("again", new String(dataManager.get("key")));
+    }
+
+    @Test
+    void testCompareAndSetCounterUnderContention() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+        dataManager.put("counter", "0".getBytes());
+        int threads = 8;
+        int increments = 5000;
+        LongAdder conflicts = new LongAdder();
+
+        // Cada thread incrementa o contador com get + cas, repetindo a partir da versão devolvida em caso de conflito
+        List<Thread> workers = new ArrayList<>();
+        long startTime = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < increments; i++) {
+                    Versioned current = dataManager.getVersioned("counter");
+                    long version = current.version;
+                    long value = Long.parseLong(new String(current.value));
+                    while (true) {
+                        CasResult result = dataManager.compareAndSet("counter", version, String.valueOf(value + 1).getBytes());
+                        if (result.applied) break;
+                        conflicts.increment();
+                        current = dataManager.getVersioned("counter");
+                        version = current.version;
+                        value = Long.parseLong(new String(current.value));
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) worker.join();
+        long endTime = System.nanoTime();
+
+        System.out.printf("Tempo de execução de %d incrementos com cas: %.2f ms, conflitos: %d%n",
+                threads * increments, (endTime - startTime) / 1e6, conflicts.sum());
+        assertEquals(String.valueOf(threads * increments), new String(dataManager.get("counter")));
+    }
+
+    @Test
+    void testIncrementWakesThresholdWaiters() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+        dataManager.put("target", "done".getBytes());
+        CompletableFuture<byte[]> reached = dataManager.getWhenAsync("target",
+                Predicate.parse("jobs >= 40000".split(" "), 0));
+        dataManager.push("queue", "job".getBytes(), 0);
+        CompletableFuture<byte[]> drained = dataManager.getWhenAsync("target",
+                Predicate.parse("queue absent".split(" "), 0));
+
+        // Incrementos concorrentes no servidor, sem get + put nem repetições
+        int threads = 8;
+        int increments = 5000;
+        List<Thread> workers = new ArrayList<>();
+        long startTime = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < increments; i++) dataManager.increment("jobs", 1);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) worker.join();
+        long endTime = System.nanoTime();
+        System.out.printf("Tempo de execução de %d incrementos com incr: %.2f ms%n", threads * increments, (endTime - startTime) / 1e6);
+
+        assertEquals(String.valueOf(threads * increments), new String(dataManager.get("jobs")));
+        assertEquals("done", new String(reached.join())); // Acordado ao atingir o limite
+        assertFalse(drained.isDone());
+        assertEquals("job", new String(dataManager.pop("queue")));
+        assertEquals("done", new String(drained.join())); // Lista esvaziada remove a chave
+    }
+
+    @Test
+    void testScanPagesThroughKeysWhileWriting() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+        int n = 100_000;
+        for (int i = 0; i < n; i++) dataManager.put(String.format("key:%06d", i), "value".getBytes());
+
+        // Escritores concorrentes criam chaves fora do prefixo e reescrevem as existentes
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < n; i++) {
+                dataManager.put("other:" + i, "x".getBytes());
+                dataManager.put(String.format("key:%06d", i), "updated".getBytes());
+            }
+        });
+        writer.start();
+
+        long startTime = System.nanoTime();
+        int[] seen = new int[1];
+        String[] last = { "" };
+        String from = "key:";
+        String cursor;
+        do {
+            cursor = dataManager.scan(from, StorageEngine.prefixEnd("key:"), 1000, (key, value) -> {
+                assertTrue(key.compareTo(last[0]) > 0); // Ordem crescente, sem repetições entre páginas
+                last[0] = key;
+                seen[0]++;
+            });
+            if (cursor != null) from = StorageEngine.after(cursor);
+        } while (cursor != null);
+        long endTime = System.nanoTime();
+        writer.join();
+
+        System.out.printf("Tempo de execução de scan de %d chaves em páginas de 1000: %.2f ms%n", n, (endTime - startTime) / 1e6);
+        assertEquals(n, seen[0]);
+    }
+
+    @Test
+    void testKeysFromFrameBytes() {
+        DataManager dataManager = new DataManager();
+
+        // A chave lida diretamente do frame é a mesma que a chave String em UTF-8
+        byte[] frame = "put a\u00e7\u00e3o valor".getBytes(StandardCharsets.UTF_8);
+        int keyEnd = Bytes.indexOf(frame, (byte) ' ', 4);
+        assertTrue(dataManager.put(Key.of(frame, 4, keyEnd - 4), frame, keyEnd + 1, frame.length - keyEnd - 1, 0));
+        assertEquals("valor", new String(dataManager.get("a\u00e7\u00e3o")));
+        assertEquals("a\u00e7\u00e3o", Key.of(frame, 4, keyEnd - 4).toString());
+        assertEquals(Key.of("a\u00e7\u00e3o"), Key.of(frame, 4, keyEnd - 4));
+
+        // Ordem dos scans: bytes sem sinal, a ordem dos code points
+        dataManager.put("z", "1".getBytes());
+        dataManager.put("\u00e9", "2".getBytes());
+        List<String> keys = new ArrayList<>();
+        dataManager.scan("", null, 10, (key, value) -> keys.add(key));
+        assertEquals(Arrays.asList("a\u00e7\u00e3o", "z", "\u00e9"), keys);
+
+        int n = 200_000;
+        byte[][] frames = new byte[n][];
+        for (int i = 0; i < n; i++) frames[i] = ("get key" + i).getBytes();
+        for (int i = 0; i < n; i++) dataManager.put("key" + i, "v".getBytes());
+
+        long startTime = System.nanoTime();
+        for (byte[] get : frames) assertNotNull(dataManager.get(Key.of(get, 4, get.length - 4)));
+        long endTime = System.nanoTime();
+        System.out.printf("%d gets com chaves em bytes: %.2f ms%n", n, (endTime - startTime) / 1e6);
+    }
+
+    @Test
+    void testFindKeysWithoutScanningEverything() {
+        DataManager dataManager = new DataManager();
+        int n = 200_000;
+        for (int i = 0; i < n; i++) dataManager.put("key" + i, (i % 10_000 == 0 ? "needle" : "hay" + i).getBytes());
+
+        // Sem índice: percorrer todas as chaves e filtrar
+        long startTime = System.nanoTime();
+        List<String> scanned = new ArrayList<>();
+        dataManager.scan("", null, n, (key, value) -> {
+            if (Arrays.equals(value, "needle".getBytes())) scanned.add(key);
+        });
+        long scanTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        List<String> found = new ArrayList<>();
+        dataManager.findKeys("needle".getBytes(), 100, found::add); // Constrói o índice
+        long buildTime = System.nanoTime() - startTime;
+
+        dataManager.put("key1", "needle".getBytes());
+        startTime = System.nanoTime();
+        List<String> again = new ArrayList<>();
+        dataManager.findKeys("needle".getBytes(), 100, again::add);
+        long findTime = System.nanoTime() - startTime;
+
+        System.out.printf("Procurar um valor em %d chaves - scan: %.2f ms, índice (construção): %.2f ms, índice: %.3f ms%n",
+                n, scanTime / 1e6, buildTime / 1e6, findTime / 1e6);
+        scanned.sort(null);
+        assertEquals(scanned, found);
+        assertEquals(20, found.size());
+        assertEquals(21, again.size());
+    }
+
+    @Test
+    void testAggregateInsideTheEngine() {
+        DataManager dataManager = new DataManager();
+        int n = 200_000;
+        long expected = 0;
+        for (int i = 0; i < n; i++) {
+            dataManager.put("metric" + i, Integer.toString(i % 1000).getBytes());
+            expected += i % 1000;
+        }
+        Set<String> some = new HashSet<>();
+        for (int i = 0; i < 500; i++) some.add("metric" + i * 7);
+
+        // Do lado do cliente: trazer os valores com multiGet e somar
+        long startTime = System.nanoTime();
+        long sum = 0;
+        for (byte[] value : dataManager.multiGet(some).values()) sum += Long.parseLong(new String(value));
+        long multiGetTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        Aggregate keys = dataManager.aggregate(some);
+        long keysTime = System.nanoTime() - startTime;
+
+        dataManager.aggregate("metric", StorageEngine.prefixEnd("metric")); // Constrói o índice ordenado
+        startTime = System.nanoTime();
+        Aggregate all = dataManager.aggregate("metric", StorageEngine.prefixEnd("metric"));
+        long parallelTime = System.nanoTime() - startTime;
+
+        System.out.printf("Agregar 500 chaves - multiGet + soma: %.3f ms, aggregate: %.3f ms; %d chaves em paralelo: %.2f ms%n",
+                multiGetTime / 1e6, keysTime / 1e6, n, parallelTime / 1e6);
+        assertEquals(sum, keys.sum);
+        assertEquals(500, keys.count);
+        assertEquals(n, all.count);
+        assertEquals(expected, all.sum);
+        assertEquals(0, all.min);
+        assertEquals(999, all.max);
+    }
+
+    @Test
+    void testOptimisticTransfersKeepTheTotal() throws InterruptedException {
+        DataManager dataManager = new DataManager();
+        int accounts = 20, threads = 8, transfers = 2_000;
+        for (int i = 0; i < accounts; i++) dataManager.put("account" + i, "1000".getBytes());
+        LongAdder aborts = new LongAdder();
+
+        // Transferências concorrentes: ler as duas contas, escrever ambas se nenhuma mudou, senão repetir
+        long startTime = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                Random random = new Random();
+                for (int i = 0; i < transfers; i++) {
+                    String from = "account" + random.nextInt(accounts);
+                    String to = "account" + random.nextInt(accounts);
+                    if (from.equals(to)) continue;
+                    while (true) {
+                        Map<String, Versioned> read = dataManager.multiGetVersioned(new HashSet<>(Arrays.asList(from, to)));
+                        Map<String, Long> readSet = new HashMap<>();
+                        Map<String, byte[]> writes = new HashMap<>();
+                        for (Map.Entry<String, Versioned> e : read.entrySet()) {
+                            long balance = Long.parseLong(new String(e.getValue().value)) + (e.getKey().equals(from) ? -1 : 1);
+                            readSet.put(e.getKey(), e.getValue().version);
+                            writes.put(e.getKey(), Long.toString(balance).getBytes());
+                        }
+                        if (dataManager.commit(readSet, writes).applied) break;
+                        aborts.increment();
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - startTime;
+
+        long total = 0;
+        for (int i = 0; i < accounts; i++) total += Long.parseLong(new String(dataManager.get("account" + i)));
+        System.out.printf("%d transferências em %d threads: %.2f ms, %d abortadas e repetidas%n",
+                threads * transfers, threads, elapsed / 1e6, aborts.sum());
+        assertEquals(accounts * 1000L, total);
+    }
+
+    @Test
+    void testPollingUnchangedValuesWithVersions() {
+        DataManager dataManager = new DataManager();
+        int keys = 50, polls = 200;
+        byte[] large = new byte[64 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        Map<String, Long> known = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            dataManager.put("doc" + i, large);
+            known.put("doc" + i, dataManager.getVersioned("doc" + i).version);
+        }
+
+        // Sondagem clássica: o valor inteiro de cada chave em cada ronda
+        long startTime = System.nanoTime();
+        long sent = 0;
+        for (int p = 0; p < polls; p++) {
+            for (byte[] value : dataManager.multiGet(known.keySet()).values()) sent += value.length;
+        }
+        long fullTime = System.nanoTime() - startTime;
+
+        // Sondagem condicional: só as versões enquanto nada muda
+        dataManager.put("doc7", "changed".getBytes());
+        startTime = System.nanoTime();
+        long sentIfModified = 0;
+        int modified = 0;
+        for (int p = 0; p < polls; p++) {
+            for (Map.Entry<String, Versioned> e : dataManager.multiGetIfModified(known).entrySet()) {
+                if (e.getValue().value == null) continue;
+                sentIfModified += e.getValue().value.length;
+                known.put(e.getKey(), e.getValue().version);
+                modified++;
+            }
+        }
+        long ifModifiedTime = System.nanoTime() - startTime;
+
+        System.out.printf("%d sondagens de %d chaves de 64 KB - multiGet: %.2f ms (%d bytes), multiGetIfModified: %.2f ms (%d bytes)%n",
+                polls, keys, fullTime / 1e6, sent, ifModifiedTime / 1e6, sentIfModified);
+        assertEquals(1, modified);
+        assertEquals("changed".length(), sentIfModified);
+        assertEquals((long) keys * polls - 1, dataManager.getStats().get("notModified"));
+    }
+
+    @Test
+    void testBulkLoadAgainstMultiPut() {
+        int n = 500_000, batch = 5_000;
+
+        // Carga com multiPut: um mapa e um lote atómico por cada 5000 chaves
+        DataManager multiPut = new DataManager();
+        long startTime = System.nanoTime();
+        for (int b = 0; b < n; b += batch) {
+            Map<String, byte[]> values = new HashMap<>();
+            for (int i = b; i < b + batch; i++) values.put("key" + i, ("value" + i).getBytes());
+            multiPut.multiPut(values);
+        }
+        long multiPutTime = System.nanoTime() - startTime;
+
+        // Carga em bloco: tabelas reservadas e cada lote lido do mesmo buffer, como de uma frame
+        DataManager bulk = new DataManager();
+        startTime = System.nanoTime();
+        bulk.reserve(n);
+        for (int b = 0; b < n; b += batch) {
+            StringBuilder frame = new StringBuilder();
+            Key[] keys = new Key[batch];
+            int[] offs = new int[batch];
+            int[] lens = new int[batch];
+            for (int i = 0; i < batch; i++) {
+                String value = "value" + (b + i);
+                keys[i] = Key.of("key" + (b + i));
+                offs[i] = frame.length();
+                lens[i] = value.length();
+                frame.append(value);
+            }
+            bulk.putAll(keys, frame.toString().getBytes(StandardCharsets.UTF_8), offs, lens, batch);
+        }
+        long bulkTime = System.nanoTime() - startTime;
+
+        System.out.printf("Carregar %d chaves - multiPut: %.2f ms, putAll: %.2f ms%n", n, multiPutTime / 1e6, bulkTime / 1e6);
+        for (int i = 0; i < n; i += 9_973) assertEquals("value" + i, new String(bulk.get("key" + i)));
+        assertEquals("value" + (n - 1), new String(bulk.get("key" + (n - 1))));
+    }
 }
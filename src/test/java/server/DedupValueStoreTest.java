@@ -0,0 +1,84 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DedupValueStoreTest {
+
+    private static byte[] template(int i) {
+        StringBuilder sb = new StringBuilder("{\"template\":" + i + ",\"body\":\"");
+        for (int k = 0; k < 100; k++) sb.append("status ok ");
+        return sb.append("\"}").toString().getBytes();
+    }
+
+    @Test
+    void testEqualValuesAreStoredOnce() {
+        DedupValueStore store = new DedupValueStore(new SlabValueStore(), 64);
+
+        byte[] value = template(1);
+        Object a = store.store(value, 0, value.length);
+        Object b = store.store(value.clone(), 0, value.length);
+        assertSame(a, b); // O mesmo valor partilhado pelas duas chaves
+        assertNotSame(a, store.store(template(2), 0, value.length));
+        assertEquals(2L, store.getStats().get("dedupValues"));
+        assertEquals((long) value.length, store.getStats().get("dedupSavedBytes"));
+        assertEquals(0, store.footprint(a, value.length)); // O pool paga o valor, não as chaves
+        assertEquals(2L * value.length, store.sharedBytes());
+
+        // Valores pequenos não entram no pool
+        byte[] small = "small".getBytes();
+        assertArrayEquals(small, store.load(store.store(small, 0, small.length)));
+
+        // Só a última referência liberta o valor
+        store.release(a);
+        assertArrayEquals(value, store.load(b));
+        assertEquals(0L, store.getStats().get("dedupSavedBytes"));
+        store.release(b);
+        assertNull(store.load(b));
+        assertEquals(1L, store.getStats().get("dedupValues"));
+        assertEquals((long) value.length, store.sharedBytes());
+    }
+
+    @Test
+    void testOverwritesGiveBackTheirCounts() {
+        DedupValueStore store = new DedupValueStore(new HeapValueStore());
+        DataManager dataManager = new DataManager(DataManager.DEFAULT_STRIPES, store);
+
+        // 20000 chaves com apenas 5 valores distintos de ~1 KB
+        long startTime = System.nanoTime();
+        for (int i = 0; i < 20_000; i++) dataManager.put("key" + i, template(i % 5));
+        long endTime = System.nanoTime();
+
+        Map<String, Long> stats = dataManager.getStats();
+        System.out.printf("20000 puts com 5 valores distintos: %.2f ms, %d valores guardados, %d KB poupados%n",
+                (endTime - startTime) / 1e6, stats.get("dedupValues"), stats.get("dedupSavedBytes") / 1024);
+        assertEquals(5L, stats.get("dedupValues"));
+        assertEquals(19_995L * template(0).length, stats.get("dedupSavedBytes"));
+        assertArrayEquals(template(3), dataManager.get("key13"));
+
+        // Sobrescrever e remover devolve as contagens: os valores antigos saem do pool
+        for (int i = 0; i < 20_000; i++) dataManager.put("key" + i, ("unique" + i).getBytes());
+        assertEquals(0L, dataManager.getStats().get("dedupValues"));
+        assertEquals(0L, dataManager.getStats().get("dedupSavedBytes"));
+    }
+
+    @Test
+    void testPooledValueIsChargedOnce() {
+        DataManager dataManager = new DataManager(DataManager.DEFAULT_STRIPES, new DedupValueStore(new HeapValueStore()), 1 << 20);
+        byte[] value = template(0);
+        long perKey = "key0".length() + EvictionPolicy.ENTRY_OVERHEAD;
+
+        // O valor partilhado conta uma vez, seja qual for o número de chaves que o têm
+        for (int i = 0; i < 10; i++) dataManager.put("key" + i, value);
+        assertEquals(10 * perKey + value.length, dataManager.getStats().get("bytes"));
+
+        // Remover as chaves uma a uma não faz o orçamento derivar
+        for (int i = 0; i < 9; i++) dataManager.put("key" + i, ("v" + i).getBytes());
+        assertEquals(10 * perKey + 9 * 2 + value.length, dataManager.getStats().get("bytes"));
+        dataManager.put("key9", "v9".getBytes());
+        assertEquals(10 * (perKey + 2), dataManager.getStats().get("bytes"));
+    }
+}
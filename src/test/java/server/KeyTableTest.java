@@ -0,0 +1,93 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyTableTest {
+
+    @Test
+    void testAddGetRemoveAcrossResizes() {
+        KeyTable<Key> table = new KeyTable<>();
+        List<Key> keys = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            Key key = Key.of("key" + i);
+            keys.add(key);
+            table.add(key);
+        }
+        assertEquals(100_000, table.size());
+        for (int i = 0; i < keys.size(); i++) assertSame(keys.get(i), table.get(Key.of("key" + i)));
+        assertNull(table.get(Key.of("missing")));
+
+        // Remover metade, incluindo durante a migração de um redimensionamento
+        for (int i = 0; i < keys.size(); i += 2) assertTrue(table.remove(keys.get(i)));
+        assertFalse(table.remove(keys.get(0)));
+        assertEquals(50_000, table.size());
+        for (int i = 0; i < keys.size(); i++) assertEquals(i % 2 == 1, table.get(keys.get(i)) != null);
+
+        // Cada entrada é visitada uma só vez, mesmo a meio de uma migração
+        for (int i = 0; !table.isResizing(); i++) table.add(Key.of("more" + i));
+        assertTrue(table.isResizing());
+        Set<Key> seen = new HashSet<>();
+        AtomicInteger visits = new AtomicInteger();
+        table.forEach(key -> {
+            seen.add(key);
+            visits.incrementAndGet();
+        });
+        assertEquals(table.size(), visits.get());
+        assertEquals(table.size(), seen.size());
+    }
+
+    @Test
+    void testReserveSizesTheTableOnce() {
+        KeyTable<Key> table = new KeyTable<>();
+        for (int i = 0; i < 1000; i++) table.add(Key.of("old" + i));
+        table.reserve(100_000);
+        assertFalse(table.isResizing());
+
+        // Com o espaço reservado, carregar as chaves nunca volta a redimensionar
+        for (int i = 0; i < 100_000; i++) {
+            table.add(Key.of("key" + i));
+            assertFalse(table.isResizing());
+        }
+        assertEquals(101_000, table.size());
+        assertNotNull(table.get(Key.of("old999")));
+    }
+
+    @Test
+    void testLockFreeReadsWhileGrowing() throws InterruptedException {
+        KeyTable<Key> table = new KeyTable<>();
+        int n = 500_000;
+        Key[] keys = new Key[n];
+        for (int i = 0; i < n; i++) keys[i] = Key.of("key" + i);
+        AtomicInteger added = new AtomicInteger(0);
+        AtomicBoolean done = new AtomicBoolean(false);
+
+        // Um leitor procura sempre chaves já inseridas: nenhuma pode faltar durante as migrações
+        AtomicInteger missed = new AtomicInteger(0);
+        Thread reader = new Thread(() -> {
+            int i = 0;
+            while (!done.get()) {
+                int visible = added.get();
+                if (visible == 0) continue;
+                if (table.get(keys[i++ % visible]) == null) missed.incrementAndGet();
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < n; i++) {
+            table.add(keys[i]);
+            added.set(i + 1);
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, missed.get());
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogStructuredValueStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testSameSemanticsAndRestart() throws IOException {
+        try (DataManager dataManager = new DataManager(new LogStructuredValueStore(this.dir))) {
+            dataManager.put("key1", "value1".getBytes());
+            dataManager.put("key1", "value2".getBytes());
+            Map<String, byte[]> values = new HashMap<>();
+            values.put("key2", "multi2".getBytes());
+            values.put("key3", "multi3".getBytes());
+            dataManager.multiPut(values);
+
+            assertEquals("value2", new String(dataManager.get("key1")));
+            assertNull(dataManager.get("missing"));
+            assertEquals("multi3", new String(dataManager.multiGet(new HashSet<>(Arrays.asList("key2", "key3"))).get("key3")));
+
+            CompletableFuture<byte[]> future = dataManager.getWhenAsync("key1", "flag", "on".getBytes());
+            assertFalse(future.isDone());
+            dataManager.put("flag", "on".getBytes());
+            assertEquals("value2", new String(future.join()));
+        }
+
+        // Só o diretório de chaves é reconstruído - os valores continuam nos segmentos
+        long startTime = System.nanoTime();
+        try (DataManager dataManager = new DataManager(new LogStructuredValueStore(this.dir))) {
+            long endTime = System.nanoTime();
+            System.out.printf("Tempo de recuperação do diretório de chaves: %.2f ms%n", (endTime - startTime) / 1e6);
+
+            assertEquals("value2", new String(dataManager.get("key1")));
+            assertEquals("multi2", new String(dataManager.get("key2")));
+            assertEquals("on", new String(dataManager.get("flag")));
+            dataManager.put("key1", "value3".getBytes());
+        }
+
+        try (DataManager dataManager = new DataManager(new LogStructuredValueStore(this.dir))) {
+            assertEquals("value3", new String(dataManager.get("key1")));
+        }
+    }
+
+    @Test
+    void testCompactionReclaimsDeadRecords() throws IOException, InterruptedException {
+        LogStructuredValueStore store = new LogStructuredValueStore(this.dir, 64 * 1024);
+        try (DataManager dataManager = new DataManager(store)) {
+            // 100 chaves de 1 KB reescritas 50 vezes - ~5 MB escritos, ~100 KB vivos
+            for (int round = 0; round < 50; round++) {
+                for (int i = 0; i < 100; i++) {
+                    byte[] value = new byte[1024];
+                    value[0] = (byte) round;
+                    dataManager.put("key" + i, value);
+                }
+            }
+
+            for (int wait = 0; wait < 100 && store.getDiskBytes() > 1 << 20; wait++) Thread.sleep(50);
+            System.out.printf("Segmentos: %d, em disco: %.1f KB, compactado: %.1f KB%n",
+                    store.getSegmentCount(), store.getDiskBytes() / 1e3, store.getCompactedBytes() / 1e3);
+            assertTrue(store.getCompactedBytes() > 0);
+            assertTrue(store.getDiskBytes() < 1 << 20);
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals(49, dataManager.get("key" + i)[0]);
+            }
+        }
+
+        try (DataManager dataManager = new DataManager(new LogStructuredValueStore(this.dir, 64 * 1024))) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(49, dataManager.get("key" + i)[0]);
+            }
+        }
+    }
+
+    @Test
+    void testTtlSurvivesRestart() throws IOException, InterruptedException {
+        try (DataManager dataManager = new DataManager(new LogStructuredValueStore(this.dir))) {
+            dataManager.put("expired", "value".getBytes(), 0, 5, 50);
+            dataManager.put("later", "value".getBytes(), 0, 5, 1000);
+            dataManager.put("forever", "value".getBytes());
+        }
+        Thread.sleep(100);
+
+        // A chave que expirou com o servidor parado não volta, a outra continua a expirar
+        try (DataManager dataManager = new DataManager(new LogStructuredValueStore(this.dir))) {
+            assertNull(dataManager.get("expired"));
+            assertEquals("value", new String(dataManager.get("later")));
+            for (int wait = 0; wait < 100 && dataManager.getStats().get("expired") == 0; wait++) Thread.sleep(50);
+            assertNull(dataManager.get("later"));
+            assertEquals("value", new String(dataManager.get("forever")));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import conn.Frame;
+import conn.TaggedConnection;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NamespacesTest {
+
+    @Test
+    void testNamespacesAreIsolated() throws IOException {
+        DataManager shared = new DataManager();
+        try (Namespaces namespaces = new Namespaces(shared, name -> new DataManager(DataManager.DEFAULT_STRIPES,
+                new HeapValueStore(), 64 * 1024), 0)) {
+            Namespaces.Namespace noisy = namespaces.get("noisy");
+            assertSame(noisy, namespaces.get("noisy"));
+            assertSame(shared, namespaces.getDefault().engine);
+
+            namespaces.getDefault().engine.put("key", "default".getBytes());
+            Namespaces.Namespace quiet = namespaces.get("quiet");
+            quiet.engine.put("key", "quiet".getBytes());
+
+            // Uma tempestade de multiPut num namespace só despeja chaves desse namespace
+            for (int b = 0; b < 100; b++) {
+                Map<String, byte[]> values = new HashMap<>();
+                for (int i = 0; i < 100; i++) values.put("k" + b + "_" + i, new byte[100]);
+                noisy.engine.multiPut(values);
+            }
+            assertNull(noisy.engine.get("key"));
+            assertEquals("default", new String(namespaces.getDefault().engine.get("key")));
+            assertEquals("quiet", new String(quiet.engine.get("key")));
+            assertTrue(noisy.getStats().get("evictions") > 0);
+            assertEquals(0L, quiet.getStats().get("evictions"));
+
+            assertThrows(IllegalArgumentException.class, () -> namespaces.get("bad name"));
+            assertThrows(IllegalArgumentException.class, () -> namespaces.get("x".repeat(65)));
+        }
+    }
+
+    @Test
+    void testOperationBudget() throws IOException {
+        try (Namespaces namespaces = new Namespaces(new DataManager(), name -> new DataManager(), 100)) {
+            Namespaces.Namespace limited = namespaces.get("limited");
+            int allowed = 0;
+            for (int i = 0; i < 1000; i++) {
+                if (limited.tryAcquire()) allowed++;
+            }
+
+            // O balde tem um segundo de operações: o resto é recusado, sem tocar nos outros namespaces
+            assertTrue(allowed >= 100 && allowed < 200, "allowed " + allowed);
+            assertEquals(1000L - allowed, limited.getStats().get("throttled"));
+            assertEquals((long) allowed, limited.getStats().get("ops"));
+            for (int i = 0; i < 1000; i++) assertTrue(namespaces.getDefault().tryAcquire());
+        }
+    }
+
+    @Test
+    void testThrottledBulkLoadIsSwallowed() throws IOException, InterruptedException {
+        ThreadPoolExecutor commands = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        try (Namespaces namespaces = new Namespaces(new DataManager(), name -> new DataManager(), 1);
+             ServerSocket serverSocket = new ServerSocket(0);
+             Socket clientSocket = new Socket("localhost", serverSocket.getLocalPort());
+             Socket socket = serverSocket.accept();
+             TaggedConnection client = new TaggedConnection(clientSocket)) {
+            Thread handler = new Thread(new ClientHandler(socket, new UserManager(1), namespaces,
+                    new TaggedConnection(socket), commands));
+            handler.start();
+            client.send(1, "user:pass".getBytes());
+            client.receive();
+            client.send(2, "user:pass".getBytes());
+            assertArrayEquals(new byte[]{1}, client.receive().data);
+
+            // A única operação do segundo gasta o orçamento, o bulkload seguinte é recusado
+            client.send(4, "in limited get a".getBytes());
+            assertEquals(4, client.receive().tag);
+            client.send(5, "in limited bulkload".getBytes());
+            Frame refused = client.receive();
+            assertEquals(5, refused.tag);
+            assertEquals("Namespace 'limited' is over its operation budget.", new String(refused.data));
+
+            // As linhas de dados do bulkload recusado não podem correr como comandos
+            client.send(5, "put stolen value".getBytes());
+            client.send(5, new byte[0]);
+            client.send(6, "get stolen".getBytes());
+            Frame reply = client.receive();
+            assertEquals(6, reply.tag);
+            assertEquals(0, reply.data.length);
+            assertNull(namespaces.getDefault().engine.get("stolen"));
+            assertNull(namespaces.get("limited").engine.get("stolen"));
+
+            client.send(0, new byte[0]);
+            handler.join();
+        } finally {
+            commands.shutdown();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PredicateTest {
+
+    private static Predicate parse(String condition) {
+        return Predicate.parse(condition.split(" "), 0);
+    }
+
+    @Test
+    void testParseAndEvaluate() {
+        Map<String, byte[]> values = new HashMap<>();
+        values.put("a", "1".getBytes());
+        values.put("b", "hello".getBytes());
+        values.put("n", "-42".getBytes());
+
+        assertTrue(parse("a = 1").test(values::get));
+        assertTrue(parse("a >= 1 and n < 0").test(values::get));
+        assertTrue(parse("a = 2 or b prefix he").test(values::get));
+        assertFalse(parse("a = 2 or b prefix hex").test(values::get));
+
+        // 'and' tem precedência sobre 'or'
+        assertTrue(parse("a = 1 or a = 2 and b = x").test(values::get));
+        assertFalse(parse("( a = 1 or a = 2 ) and b = x").test(values::get));
+
+        // Chave inexistente não satisfaz nenhuma condição
+        assertFalse(parse("missing != 1").test(values::get));
+        assertFalse(parse("b > 0").test(values::get)); // valor não numérico
+
+        // 'absent' só é satisfeito por chaves inexistentes (ou expiradas)
+        assertTrue(parse("missing absent").test(values::get));
+        assertFalse(parse("a absent").test(values::get));
+        assertTrue(parse("a = 2 or missing absent").test(values::get));
+
+        assertEquals(3, parse("a = 1 and ( b = 2 or a > 3 )").atoms().size());
+        assertEquals(2, parse("a = 1 and ( b = 2 or a > 3 )").keys().size());
+    }
+
+    @Test
+    void testInvalidConditions() {
+        assertThrows(IllegalArgumentException.class, () -> parse("a ~ 1"));
+        assertThrows(IllegalArgumentException.class, () -> parse("a >= x"));
+        assertThrows(IllegalArgumentException.class, () -> parse("( a = 1"));
+        assertThrows(IllegalArgumentException.class, () -> parse("a = 1 and"));
+        assertThrows(IllegalArgumentException.class, () -> parse("a = 1 b = 2"));
+    }
+}
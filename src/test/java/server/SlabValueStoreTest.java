@@ -0,0 +1,61 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlabValueStoreTest {
+
+    @Test
+    void testStoreLoadAndRelease() {
+        SlabValueStore store = new SlabValueStore();
+
+        // Copia apenas o intervalo pedido do buffer de origem
+        byte[] frame = "put key value".getBytes();
+        Object ref = store.store(frame, 8, 5);
+        assertEquals("value", new String(store.load(ref)));
+        assertEquals(5, store.getStoredBytes());
+
+        // Valores maiores do que uma página têm buffer próprio
+        byte[] large = new byte[SlabValueStore.PAGE_SIZE + 10];
+        large[large.length - 1] = 7;
+        Object largeRef = store.store(large, 0, large.length);
+        assertEquals(7, store.load(largeRef)[large.length - 1]);
+
+        // Referência libertada já não pode ser lida
+        store.release(ref);
+        store.release(ref); // Libertar duas vezes não tem efeito
+        assertNull(store.load(ref));
+        store.release(largeRef);
+        assertEquals(0, store.getStoredBytes());
+    }
+
+    @Test
+    void testCompactionKeepsLiveValues() {
+        SlabValueStore store = new SlabValueStore();
+        List<Object> refs = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            refs.add(store.store(("value" + i).getBytes(), 0, ("value" + i).length()));
+        }
+        long allocated = store.getAllocatedBytes();
+
+        // Liberta 9 em cada 10 valores - as páginas esvaziadas são compactadas
+        for (int i = 0; i < refs.size(); i++) {
+            if (i % 10 != 0) store.release(refs.get(i));
+        }
+
+        // Os valores que restam continuam legíveis depois de mudarem de página
+        for (int i = 0; i < refs.size(); i += 10) {
+            assertEquals("value" + i, new String(store.load(refs.get(i))));
+        }
+
+        // Páginas devolvidas ao pool são reutilizadas sem reservar mais memória
+        for (int i = 0; i < 50_000; i++) {
+            store.store(("other" + i).getBytes(), 0, ("other" + i).length());
+        }
+        assertEquals(allocated, store.getAllocatedBytes());
+    }
+}
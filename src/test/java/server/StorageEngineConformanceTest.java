@@ -0,0 +1,515 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Os mesmos testes de conformidade e desempenho correm contra todos os motores de armazenamento
+class StorageEngineConformanceTest {
+
+    @TempDir
+    Path dir;
+
+    private StorageEngine open(String engine) throws IOException {
+        if (engine.equals("log")) return StorageEngines.open("log:" + this.dir.resolve("segments"));
+        if (engine.equals("offheap+deflate")) return StorageEngines.open("offheap", Long.MAX_VALUE, null, 1);
+        if (engine.equals("memory+dedup")) return StorageEngines.open("memory", Long.MAX_VALUE, null, 0, 1);
+        if (engine.equals("memory+wal")) {
+            return StorageEngines.open("memory", Long.MAX_VALUE, WriteAheadLog.open(this.dir.resolve("data.wal"), "os"));
+        }
+        return StorageEngines.open(engine);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testPutAndGet(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            assertTrue(engine.put("key1", "value1".getBytes()));
+            assertEquals("value1", new String(engine.get("key1")));
+            assertTrue(engine.put("key1", "value2".getBytes()));
+            assertEquals("value2", new String(engine.get("key1")));
+            assertNull(engine.get("missing"));
+            assertFalse(engine.put("key1", new byte[0])); // Valor vazio é rejeitado
+
+            byte[] large = new String(new char[4096]).replace('\0', 'x').getBytes();
+            assertTrue(engine.put("large", large));
+            assertArrayEquals(large, engine.get("large"));
+            assertArrayEquals(large, CompressingValueStoreTest.inflate(engine.getDeflated("large")));
+
+            byte[] frame = "put key2 value2".getBytes();
+            assertTrue(engine.put("key2", frame, 9, 6));
+            assertEquals("value2", new String(engine.get("key2")));
+            assertEquals(name.endsWith("+wal"), engine.supportsSnapshots()); // Só os motores com log
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testMultiPutIsAtomic(String name) throws IOException, InterruptedException {
+        try (StorageEngine engine = open(name)) {
+            Set<String> keys = new HashSet<>(Arrays.asList("a", "b", "c"));
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    Map<String, byte[]> values = new HashMap<>();
+                    for (String key : keys) values.put(key, ("v" + i).getBytes());
+                    engine.multiPut(values);
+                }
+            });
+            writer.start();
+
+            // Nenhuma leitura pode ver parte de um multiPut
+            while (writer.isAlive()) {
+                Map<String, byte[]> values = engine.multiGet(keys);
+                Set<String> distinct = new HashSet<>();
+                for (byte[] value : values.values()) distinct.add(new String(value));
+                assertTrue(values.isEmpty() || values.size() == keys.size());
+                assertTrue(distinct.size() <= 1);
+            }
+            writer.join();
+            assertEquals("v1999", new String(engine.multiGet(keys).get("b")));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testCompareAndSet(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            assertNull(engine.getVersioned("key"));
+            assertTrue(engine.compareAndSet("key", 0, "v1".getBytes()).applied); // 0 = criar se não existir
+            assertFalse(engine.compareAndSet("key", 0, "x".getBytes()).applied);
+
+            Versioned v1 = engine.getVersioned("key");
+            assertEquals("v1", new String(v1.value));
+            CasResult stale = engine.compareAndSet("key", v1.version + 1, "x".getBytes());
+            assertFalse(stale.applied);
+            assertEquals(v1.version, stale.versionOf("key")); // Devolve a versão atual para repetir sem get
+
+            CasResult ok = engine.compareAndSet("key", v1.version, "v2".getBytes());
+            assertTrue(ok.applied);
+            assertTrue(ok.versionOf("key") > v1.version);
+            assertEquals("v2", new String(engine.get("key")));
+
+            // Variante com várias chaves: todas ou nenhuma
+            engine.put("other", "o1".getBytes());
+            long other = engine.getVersioned("other").version;
+            Map<String, Long> expected = new HashMap<>();
+            expected.put("key", v1.version);
+            expected.put("other", other);
+            Map<String, byte[]> values = new HashMap<>();
+            values.put("key", "m".getBytes());
+            values.put("other", "m".getBytes());
+            CasResult conflict = engine.compareAndSet(expected, values);
+            assertFalse(conflict.applied);
+            assertEquals(ok.versionOf("key"), conflict.versionOf("key"));
+            assertEquals("o1", new String(engine.get("other")));
+
+            expected.put("key", ok.versionOf("key"));
+            CasResult applied = engine.compareAndSet(expected, values);
+            assertTrue(applied.applied);
+            assertEquals(applied.versionOf("key"), applied.versionOf("other"));
+            assertEquals("m", new String(engine.get("other")));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testAtomicUpdates(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            assertEquals(1, engine.increment("counter", 1)); // Criado a 0
+            assertEquals(-9, engine.increment("counter", -10));
+            engine.put("text", "abc".getBytes());
+            assertThrows(IllegalArgumentException.class, () -> engine.increment("text", 1));
+            engine.put("max", String.valueOf(Long.MAX_VALUE).getBytes());
+            assertThrows(IllegalArgumentException.class, () -> engine.increment("max", 1));
+
+            assertEquals(5, engine.append("text", "de".getBytes(), 0, 2));
+            assertEquals("abcde", new String(engine.get("text")));
+            assertEquals(2, engine.append("new", "xy".getBytes(), 0, 2));
+
+            // Lista limitada a 3 itens: os mais antigos saem
+            for (int i = 1; i <= 5; i++) engine.push("list", ("i" + i).getBytes(), 3);
+            assertEquals("i3 i4 i5", new String(engine.get("list")));
+            assertEquals(1, engine.push("one", "x".getBytes(), 1));
+            assertEquals(1, engine.push("one", "y".getBytes(), 1));
+            assertEquals("y", new String(engine.get("one")));
+            assertThrows(IllegalArgumentException.class, () -> engine.push("list", "a b".getBytes(), 0));
+
+            assertEquals("i3", new String(engine.pop("list")));
+            assertEquals("i4", new String(engine.pop("list")));
+            assertEquals("i5", new String(engine.pop("list")));
+            assertNull(engine.pop("list"));
+            assertNull(engine.get("list")); // Sem itens, a chave desaparece
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testScan(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            for (int i = 0; i < 25; i++) engine.put(String.format("user:%02d", i), ("v" + i).getBytes());
+            engine.put("user", "x".getBytes());
+            engine.put("users", "x".getBytes());
+            engine.push("user:07", "gone".getBytes(), 0); // O valor passa a lista "v7 gone"...
+            engine.pop("user:07");
+            engine.pop("user:07");                          // ...que ao esvaziar remove a chave
+
+            // Prefixo em páginas de 10, continuando depois do cursor
+            List<String> keys = new ArrayList<>();
+            String from = "user:";
+            String cursor;
+            int pages = 0;
+            do {
+                cursor = engine.scan(from, StorageEngine.prefixEnd("user:"), 10, (key, value) -> keys.add(key));
+                if (cursor != null) from = StorageEngine.after(cursor);
+                pages++;
+            } while (cursor != null);
+            assertEquals(3, pages);
+            assertEquals(24, keys.size());
+            assertEquals("user:00", keys.get(0));
+            assertEquals("user:24", keys.get(23));
+            assertFalse(keys.contains("user:07"));
+
+            // Intervalo [from, to)
+            Map<String, byte[]> range = new HashMap<>();
+            assertNull(engine.scan("user:10", "user:13", 100, range::put));
+            assertEquals(3, range.size());
+            assertEquals("v12", new String(range.get("user:12")));
+
+            // Chaves criadas depois do índice também aparecem
+            engine.put("user:99", "new".getBytes());
+            List<String> tail = new ArrayList<>();
+            assertNull(engine.scan("user:9", null, 100, (key, value) -> tail.add(key)));
+            assertEquals(Arrays.asList("user:99", "users"), tail);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testFindKeys(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            for (int i = 0; i < 30; i++) engine.put("job" + i, (i % 3 == 0 ? "done" : "running").getBytes());
+            List<String> done = new ArrayList<>();
+            assertEquals(10, engine.findKeys("done".getBytes(), 100, done::add));
+            assertEquals("job0", done.get(0));
+            assertTrue(done.contains("job27"));
+
+            // O índice acompanha as escritas seguintes: sobrescritas, multiPut, remoções e atualizações atómicas
+            engine.put("job0", "running".getBytes());
+            Map<String, byte[]> values = new HashMap<>();
+            values.put("job1", "done".getBytes());
+            values.put("new", "done".getBytes());
+            engine.multiPut(values);
+            engine.append("job3", "!".getBytes(), 0, 1);
+            List<String> now = new ArrayList<>();
+            assertEquals(10, engine.findKeys("done".getBytes(), 100, now::add));
+            assertFalse(now.contains("job0"));
+            assertFalse(now.contains("job3"));
+            assertTrue(now.contains("job1") && now.contains("new"));
+
+            assertEquals(3, engine.findKeys("done".getBytes(), 3, key -> { }));
+            assertEquals(0, engine.findKeys("missing".getBytes(), 100, key -> fail()));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testPutAll(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            engine.put("k0", "old".getBytes());
+            CompletableFuture<byte[]> waiting = engine.getWhenAsync("k0", "k1", "v1".getBytes());
+            engine.reserve(1000);
+
+            // Um lote de 1000 chaves a partir de um só buffer, com uma chave repetida: vale o último valor
+            StringBuilder lines = new StringBuilder();
+            int n = 1001;
+            Key[] keys = new Key[n];
+            int[] offs = new int[n];
+            int[] lens = new int[n];
+            for (int i = 0; i < n; i++) {
+                String value = i == 1000 ? "last" : "v" + i;
+                keys[i] = Key.of("k" + (i % 1000));
+                offs[i] = lines.length();
+                lens[i] = value.length();
+                lines.append(value);
+            }
+            engine.putAll(keys, lines.toString().getBytes(), offs, lens, n);
+
+            assertEquals("last", new String(engine.get("k0")));
+            assertEquals("v999", new String(engine.get("k999")));
+            assertEquals("last", new String(waiting.join()));
+            List<String> scanned = new ArrayList<>();
+            engine.scan("k", StorageEngine.prefixEnd("k"), 2000, (key, value) -> scanned.add(key));
+            assertEquals(1000, scanned.size());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testGetIfModified(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            byte[] large = new byte[4096];
+            Arrays.fill(large, (byte) 'v');
+            engine.put("k", large);
+            long version = engine.getVersioned("k").version;
+
+            Versioned same = engine.getIfModified("k", version);
+            assertEquals(version, same.version);
+            assertNull(same.value);
+            assertArrayEquals(large, engine.getIfModified("k", version - 1).value);
+            assertNull(engine.getIfModified("missing", 0));
+
+            engine.put("k", "new".getBytes());
+            engine.put("other", "x".getBytes());
+            Map<String, Long> known = new HashMap<>();
+            known.put("k", version);
+            known.put("other", engine.getVersioned("other").version);
+            known.put("missing", 0L);
+            Map<String, Versioned> polled = engine.multiGetIfModified(known);
+            assertEquals("new", new String(polled.get("k").value));
+            assertNull(polled.get("other").value);
+            assertFalse(polled.containsKey("missing"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testTransactionCommit(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            engine.put("a", "10".getBytes());
+            Map<String, Versioned> read = engine.multiGetVersioned(new HashSet<>(Arrays.asList("a", "b")));
+            assertEquals(1, read.size());
+            Map<String, Long> readSet = new HashMap<>();
+            readSet.put("a", read.get("a").version);
+            readSet.put("b", 0L); // Lida ausente
+
+            // Escrita cega numa chave fora do conjunto lido
+            Map<String, byte[]> writes = new HashMap<>();
+            writes.put("a", "5".getBytes());
+            writes.put("c", "5".getBytes());
+            CasResult committed = engine.commit(readSet, writes);
+            assertTrue(committed.applied);
+            assertEquals(committed.versionOf("a"), engine.getVersioned("c").version);
+
+            // O mesmo conjunto lido já não é válido: aborta só com a chave que mudou
+            engine.put("b", "x".getBytes());
+            CasResult aborted = engine.commit(readSet, Collections.singletonMap("d", "1".getBytes()));
+            assertFalse(aborted.applied);
+            assertEquals(new HashSet<>(Arrays.asList("a", "b")), aborted.versions.keySet());
+            assertEquals(engine.getVersioned("b").version, aborted.versionOf("b"));
+            assertNull(engine.get("d"));
+
+            // Só leitura: valida sem escrever
+            assertTrue(engine.commit(Collections.singletonMap("c", committed.versionOf("c")), new HashMap<>()).applied);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testAggregate(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            for (int i = 1; i <= 20; i++) engine.put("sale" + i, Integer.toString(i * 10).getBytes());
+            engine.put("sale21", "n/a".getBytes());
+            engine.put("salt", "-5".getBytes());
+
+            Aggregate sales = engine.aggregate("sale", StorageEngine.prefixEnd("sale"));
+            assertEquals(20, sales.count);
+            assertEquals(2100, sales.sum);
+            assertEquals(10, sales.min);
+            assertEquals(200, sales.max);
+            assertEquals(1, sales.skipped);
+
+            // Lista explícita: chaves em falta e repetidas não contam
+            Aggregate some = engine.aggregate(Arrays.asList("sale1", "salt", "missing", "sale1"));
+            assertEquals(2, some.count);
+            assertEquals(5, some.sum);
+            assertEquals(-5, some.min);
+            assertEquals(0, engine.aggregate("x", null).count);
+
+            engine.put("big", Long.toString(Long.MAX_VALUE).getBytes());
+            assertThrows(IllegalArgumentException.class, () -> engine.aggregate(Arrays.asList("big", "sale2")));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testGetWhen(String name) throws IOException {
+        try (StorageEngine engine = open(name)) {
+            engine.put("target", "value".getBytes());
+            CompletableFuture<byte[]> equal = engine.getWhenAsync("target", "flag", "on".getBytes());
+            CompletableFuture<byte[]> compound = engine.getWhenAsync("target",
+                    Predicate.parse("getwhen target n >= 10 and flag = on".split(" "), 2));
+            CompletableFuture<byte[]> cancelled = engine.getWhenAsync("target", "never", "x".getBytes());
+            assertEquals(3L, engine.getStats().get("pendingGetWhens"));
+
+            engine.put("flag", "on".getBytes());
+            assertEquals("value", new String(equal.join()));
+            assertFalse(compound.isDone());
+
+            engine.put("n", "12".getBytes());
+            assertEquals("value", new String(compound.join()));
+
+            cancelled.cancel(false);
+            assertEquals(0L, engine.getStats().get("pendingGetWhens"));
+
+            // Condição já satisfeita responde de imediato
+            assertEquals("value", new String(engine.getWhenAsync("target", "flag", "on".getBytes()).join()));
+        }
+    }
+
+    @Test
+    void testLogRemovalsSurviveRestart() throws IOException, InterruptedException {
+        String log = "log:" + this.dir.resolve("segments");
+        try (StorageEngine engine = StorageEngines.open(log, 64 * 1024, null)) {
+            assertEquals(1, engine.push("list", "item".getBytes(), 0));
+            assertEquals("item", new String(engine.pop("list")));
+            assertTrue(engine.put("evicted", "value".getBytes()));
+            for (int i = 0; i < 1000; i++) engine.put("filler" + i, new byte[100]);
+            assertNull(engine.get("evicted"));
+            assertTrue(engine.put("ttl", "value".getBytes(), 0, 5, 50));
+            while (engine.getStats().get("expired") == 0) Thread.sleep(10);
+            assertTrue(engine.put("kept", "value".getBytes()));
+        }
+
+        // As remoções (lista esvaziada, expiração, despejo) não podem voltar depois de reiniciar
+        try (StorageEngine engine = StorageEngines.open(log)) {
+            assertNull(engine.get("list"));
+            assertNull(engine.get("ttl"));
+            assertNull(engine.get("evicted"));
+            assertEquals("value", new String(engine.get("kept")));
+            assertTrue(engine.put("list", "again".getBytes()));
+        }
+
+        try (StorageEngine engine = StorageEngines.open(log)) {
+            assertEquals("again", new String(engine.get("list")));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "log", "memory+wal" })
+    void testVersionsSurviveRestart(String name) throws IOException {
+        Map<String, Long> first = new HashMap<>();
+        Map<String, Long> last = new HashMap<>();
+        try (StorageEngine engine = open(name)) {
+            engine.put("other", "x".getBytes()); // As versões de "snap" e "tail" não começam em 1
+            for (String key : new String[] { "snap", "tail" }) {
+                if (key.equals("tail") && engine.supportsSnapshots()) engine.snapshot(); // "tail" só fica no log
+                engine.put(key, "v1".getBytes());
+                first.put(key, engine.getVersioned(key).version);
+                for (int i = 2; i <= 3; i++) engine.put(key, ("v" + i).getBytes());
+            }
+            last.put("snap", engine.getVersioned("snap").version);
+            last.put("tail", engine.getVersioned("tail").version);
+        }
+
+        // Cada chave volta com a versão com que foi escrita - um cas com uma versão antiga continua recusado
+        try (StorageEngine engine = open(name)) {
+            for (String key : last.keySet()) {
+                assertEquals(last.get(key), engine.getVersioned(key).version);
+                assertFalse(engine.compareAndSet(key, first.get(key), "stale".getBytes()).applied);
+                assertEquals("v3", new String(engine.get(key)));
+            }
+            assertTrue(engine.compareAndSet("snap", last.get("snap"), "v4".getBytes()).applied);
+            assertTrue(engine.getVersioned("snap").version > last.get("tail"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "log", "memory+wal" })
+    void testGetIfModifiedAfterRestart(String name) throws IOException {
+        Map<String, Long> seen = new HashMap<>();
+        Map<String, Long> current = new HashMap<>();
+        try (StorageEngine engine = open(name)) {
+            for (String key : new String[] { "snap", "tail" }) {
+                if (key.equals("tail") && engine.supportsSnapshots()) engine.snapshot(); // "tail" só fica no log
+                engine.put(key, "old".getBytes());
+                seen.put(key, engine.getVersioned(key).version);
+                engine.put(key, "new".getBytes());
+                current.put(key, engine.getVersioned(key).version);
+            }
+        }
+
+        // Um cliente que só viu o valor antigo recebe o novo depois de reiniciar, a partir do snapshot ou do log
+        try (StorageEngine engine = open(name)) {
+            for (String key : seen.keySet()) {
+                assertEquals("new", new String(engine.getIfModified(key, seen.get(key)).value));
+                assertNull(engine.getIfModified(key, current.get(key)).value);
+            }
+            Map<String, Versioned> polled = engine.multiGetIfModified(seen);
+            assertEquals("new", new String(polled.get("snap").value));
+            assertEquals("new", new String(polled.get("tail").value));
+            polled = engine.multiGetIfModified(current);
+            assertNull(polled.get("snap").value);
+            assertNull(polled.get("tail").value);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "memory", "global", "offheap", "log", "memory+wal", "offheap+deflate", "memory+dedup" })
+    void testMixedWorkloadThroughput(String name) throws IOException, InterruptedException {
+        int keys = 10_000;
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int opsPerThread = 50_000;
+
+        try (StorageEngine engine = open(name)) {
+            for (int i = 0; i < keys; i++) engine.put("key" + i, ("value" + i).getBytes());
+
+            // 70% get, 20% put, 5% multiGet, 5% multiPut
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread worker = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int op = 0; op < opsPerThread; op++) {
+                        int kind = random.nextInt(100);
+                        String key = "key" + random.nextInt(keys);
+                        if (kind < 70) {
+                            assertNotNull(engine.get(key));
+                        } else if (kind < 90) {
+                            engine.put(key, "updated".getBytes());
+                        } else if (kind < 95) {
+                            Set<String> some = new HashSet<>();
+                            for (int k = 0; k < 4; k++) some.add("key" + random.nextInt(keys));
+                            assertEquals(some.size(), engine.multiGet(some).size());
+                        } else {
+                            Map<String, byte[]> values = new HashMap<>();
+                            for (int k = 0; k < 4; k++) values.put("key" + random.nextInt(keys), "multi".getBytes());
+                            engine.multiPut(values);
+                        }
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) worker.join();
+            long endTime = System.nanoTime();
+
+            System.out.printf("Motor %s - threads: %d, débito: %.2f ops/ms%n",
+                    name, threads, ((double) threads * opsPerThread) / ((endTime - startTime) / 1e6));
+        }
+    }
+}
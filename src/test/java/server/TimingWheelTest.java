@@ -0,0 +1,56 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+    @Test
+    void testTimeoutsFireOnTheirTickAcrossLevels() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        // Prazos em todos os níveis, incluindo além do último (2^24 ticks)
+        long[] deadlines = { 1, 63, 64, 65, 4095, 4096, 70_000, 262_144, 1_000_000, 20_000_000 };
+        for (long deadline : deadlines) wheel.schedule(deadline, deadline);
+        TimingWheel.Timeout<Long> cancelled = wheel.schedule(-1L, 5000);
+        wheel.cancel(cancelled);
+        assertEquals(deadlines.length, wheel.size());
+
+        List<Long> expired = new ArrayList<>();
+        long startTime = System.nanoTime();
+        for (long now = 1; now <= 20_000_000; now++) {
+            wheel.advance(now, expired);
+            for (long deadline : expired) assertEquals(now, deadline); // Nem antes nem depois do prazo
+            expired.clear();
+        }
+        long endTime = System.nanoTime();
+        System.out.printf("Tempo de execução de 20M ticks: %.2f ms%n", (endTime - startTime) / 1e6);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testScheduleAndCancelAreConstantTime() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(10, System.currentTimeMillis());
+        int n = 1_000_000;
+        List<TimingWheel.Timeout<Integer>> timeouts = new ArrayList<>(n);
+
+        long startTime = System.nanoTime();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) timeouts.add(wheel.schedule(i, now + 1 + i % 100_000));
+        for (int i = 0; i < n; i += 2) wheel.cancel(timeouts.get(i));
+        long endTime = System.nanoTime();
+        System.out.printf("Tempo de execução de %d schedules e %d cancels: %.2f ms%n", n, n / 2, (endTime - startTime) / 1e6);
+
+        Set<Integer> expired = new HashSet<>();
+        List<Integer> due = new ArrayList<>();
+        wheel.advance(now + 200_000, due);
+        expired.addAll(due);
+        assertEquals(n / 2, expired.size());
+        assertTrue(expired.stream().allMatch(i -> i % 2 == 1));
+    }
+}
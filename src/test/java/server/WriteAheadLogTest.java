@@ -0,0 +1,242 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    private DataManager open(Path file, String policy) throws IOException {
+        return new DataManager(16, new HeapValueStore(), Long.MAX_VALUE, WriteAheadLog.open(file, policy));
+    }
+
+    @Test
+    void testRecoverAfterRestart() throws IOException {
+        Path file = this.dir.resolve("data.wal");
+        try (DataManager dataManager = open(file, "sync")) {
+            dataManager.put("key1", "value1".getBytes());
+            dataManager.put("key1", "value2".getBytes());
+            Map<String, byte[]> values = new HashMap<>();
+            values.put("key2", "multi2".getBytes());
+            values.put("key3", "multi3".getBytes());
+            dataManager.multiPut(values);
+        }
+
+        try (DataManager dataManager = open(file, "sync")) {
+            assertEquals("value2", new String(dataManager.get("key1")));
+            assertEquals(2, dataManager.multiGet(new HashSet<>(Arrays.asList("key2", "key3"))).size());
+
+            // Valores recuperados têm uma versão (nunca 0, que significa ausente) utilizável num cas
+            Versioned recovered = dataManager.getVersioned("key1");
+            assertTrue(recovered.version > 0);
+            assertTrue(dataManager.compareAndSet("key1", recovered.version, "value2".getBytes()).applied);
+
+            // Escritas depois da recuperação continuam o mesmo log
+            dataManager.put("key4", "value4".getBytes());
+        }
+
+        try (DataManager dataManager = open(file, "os")) {
+            assertEquals("value2", new String(dataManager.get("key1")));
+            assertEquals("value4", new String(dataManager.get("key4")));
+        }
+    }
+
+    @Test
+    void testBulkLoadIsRecovered() throws IOException {
+        Path file = this.dir.resolve("bulk.wal");
+        byte[] buf = "k1 v1\nk2 v2\nk1 v3".getBytes();
+        Key[] keys = { Key.of("k1"), Key.of("k2"), Key.of("k1") };
+        try (DataManager dataManager = open(file, "sync")) {
+            dataManager.putAll(keys, buf, new int[] { 3, 9, 15 }, new int[] { 2, 2, 2 }, 3);
+        }
+
+        try (DataManager dataManager = open(file, "sync")) {
+            assertEquals("v3", new String(dataManager.get("k1")));
+            assertEquals("v2", new String(dataManager.get("k2")));
+        }
+    }
+
+    @Test
+    void testTornRecordIsDropped() throws IOException {
+        Path file = this.dir.resolve("torn.wal");
+        try (DataManager dataManager = open(file, "sync")) {
+            dataManager.put("key1", "value1".getBytes());
+            Map<String, byte[]> values = new HashMap<>();
+            values.put("key2", "value2".getBytes());
+            values.put("key3", "value3".getBytes());
+            dataManager.multiPut(values);
+        }
+
+        // Simula uma falha a meio da escrita do multiPut - nenhuma das suas chaves pode ser recuperada
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        long truncated = Files.size(file);
+
+        try (DataManager dataManager = open(file, "sync")) {
+            assertEquals("value1", new String(dataManager.get("key1")));
+            assertNull(dataManager.get("key2"));
+            assertNull(dataManager.get("key3"));
+            assertTrue(Files.size(file) < truncated);
+            dataManager.put("key5", "value5".getBytes());
+        }
+
+        try (DataManager dataManager = open(file, "sync")) {
+            assertEquals("value5", new String(dataManager.get("key5")));
+        }
+    }
+
+    // Corre `threads` escritores concorrentes e devolve o débito em puts por milissegundo
+    private double runWriters(DataManager dataManager, int threads, int putsPerThread) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < putsPerThread; i++) {
+                    dataManager.put("key" + id + "_" + i, ("value" + i).getBytes());
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        return ((double) threads * putsPerThread) / ((System.nanoTime() - startTime) / 1e6);
+    }
+
+    @Test
+    void testGroupCommit() throws IOException, InterruptedException {
+        for (String policy : new String[] { "sync", "10ms", "os" }) {
+            WriteAheadLog wal = WriteAheadLog.open(this.dir.resolve(policy + ".wal"), policy);
+            try (DataManager dataManager = new DataManager(16, new HeapValueStore(), Long.MAX_VALUE, wal)) {
+                double throughput = runWriters(dataManager, 32, 200);
+                System.out.printf("Durabilidade %s - débito: %.2f puts/ms, registos por fsync/escrita: %.1f%n",
+                        policy, throughput, (double) wal.getRecords() / wal.getBatches());
+
+                // Cada put só retorna depois de escrito, logo todos estão no log
+                assertEquals(32 * 200, wal.getRecords());
+                assertTrue(wal.getBatches() <= wal.getRecords());
+            }
+        }
+    }
+
+    @Test
+    void testAtomicUpdatesSurviveRestart() throws IOException {
+        Path file = this.dir.resolve("updates.wal");
+        try (DataManager dataManager = open(file, "os")) {
+            for (int i = 0; i < 100; i++) dataManager.increment("counter", 2);
+            dataManager.push("list", "a".getBytes(), 0);
+            dataManager.push("list", "b".getBytes(), 0);
+            dataManager.push("emptied", "x".getBytes(), 0);
+            dataManager.pop("emptied");
+            dataManager.append("list", "c".getBytes(), 0, 1);
+        }
+
+        try (DataManager dataManager = open(file, "os")) {
+            assertEquals("200", new String(dataManager.get("counter")));
+            assertEquals("a bc", new String(dataManager.get("list")));
+            assertNull(dataManager.get("emptied")); // A remoção também é registada
+        }
+    }
+
+    @Test
+    void testTtlSurvivesRestart() throws IOException, InterruptedException {
+        Path file = this.dir.resolve("ttl.wal");
+        try (DataManager dataManager = open(file, "os")) {
+            dataManager.put("short", "old".getBytes());
+            dataManager.put("short", "new".getBytes(), 0, 3, 200);
+            dataManager.put("long", "value".getBytes(), 0, 5, 60_000);
+            dataManager.snapshot();
+            dataManager.put("tail", "value".getBytes(), 0, 5, 200); // Só no log
+        }
+
+        try (DataManager dataManager = open(file, "os")) {
+            assertEquals("new", new String(dataManager.get("short")));
+            assertEquals("value", new String(dataManager.get("tail")));
+        }
+        Thread.sleep(300);
+
+        // Expiradas com o servidor em baixo - o valor antigo não pode reaparecer
+        try (DataManager dataManager = open(file, "os")) {
+            assertNull(dataManager.get("short"));
+            assertNull(dataManager.get("tail"));
+            assertEquals("value", new String(dataManager.get("long")));
+        }
+    }
+
+    @Test
+    void testSnapshotDuringWritesAndLogTail() throws IOException, InterruptedException {
+        Path file = this.dir.resolve("snap.wal");
+        try (DataManager dataManager = open(file, "os")) {
+            for (int i = 0; i < 10_000; i++) dataManager.put("key" + i, ("value" + i).getBytes());
+
+            // Escritores continuam durante o snapshot
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) dataManager.put("key" + i, ("new" + i).getBytes());
+            });
+            writer.start();
+            long keys = dataManager.snapshot();
+            writer.join();
+            assertTrue(keys >= 10_000);
+
+            // Escritas depois do snapshot ficam apenas no log
+            dataManager.put("tail", "value".getBytes());
+        }
+        assertTrue(Files.exists(file.resolveSibling("snap.wal.snapshot")));
+        assertFalse(Files.exists(file.resolveSibling("snap.wal.1"))); // Segmento coberto pelo snapshot foi apagado
+
+        try (DataManager dataManager = open(file, "os")) {
+            for (int i = 0; i < 10_000; i += 999) {
+                assertEquals("new" + i, new String(dataManager.get("key" + i)));
+            }
+            assertEquals("value", new String(dataManager.get("tail")));
+        }
+    }
+
+    @Test
+    void testSnapshotRecoveryVersusLogReplay() throws IOException {
+        Path file = this.dir.resolve("bench.wal");
+        byte[] value = new byte[100];
+        try (DataManager dataManager = open(file, "os")) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 200_000; i++) dataManager.put("key" + i, value);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        try (DataManager dataManager = open(file, "os")) {
+            System.out.printf("Recuperação por replay do log (600000 registos): %.1f ms%n", (System.nanoTime() - startTime) / 1e6);
+            dataManager.snapshot();
+        }
+
+        startTime = System.nanoTime();
+        try (DataManager dataManager = open(file, "os")) {
+            System.out.printf("Recuperação por snapshot (200000 chaves, mmap paralelo): %.1f ms%n", (System.nanoTime() - startTime) / 1e6);
+            assertEquals(100, dataManager.get("key199999").length);
+        }
+    }
+}